@@ -0,0 +1,273 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package ro.cs.products;
+
+import ro.cs.products.sentinel2.ProductStore;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.time.LocalTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Limits the rate at which products are transferred, using token buckets shared by all the download workers.
+ * There is a global budget and, optionally, a budget for each product store. The global budget may vary with
+ * the time of day, according to a schedule.
+ * All limits are in bytes per second, 0 meaning unlimited, and can be changed at any time.
+ *
+ * @author Cosmin Cara
+ */
+public class BandwidthLimiter {
+    private static final long SCHEDULE_CHECK_INTERVAL = 30000;
+    private static final TokenBucket globalBucket = new TokenBucket();
+    private static final Map<ProductStore, TokenBucket> storeBuckets = new EnumMap<>(ProductStore.class);
+    private static volatile boolean enabled;
+    private static volatile long globalLimit;
+    private static volatile List<Window> schedule = Collections.emptyList();
+    private static volatile long nextScheduleCheck;
+
+    static {
+        for (ProductStore store : ProductStore.values()) {
+            storeBuckets.put(store, new TokenBucket());
+        }
+    }
+
+    /**
+     * Sets the global limit, shared by all the transfers. This limit applies outside the scheduled windows.
+     */
+    public static synchronized void setLimit(long bytesPerSecond) {
+        globalLimit = Math.max(0, bytesPerSecond);
+        nextScheduleCheck = 0;
+        applySchedule(System.currentTimeMillis());
+        updateEnabled();
+    }
+
+    /**
+     * Sets the limit for the transfers from the given store.
+     */
+    public static synchronized void setLimit(ProductStore store, long bytesPerSecond) {
+        storeBuckets.get(store).setRate(Math.max(0, bytesPerSecond));
+        updateEnabled();
+    }
+
+    /**
+     * Sets the time-of-day schedule of the global limit. The schedule is a comma-separated list of windows
+     * of the form <code>HH:mm-HH:mm=limit</code>, the limit being given in kB/s (0 for unlimited).
+     * A window may span midnight (for example, <code>22:00-06:00=0</code>).
+     */
+    public static synchronized void setSchedule(String value) {
+        List<Window> windows = new ArrayList<>();
+        if (value != null) {
+            for (String token : value.split(",")) {
+                token = token.trim();
+                if (token.isEmpty()) {
+                    continue;
+                }
+                int idx = token.indexOf('=');
+                String[] times = idx > 0 ? token.substring(0, idx).split("-") : new String[0];
+                if (times.length != 2) {
+                    throw new IllegalArgumentException(String.format("Invalid bandwidth schedule window: %s", token));
+                }
+                windows.add(new Window(LocalTime.parse(times[0].trim()), LocalTime.parse(times[1].trim()),
+                                       Long.parseLong(token.substring(idx + 1).trim()) * 1024));
+            }
+        }
+        schedule = windows;
+        nextScheduleCheck = 0;
+        applySchedule(System.currentTimeMillis());
+        updateEnabled();
+    }
+
+    /**
+     * Checks if transfers from the given store are subject to any limit.
+     */
+    static boolean isLimited(ProductStore store) {
+        return enabled && (globalBucket.getRate() > 0 || !schedule.isEmpty() ||
+                (store != null && storeBuckets.get(store).getRate() > 0));
+    }
+
+    /**
+     * Blocks the calling thread until the given number of bytes can be transferred from the given store
+     * without exceeding the limits.
+     */
+    static void acquire(ProductStore store, int bytes) throws InterruptedIOException {
+        if (!enabled) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        if (now >= nextScheduleCheck && !schedule.isEmpty()) {
+            synchronized (BandwidthLimiter.class) {
+                applySchedule(now);
+            }
+        }
+        long waitTime = globalBucket.reserve(bytes);
+        if (store != null) {
+            waitTime = Math.max(waitTime, storeBuckets.get(store).reserve(bytes));
+        }
+        if (waitTime > 0) {
+            try {
+                TimeUnit.NANOSECONDS.sleep(waitTime);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for bandwidth");
+            }
+        }
+    }
+
+    /**
+     * Returns a stream that charges every byte read from the given one to the limits of the given store.
+     * This is meant for a stream that is decompressed while it arrives, so that the bytes transferred are charged,
+     * rather than the decompressed ones.
+     */
+    static InputStream throttle(InputStream inputStream, ProductStore store) {
+        return new ThrottledInputStream(inputStream, store);
+    }
+
+    private static void applySchedule(long now) {
+        if (now < nextScheduleCheck) {
+            return;
+        }
+        long limit = globalLimit;
+        LocalTime time = LocalTime.now();
+        for (Window window : schedule) {
+            if (window.contains(time)) {
+                limit = window.limit;
+                break;
+            }
+        }
+        globalBucket.setRate(limit);
+        nextScheduleCheck = now + SCHEDULE_CHECK_INTERVAL;
+    }
+
+    private static void updateEnabled() {
+        boolean value = globalLimit > 0 || !schedule.isEmpty();
+        for (TokenBucket bucket : storeBuckets.values()) {
+            value |= bucket.getRate() > 0;
+        }
+        enabled = value;
+    }
+
+    /**
+     * A bucket that fills with tokens (bytes) at a given rate, up to a tenth of a second worth of transfer.
+     * Callers reserve tokens in advance and, if the bucket goes below zero, wait for the debt to be refilled.
+     */
+    private static class TokenBucket {
+        private static final long MIN_CAPACITY = 64 * 1024;
+        private long rate;
+        private double tokens;
+        private long lastRefill = System.nanoTime();
+
+        synchronized long getRate() {
+            return rate;
+        }
+
+        synchronized void setRate(long rate) {
+            if (this.rate != rate) {
+                refill();
+                this.rate = rate;
+                this.tokens = Math.min(this.tokens, capacity());
+            }
+        }
+
+        /**
+         * Takes the given number of tokens and returns the time (in nanoseconds) the caller has to wait for them.
+         */
+        synchronized long reserve(int count) {
+            if (rate <= 0) {
+                return 0;
+            }
+            refill();
+            tokens -= count;
+            return tokens >= 0 ? 0 : (long) (-tokens * 1e9 / rate);
+        }
+
+        private void refill() {
+            long now = System.nanoTime();
+            if (rate > 0) {
+                tokens = Math.min(capacity(), tokens + (now - lastRefill) * rate / 1e9);
+            }
+            lastRefill = now;
+        }
+
+        private double capacity() {
+            return Math.max(MIN_CAPACITY, rate / 10.0);
+        }
+    }
+
+    private static class ThrottledInputStream extends FilterInputStream {
+        private final ProductStore store;
+
+        ThrottledInputStream(InputStream in, ProductStore store) {
+            super(in);
+            this.store = store;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int value = super.read();
+            if (value >= 0) {
+                acquire(this.store, 1);
+            }
+            return value;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int read = super.read(b, off, len);
+            if (read > 0) {
+                acquire(this.store, read);
+            }
+            return read;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = super.skip(n);
+            if (skipped > 0) {
+                acquire(this.store, (int) skipped);
+            }
+            return skipped;
+        }
+    }
+
+    private static class Window {
+        private final LocalTime start;
+        private final LocalTime end;
+        private final long limit;
+
+        Window(LocalTime start, LocalTime end, long limit) {
+            this.start = start;
+            this.end = end;
+            this.limit = limit;
+        }
+
+        boolean contains(LocalTime time) {
+            return start.isBefore(end) ?
+                    !time.isBefore(start) && time.isBefore(end) :
+                    !time.isBefore(start) || time.isBefore(end);
+        }
+    }
+}
@@ -0,0 +1,136 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package ro.cs.products;
+
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+/**
+ * Pool of direct buffers shared by all the transfers, within a fixed memory budget.
+ * Buffers are allocated on demand and reused afterwards, so that the off-heap memory of the
+ * downloads never exceeds the budget, however many of them run in parallel, and the heap
+ * sees almost no allocation. When the budget is exhausted, callers wait for a buffer to be released.
+ * The memory in use, its peak and the budget can be read at any time, as a measure of the occupancy of the pool.
+ *
+ * @author Cosmin Cara
+ */
+class BufferPool {
+    static final int BUFFER_SIZE = 256 * 1024;
+    private static final Deque<ByteBuffer> freeBuffers = new ArrayDeque<>();
+    private static long budget = 64 * 1024 * 1024;
+    private static int allocated;
+    private static int inUse;
+    private static int peakInUse;
+
+    /**
+     * Sets the maximum memory, in bytes, of the pool. The budget always allows for at least one buffer.
+     */
+    static synchronized void setBudget(long bytes) {
+        budget = Math.max(BUFFER_SIZE, bytes);
+        while (allocated * (long) BUFFER_SIZE > budget && !freeBuffers.isEmpty()) {
+            freeBuffers.pop();
+            allocated--;
+        }
+        BufferPool.class.notifyAll();
+    }
+
+    /**
+     * Takes a buffer from the pool, waiting for one to be released if the budget is exhausted.
+     */
+    static synchronized ByteBuffer acquire() throws InterruptedIOException {
+        ByteBuffer buffer;
+        try {
+            while ((buffer = tryAcquire()) == null) {
+                BufferPool.class.wait();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for a buffer");
+        }
+        return buffer;
+    }
+
+    /**
+     * Takes a buffer from the pool, if the budget allows it.
+     *
+     * @return  A cleared buffer, or <code>null</code> if the budget is exhausted
+     */
+    static synchronized ByteBuffer tryAcquire() {
+        ByteBuffer buffer = freeBuffers.poll();
+        if (buffer == null) {
+            if ((allocated + 1) * (long) BUFFER_SIZE > budget) {
+                return null;
+            }
+            buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+            allocated++;
+        }
+        inUse++;
+        peakInUse = Math.max(peakInUse, inUse);
+        buffer.clear();
+        return buffer;
+    }
+
+    static synchronized void release(ByteBuffer buffer) {
+        inUse--;
+        if (allocated * (long) BUFFER_SIZE > budget) {
+            // the budget was lowered meanwhile
+            allocated--;
+        } else {
+            freeBuffers.push(buffer);
+        }
+        BufferPool.class.notifyAll();
+    }
+
+    /**
+     * Returns the fraction of the budget held by the transfers.
+     */
+    static synchronized double getOccupancy() {
+        return (double) inUse * BUFFER_SIZE / budget;
+    }
+
+    static synchronized long getUsedBytes() {
+        return (long) inUse * BUFFER_SIZE;
+    }
+
+    static synchronized long getAllocatedBytes() {
+        return (long) allocated * BUFFER_SIZE;
+    }
+
+    /**
+     * Returns the largest memory, in bytes, that was held by the transfers at the same time.
+     */
+    static synchronized long getPeakUsedBytes() {
+        return (long) peakInUse * BUFFER_SIZE;
+    }
+
+    static synchronized long getBudget() {
+        return budget;
+    }
+
+    /**
+     * Returns a summary of the occupancy of the pool, such as "4.0 MB in use (6%), peak 12.5 MB, budget 64.0 MB".
+     */
+    static synchronized String getStatistics() {
+        return String.format("%.1f MB in use (%d%%), peak %.1f MB, budget %.1f MB",
+                             getUsedBytes() / 1048576.0, Math.round(getOccupancy() * 100),
+                             getPeakUsedBytes() / 1048576.0, budget / 1048576.0);
+    }
+}
@@ -0,0 +1,308 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package ro.cs.products;
+
+import org.apache.http.client.methods.CloseableHttpResponse;
+import ro.cs.products.util.Logger;
+import ro.cs.products.util.NetUtils;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Persistent record of the state of the products, tiles and files downloaded into an output folder.
+ * Each change of state is appended as one line to the journal file, so that a run that was killed can be continued
+ * from where it stopped. The records of completion are also synced to the disk, such that a completed item survives
+ * a crash of the system; a lost record of progress only makes the download resume from an earlier offset.
+ * When the journal is opened, the records are replayed (the last record of an item wins, an incomplete last line
+ * is ignored) and the file is rewritten in compacted form.
+ * The products and tiles completed in a previous run are reported only when downloads are resumed.
+ *
+ * @author Cosmin Cara
+ */
+public class DownloadJournal implements AutoCloseable {
+    static final String FILE_NAME = ".download.journal";
+    private static final String SEPARATOR = "\t";
+    private static final String NONE = "-";
+
+    enum Kind { PRODUCT, TILE, FILE }
+
+    enum State { PENDING, PARTIAL, COMPLETE }
+
+    /**
+     * The recorded state of an item. For files, the number of bytes written, the total length and the
+     * validators (ETag, Last-Modified) returned by the server are kept. For products, the location of the
+     * downloaded product, relative to the output folder, is kept.
+     */
+    static class Entry {
+        final State state;
+        final long bytes;
+        final long length;
+        final String eTag;
+        final String lastModified;
+        final String location;
+
+        Entry(State state, long bytes, long length, String eTag, String lastModified, String location) {
+            this.state = state;
+            this.bytes = bytes;
+            this.length = length;
+            this.eTag = eTag;
+            this.lastModified = lastModified;
+            this.location = location;
+        }
+
+        boolean isComplete() { return State.COMPLETE.equals(this.state); }
+
+        /**
+         * Returns the validator to be used in an <code>If-Range</code> header, if any
+         */
+        String getValidator() { return this.eTag != null ? this.eTag : this.lastModified; }
+
+        /**
+         * Checks if the download of a file can continue from the recorded offset. This requires the local file
+         * to hold at least the recorded bytes and a validator to make sure the remote file is the same.
+         */
+        boolean canResume(long localFileLength) {
+            return State.PARTIAL.equals(this.state) && this.bytes > 0 && getValidator() != null &&
+                    localFileLength >= this.bytes;
+        }
+    }
+
+    private final Path folder;
+    private final Path journalFile;
+    private final Map<String, Entry> entries;
+    private final boolean resume;
+    private final boolean resumeTiles;
+    private FileChannel writer;
+
+    /**
+     * Opens (or creates) the journal of the given output folder.
+     *
+     * @param resume        If <code>true</code>, the products and tiles completed in a previous run are not downloaded again
+     * @param resumeTiles   If <code>false</code>, the tiles are never skipped as a whole (for example, because
+     *                      their files are looked up one by one in the archive of the product)
+     */
+    static DownloadJournal open(Path folder, boolean resume, boolean resumeTiles) throws IOException {
+        DownloadJournal journal = new DownloadJournal(folder, resume, resume && resumeTiles);
+        journal.load();
+        journal.compact();
+        return journal;
+    }
+
+    /**
+     * Returns a journal that records nothing, for the downloads that are not journalled.
+     */
+    static DownloadJournal disabled() {
+        return new DownloadJournal(null, false, false);
+    }
+
+    private DownloadJournal(Path folder, boolean resume, boolean resumeTiles) {
+        this.folder = folder != null ? folder.toAbsolutePath().normalize() : null;
+        this.journalFile = folder != null ? this.folder.resolve(FILE_NAME) : null;
+        this.entries = new LinkedHashMap<>();
+        this.resume = resume;
+        this.resumeTiles = resumeTiles;
+    }
+
+    /**
+     * Checks if the changes of state are recorded.
+     */
+    boolean isEnabled() {
+        return this.journalFile != null;
+    }
+
+    /**
+     * Returns the key of a file, which is its path relative to the output folder.
+     */
+    String keyOf(Path file) {
+        Path path = file.toAbsolutePath().normalize();
+        return this.folder != null && path.startsWith(this.folder) ? this.folder.relativize(path).toString() : path.toString();
+    }
+
+    /**
+     * Checks if the given product was completely downloaded in a previous run, and is still in the output folder.
+     */
+    boolean isProductDownloaded(String product) {
+        Entry entry = this.resume ? get(Kind.PRODUCT, product) : null;
+        return entry != null && entry.isComplete() &&
+                (entry.location == null || Files.exists(this.folder.resolve(entry.location)));
+    }
+
+    void beginProduct(String product) {
+        record(Kind.PRODUCT, product, State.PENDING);
+    }
+
+    /**
+     * Records the given product as completely downloaded into the given location.
+     */
+    void completeProduct(String product, Path location) {
+        record(Kind.PRODUCT, product, new Entry(State.COMPLETE, 0, -1, null, null,
+                                                location != null && Files.exists(location) ? keyOf(location) : null));
+    }
+
+    /**
+     * Checks if the given tile of a product was completely downloaded in a previous run.
+     */
+    public boolean isTileDownloaded(String product, String tile) {
+        return this.resumeTiles && isComplete(Kind.TILE, product + ProductDownloader.URL_SEPARATOR + tile);
+    }
+
+    public void markTileDownloaded(String product, String tile) {
+        record(Kind.TILE, product + ProductDownloader.URL_SEPARATOR + tile, State.COMPLETE);
+    }
+
+    Entry getFile(String key) {
+        return get(Kind.FILE, key);
+    }
+
+    /**
+     * Records the state of a file, along with the validators returned by the server, if any.
+     */
+    void recordFile(String key, State state, long bytes, long length, CloseableHttpResponse response) {
+        recordFile(key, state, bytes, length,
+                   response != null ? NetUtils.getHeader(response, "ETag") : null,
+                   response != null ? NetUtils.getHeader(response, "Last-Modified") : null);
+    }
+
+    void recordFile(String key, State state, long bytes, long length, String eTag, String lastModified) {
+        record(Kind.FILE, key, new Entry(state, bytes, length, eTag, lastModified, null));
+    }
+
+    synchronized Entry get(Kind kind, String key) {
+        return this.entries.get(keyOf(kind, key));
+    }
+
+    synchronized boolean isComplete(Kind kind, String key) {
+        Entry entry = this.entries.get(keyOf(kind, key));
+        return entry != null && entry.isComplete();
+    }
+
+    synchronized void record(Kind kind, String key, Entry entry) {
+        if (!isEnabled()) {
+            return;
+        }
+        String fullKey = keyOf(kind, key);
+        this.entries.put(fullKey, entry);
+        if (this.writer != null) {
+            try {
+                ByteBuffer line = ByteBuffer.wrap((format(fullKey, entry) + System.lineSeparator()).getBytes(StandardCharsets.UTF_8));
+                while (line.hasRemaining()) {
+                    this.writer.write(line);
+                }
+                if (entry.isComplete()) {
+                    this.writer.force(false);
+                }
+            } catch (IOException e) {
+                Logger.getRootLogger().warn("Cannot update download journal [%s]. Journaling is disabled", e.getMessage());
+                closeWriter();
+            }
+        }
+    }
+
+    void record(Kind kind, String key, State state) {
+        record(kind, key, new Entry(state, 0, -1, null, null, null));
+    }
+
+    @Override
+    public synchronized void close() {
+        closeWriter();
+    }
+
+    private void load() {
+        if (!Files.exists(this.journalFile)) {
+            return;
+        }
+        try {
+            List<String> lines = Files.readAllLines(this.journalFile, StandardCharsets.UTF_8);
+            for (String line : lines) {
+                String[] tokens = line.split(SEPARATOR);
+                if (tokens.length != 8) {
+                    // an interrupted write leaves a truncated line behind
+                    continue;
+                }
+                try {
+                    this.entries.put(tokens[0] + SEPARATOR + tokens[1],
+                                     new Entry(State.valueOf(tokens[2]),
+                                               Long.parseLong(tokens[3]),
+                                               Long.parseLong(tokens[4]),
+                                               valueOf(tokens[5]),
+                                               valueOf(tokens[6]),
+                                               valueOf(tokens[7])));
+                } catch (IllegalArgumentException ignored) {
+                }
+            }
+            Logger.getRootLogger().debug("Download journal %s loaded [%s records]", this.journalFile, this.entries.size());
+        } catch (IOException e) {
+            Logger.getRootLogger().warn("Cannot read download journal %s [%s]", this.journalFile, e.getMessage());
+        }
+    }
+
+    private void compact() throws IOException {
+        List<String> lines = new ArrayList<>(this.entries.size());
+        for (Map.Entry<String, Entry> entry : this.entries.entrySet()) {
+            lines.add(format(entry.getKey(), entry.getValue()));
+        }
+        Path tempFile = this.journalFile.resolveSibling(this.journalFile.getFileName().toString() + ".tmp");
+        Files.write(tempFile, lines, StandardCharsets.UTF_8);
+        // the compacted records replace the journal only once they are on disk
+        try (FileChannel channel = FileChannel.open(tempFile, StandardOpenOption.WRITE)) {
+            channel.force(false);
+        }
+        Files.move(tempFile, this.journalFile, StandardCopyOption.REPLACE_EXISTING);
+        this.writer = FileChannel.open(this.journalFile, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+    }
+
+    private void closeWriter() {
+        if (this.writer != null) {
+            try {
+                this.writer.close();
+            } catch (IOException ignored) {
+            } finally {
+                this.writer = null;
+            }
+        }
+    }
+
+    private static String keyOf(Kind kind, String key) {
+        return kind.name() + SEPARATOR + key.replace('\\', '/');
+    }
+
+    private static String format(String key, Entry entry) {
+        return key + SEPARATOR + entry.state.name() + SEPARATOR + entry.bytes + SEPARATOR + entry.length + SEPARATOR +
+                textOf(entry.eTag) + SEPARATOR + textOf(entry.lastModified) + SEPARATOR + textOf(entry.location);
+    }
+
+    private static String textOf(String value) {
+        return value == null || value.isEmpty() ? NONE : value.replace(SEPARATOR, " ");
+    }
+
+    private static String valueOf(String text) {
+        return NONE.equals(text) ? null : text;
+    }
+}
@@ -39,7 +39,10 @@ import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.text.SimpleDateFormat;
 import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
 import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
 import java.time.temporal.ChronoUnit;
 import java.util.*;
 import java.util.stream.Collectors;
@@ -207,6 +210,53 @@ public class Executor {
                                           nullIfEmpty(props.getProperty("proxy.pwd", null)));
             NetUtils.setProxy(proxyType, proxyHost, proxyPort == null ? 0 : Integer.parseInt(proxyPort), proxyUser, proxyPwd);
 
+            int parallelProducts = getArgValue(commandLine, Constants.PARAM_PARALLEL_PRODUCTS, Integer.class,
+                                               Constants.DEFAULT_PARALLEL_PRODUCTS);
+            int parallelFiles = getArgValue(commandLine, Constants.PARAM_PARALLEL_FILES, Integer.class,
+                                            Constants.DEFAULT_PARALLEL_FILES);
+            int segments = getArgValue(commandLine, Constants.PARAM_SEGMENTS, Integer.class, Constants.DEFAULT_SEGMENTS);
+            int maxConnections = Integer.parseInt(props.getProperty(Constants.PROPERTY_NAME_HTTP_POOL_MAX_TOTAL,
+                                                                    String.valueOf(Constants.DEFAULT_HTTP_POOL_MAX_TOTAL)));
+            int maxConnectionsPerHost = Integer.parseInt(props.getProperty(Constants.PROPERTY_NAME_HTTP_POOL_MAX_PER_HOST,
+                                                                           String.valueOf(Constants.DEFAULT_HTTP_POOL_MAX_PER_HOST)));
+            // make sure the requested parallelism is not throttled by the connection pool
+            maxConnectionsPerHost = Math.max(maxConnectionsPerHost, parallelProducts * parallelFiles * segments);
+            NetUtils.setConnectionPool(Math.max(maxConnections, maxConnectionsPerHost), maxConnectionsPerHost,
+                                       Integer.parseInt(props.getProperty(Constants.PROPERTY_NAME_HTTP_POOL_IDLE_TIMEOUT,
+                                                                          String.valueOf(Constants.DEFAULT_HTTP_POOL_IDLE_TIMEOUT))));
+            NetUtils.setAdaptiveConcurrency(Integer.parseInt(props.getProperty(Constants.PROPERTY_NAME_HTTP_ADAPTIVE_CONCURRENCY,
+                                                                               String.valueOf(Constants.DEFAULT_HTTP_ADAPTIVE_CONCURRENCY))));
+            for (String name : props.stringPropertyNames()) {
+                if (name.startsWith(Constants.PROPERTY_NAME_HTTP_BULKHEAD + ".")) {
+                    NetUtils.setBulkhead(name.substring(Constants.PROPERTY_NAME_HTTP_BULKHEAD.length() + 1),
+                                         Integer.parseInt(props.getProperty(name).trim()));
+                }
+            }
+            NetUtils.setAdmissionTimeout(Integer.parseInt(props.getProperty(Constants.PROPERTY_NAME_HTTP_ADMISSION_TIMEOUT,
+                                                                            String.valueOf(Constants.DEFAULT_HTTP_ADMISSION_TIMEOUT))));
+            long maxRetryDelay = Long.parseLong(props.getProperty(Constants.PROPERTY_NAME_RETRY_MAX_DELAY, "60000"));
+            for (RetryPolicy.Operation operation : RetryPolicy.Operation.values()) {
+                String attempts = props.getProperty(Constants.PROPERTY_NAME_RETRY_ATTEMPTS + "." + operation.name().toLowerCase());
+                String delay = props.getProperty(Constants.PROPERTY_NAME_RETRY_DELAY + "." + operation.name().toLowerCase());
+                if (attempts != null && delay != null) {
+                    RetryPolicy.set(operation, new RetryPolicy(Integer.parseInt(attempts.trim()), Long.parseLong(delay.trim()), maxRetryDelay));
+                }
+            }
+            BufferPool.setBudget(Long.parseLong(props.getProperty(Constants.PROPERTY_NAME_BUFFER_POOL_SIZE,
+                                                                  String.valueOf(Constants.DEFAULT_BUFFER_POOL_SIZE))) * 1024 * 1024);
+            StallWatchdog.configure(Long.parseLong(props.getProperty(Constants.PROPERTY_NAME_STALL_MIN_RATE,
+                                                                     String.valueOf(Constants.DEFAULT_STALL_MIN_RATE))) * 1024,
+                                    Integer.parseInt(props.getProperty(Constants.PROPERTY_NAME_STALL_WINDOW,
+                                                                       String.valueOf(Constants.DEFAULT_STALL_WINDOW))));
+            long bandwidth = getArgValue(commandLine, Constants.PARAM_BANDWIDTH, Integer.class,
+                                         Integer.parseInt(props.getProperty(Constants.PROPERTY_NAME_BANDWIDTH_LIMIT, "0")));
+            BandwidthLimiter.setLimit(bandwidth * 1024);
+            for (ProductStore store : ProductStore.values()) {
+                BandwidthLimiter.setLimit(store, Long.parseLong(props.getProperty(Constants.PROPERTY_NAME_BANDWIDTH_LIMIT + "." +
+                                                                                          store.name().toLowerCase(), "0")) * 1024);
+            }
+            BandwidthLimiter.setSchedule(props.getProperty(Constants.PROPERTY_NAME_BANDWIDTH_SCHEDULE));
+
             List<ProductDescriptor> products = new ArrayList<>();
             Set<String> tiles = new HashSet<>();
             Polygon2D areaOfInterest = new Polygon2D();
@@ -286,9 +336,13 @@ public class Executor {
                 }
             } else if (commandLine.hasOption(Constants.PARAM_PRODUCT_LIST_FILE)) {
                 for (String line : Files.readAllLines(Paths.get(commandLine.getOptionValue(Constants.PARAM_PRODUCT_LIST_FILE)))) {
-                    products.add(sensorType == SensorType.S2 ?
-                            new S2L1CProductDescriptor(line) :
-                            new LandsatProductDescriptor(line));
+                    // a line may carry, after the product name, its priority, deadline and group, comma-separated
+                    String[] fields = line.split(",", -1);
+                    ProductDescriptor productDescriptor = sensorType == SensorType.S2 ?
+                            new S2L1CProductDescriptor(fields[0].trim()) :
+                            new LandsatProductDescriptor(fields[0].trim());
+                    setSchedulingAttributes(productDescriptor, fields, logger);
+                    products.add(productDescriptor);
                 }
             }
 
@@ -333,6 +387,13 @@ public class Executor {
                     logger.warn("Argument --ma will be ignored for Landsat8");
                 }
             }
+            if (commandLine.hasOption(Constants.PARAM_FLAG_EXTRACT)) {
+                if (downloader instanceof SentinelProductDownloader) {
+                    ((SentinelProductDownloader) downloader).setExtractArchives(true);
+                } else {
+                    logger.warn("Argument --extract will be ignored for Landsat8");
+                }
+            }
 
             int numPoints = areaOfInterest.getNumPoints();
             tiles = tiles.stream().map(t -> t.startsWith("T") ? t.substring(1) : t).collect(Collectors.toSet());
@@ -356,10 +417,7 @@ public class Executor {
                     searchUrl = l8collection != null && l8collection.equals(LandsatCollection.C1) ?
                             props.getProperty(Constants.PROPERTY_NAME_LANDSAT_AWS_SEARCH_URL, Constants.PROPERTY_NAME_DEFAULT_LANDSAT_SEARCH_URL) :
                             props.getProperty(Constants.PROPERTY_NAME_LANDSAT_SEARCH_URL, Constants.PROPERTY_NAME_DEFAULT_LANDSAT_SEARCH_URL);
-                    NetUtils netUtils = new NetUtils();
-                    if (!netUtils.isAvailable(searchUrl)) {
-                        logger.warn(searchUrl + " is not available!");
-                    }
+                    EndpointHealth.register(searchUrl);
                     searchProvider = new LandsatAWSSearch(searchUrl);
                     if (commandLine.hasOption(Constants.PARAM_START_DATE)) {
                         searchProvider.setSensingStart(commandLine.getOptionValue(Constants.PARAM_START_DATE));
@@ -377,10 +435,9 @@ public class Executor {
                 } else if (!commandLine.hasOption(Constants.PARAM_FLAG_SEARCH_AWS)) {
                     logger.info("Search will be attempted on SciHub");
                     searchUrl = props.getProperty(Constants.PROPERTY_NAME_SEARCH_URL, Constants.PROPERTY_DEFAULT_SEARCH_URL);
-                    if (!sciHubNetUtils.isAvailable(searchUrl)) {
-                        logger.warn(searchUrl + " is not available!");
-                        searchUrl = props.getProperty(Constants.PROPERTY_NAME_SEARCH_URL_SECONDARY, Constants.PROPERTY_DEFAULT_SEARCH_URL_SECONDARY);
-                    }
+                    // the requests switch to the backup url whenever the primary one fails repeatedly
+                    EndpointHealth.register(searchUrl, props.getProperty(Constants.PROPERTY_NAME_SEARCH_URL_SECONDARY,
+                                                                         Constants.PROPERTY_DEFAULT_SEARCH_URL_SECONDARY));
                     searchProvider = new SciHubSearch(searchUrl, productType);
                     SciHubSearch search = (SciHubSearch) searchProvider;
                     if (user != null && !user.isEmpty() && pwd != null && !pwd.isEmpty()) {
@@ -416,17 +473,12 @@ public class Executor {
                 searchProvider.setClouds(clouds);
                 if (searchPreOps) {
                     String preOpsSearchUrl = props.getProperty(Constants.PROPERTY_NAME_SEARCH_PREOPS_URL, Constants.PROPERTY_DEFAULT_SEARCH_PREOPS_URL);
-                    NetUtils preOpsNetUtils = new NetUtils();
-                    String authToken = "Basic " + new String(Base64.getEncoder().encode(("s2bguest:s2bguest").getBytes()));
-                    preOpsNetUtils.setAuthToken(authToken);
-                    if (!preOpsNetUtils.isAvailable(preOpsSearchUrl)) {
-                        logger.warn(preOpsSearchUrl + " is not available!");
-                    } else {
-                        PreOpsSciHubSearch secondarySearch = new PreOpsSciHubSearch(preOpsSearchUrl, productType);
-                        secondarySearch.auth("s2bguest", "s2bguest");
-                        secondarySearch.copyFiltersFrom(searchProvider);
-                        searchProvider.setAdditionalProvider(secondarySearch);
-                    }
+                    // an unavailable pre-ops endpoint trips its breaker and the secondary search returns no results
+                    EndpointHealth.register(preOpsSearchUrl);
+                    PreOpsSciHubSearch secondarySearch = new PreOpsSciHubSearch(preOpsSearchUrl, productType);
+                    secondarySearch.auth("s2bguest", "s2bguest");
+                    secondarySearch.copyFiltersFrom(searchProvider);
+                    searchProvider.setAdditionalProvider(secondarySearch);
                 }
                 searchProvider.setRetrieveAllPages(commandLine.hasOption("all"));
                 products = searchProvider.execute();
@@ -460,6 +512,17 @@ public class Executor {
                 if (commandLine.hasOption(Constants.PARAM_BAND_LIST)) {
                     downloader.setBandList(commandLine.getOptionValues(Constants.PARAM_BAND_LIST));
                 }
+                downloader.setParallelDownloads(parallelProducts);
+                downloader.setParallelFileDownloads(parallelFiles);
+                downloader.setSegmentsPerFile(segments);
+                String scheduling = props.getProperty(Constants.PROPERTY_NAME_SCHEDULING_POLICY, Constants.DEFAULT_SCHEDULING_POLICY);
+                try {
+                    downloader.setSchedulingPolicy(SchedulingPolicy.valueOf(scheduling.trim().toUpperCase()));
+                } catch (IllegalArgumentException e) {
+                    logger.warn("Invalid value '%s' for %s, products will be downloaded in the %s order",
+                                scheduling, Constants.PROPERTY_NAME_SCHEDULING_POLICY, Constants.DEFAULT_SCHEDULING_POLICY);
+                    downloader.setSchedulingPolicy(SchedulingPolicy.valueOf(Constants.DEFAULT_SCHEDULING_POLICY));
+                }
                 downloader.setProgressListener(batchProgressListener);
                 downloader.setFileProgressListener(fileProgressListener);
                 retCode = downloader.downloadProducts(products);
@@ -487,6 +550,35 @@ public class Executor {
         }
     }
 
+    /**
+     * Sets the priority, the deadline (yyyy-MM-dd or yyyy-MM-ddTHH:mm, local time) and the group of a product,
+     * as given by the fields that follow its name in a product list file. Empty or invalid fields are ignored.
+     */
+    private static void setSchedulingAttributes(ProductDescriptor product, String[] fields, Logger.CustomLogger logger) {
+        String priority = fields.length > 1 ? nullIfEmpty(fields[1].trim()) : null;
+        if (priority != null) {
+            try {
+                product.setPriority(Integer.parseInt(priority));
+            } catch (NumberFormatException e) {
+                logger.warn("Invalid priority '%s' for product %s will be ignored", priority, product.getName());
+            }
+        }
+        String deadline = fields.length > 2 ? nullIfEmpty(fields[2].trim()) : null;
+        if (deadline != null) {
+            try {
+                LocalDateTime time = deadline.contains("T") ?
+                        LocalDateTime.parse(deadline, DateTimeFormatter.ISO_LOCAL_DATE_TIME) :
+                        LocalDate.parse(deadline, DateTimeFormatter.ISO_DATE).atStartOfDay();
+                product.setDeadline(time.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli());
+            } catch (DateTimeParseException e) {
+                logger.warn("Invalid deadline '%s' for product %s will be ignored", deadline, product.getName());
+            }
+        }
+        if (fields.length > 3) {
+            product.setGroup(nullIfEmpty(fields[3].trim()));
+        }
+    }
+
     private static String nullIfEmpty(String string) {
         return string != null ? (string.isEmpty() ? null : string) : null;
     }
@@ -0,0 +1,125 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package ro.cs.products;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The checksums expected for the files of a product, as listed by the product manifest.
+ * A file is looked up by its path relative to the product folder and, if not found, by its name
+ * (provided that the name is unique in the manifest).
+ *
+ * @author Cosmin Cara
+ */
+class FileChecksums {
+    private final Path root;
+    private final String algorithm;
+    private final Map<String, String> byPath;
+    private final Map<String, String> byName;
+
+    FileChecksums(Path root, String algorithm, Map<String, String> checksums) throws NoSuchAlgorithmException {
+        MessageDigest.getInstance(algorithm);
+        this.root = root.toAbsolutePath().normalize();
+        this.algorithm = algorithm;
+        this.byPath = new HashMap<>();
+        this.byName = new HashMap<>();
+        Set<String> duplicateNames = new HashSet<>();
+        for (Map.Entry<String, String> entry : checksums.entrySet()) {
+            String path = normalize(entry.getKey());
+            String value = entry.getValue().trim().toLowerCase();
+            this.byPath.put(path, value);
+            String name = path.substring(path.lastIndexOf('/') + 1);
+            if (this.byName.put(name, value) != null) {
+                duplicateNames.add(name);
+            }
+        }
+        duplicateNames.forEach(this.byName::remove);
+    }
+
+    /**
+     * Returns the expected checksum of the given file, or <code>null</code> if the file is not listed.
+     */
+    String get(Path file) {
+        Path path = file.toAbsolutePath().normalize();
+        String checksum = null;
+        if (path.startsWith(this.root)) {
+            checksum = this.byPath.get(normalize(this.root.relativize(path).toString()));
+        }
+        return checksum != null ? checksum : this.byName.get(path.getFileName().toString());
+    }
+
+    MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance(this.algorithm);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Updates the digest with the first <code>length</code> bytes of the given file.
+     */
+    static void update(MessageDigest digest, Path file, long length) throws IOException {
+        ByteBuffer buffer = BufferPool.acquire();
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long remaining = length;
+            while (remaining > 0) {
+                buffer.clear();
+                if (remaining < buffer.capacity()) {
+                    buffer.limit((int) remaining);
+                }
+                int read = channel.read(buffer);
+                if (read < 0) {
+                    break;
+                }
+                buffer.flip();
+                digest.update(buffer);
+                remaining -= read;
+            }
+        } finally {
+            BufferPool.release(buffer);
+        }
+    }
+
+    static String toHex(byte[] bytes) {
+        StringBuilder builder = new StringBuilder(bytes.length * 2);
+        for (byte value : bytes) {
+            builder.append(Character.forDigit((value >> 4) & 0xF, 16)).append(Character.forDigit(value & 0xF, 16));
+        }
+        return builder.toString();
+    }
+
+    private static String normalize(String path) {
+        path = path.replace('\\', '/');
+        while (path.startsWith("./") || path.startsWith("/")) {
+            path = path.substring(path.indexOf('/') + 1);
+        }
+        return path;
+    }
+}
@@ -0,0 +1,501 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package ro.cs.products;
+
+import ro.cs.products.sentinel2.ProductStore;
+import ro.cs.products.util.Logger;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.security.MessageDigest;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.Checksum;
+
+/**
+ * Copies the content of a remote stream into a local file.
+ * For files larger than a block, the thread that reads the stream doesn't write to disk: it fills
+ * direct blocks, taken from the {@link BufferPool}, and queues them into a bounded ring that a separate
+ * writer drains with positional channel writes. A slow disk then only stalls the reader when the ring is full,
+ * and a slow network doesn't hold the disk. The time each side waited for the other is measured, and the reader
+ * pauses the {@link StallWatchdog} while it waits for a block.
+ * Smaller files are written by the reading thread, through a single block of the pool.
+ * The progress of the transfer is sampled periodically, outside the copy loop.
+ * Unless a digest or a checksum of the copied bytes has to be computed along the way, the source is read
+ * through a channel (built for each copy, since a transfer may be shared by the threads of a segmented download)
+ * straight into the direct blocks: a local file is then copied without any heap buffer, while
+ * an HTTP response body, which is only exposed as a stream, is still staged by the channel adapter of the JDK.
+ * A digest or a checksum is rather updated from a reused per-thread heap chunk, which the block is filled from.
+ * Every chunk read from the source passes through the {@link BandwidthLimiter}, unless the source is decompressed
+ * from a stream that is throttled already.
+ *
+ * @author Cosmin Cara
+ */
+class FileTransfer implements AutoCloseable {
+    private static final int BLOCK_SIZE = BufferPool.BUFFER_SIZE;
+    static final int RING_SIZE = 8;
+    private static final int CHUNK_SIZE = 64 * 1024;
+    private static final long PROGRESS_INTERVAL = 500;
+    private static final ThreadLocal<byte[]> chunks = ThreadLocal.withInitial(() -> new byte[CHUNK_SIZE]);
+    private static final ScheduledExecutorService progressSampler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "progress-sampler");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private static final ExecutorService diskWriters = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "disk-writer");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final AtomicLong transferred;
+    private final long length;
+    private final long startTime;
+    private final ProductStore store;
+    private final DiskWriter writer;
+    private ScheduledFuture<?> progressTask;
+    private ProgressListener listener;
+    private MessageDigest digest;
+    private Checksum checksum;
+    private boolean throttled = true;
+
+    /**
+     * Creates a transfer for a file.
+     *
+     * @param length        The expected number of bytes of the file (or -1 if unknown)
+     * @param alreadyDone   The number of bytes already present locally
+     * @param listener      Optional listener to which the progress is reported
+     * @param store         The store from which the file is transferred, whose bandwidth budget applies
+     */
+    FileTransfer(long length, long alreadyDone, ProgressListener listener, ProductStore store) {
+        this.length = length;
+        this.store = store;
+        this.transferred = new AtomicLong(alreadyDone);
+        this.startTime = System.currentTimeMillis();
+        this.writer = length < 0 || length - alreadyDone > BLOCK_SIZE ? new DiskWriter() : null;
+        if (listener != null) {
+            this.listener = listener;
+            this.listener.notifyProgress(0, 0);
+            this.progressTask = progressSampler.scheduleAtFixedRate(this::notifyProgress, PROGRESS_INTERVAL,
+                                                                    PROGRESS_INTERVAL, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Sets the digest to be updated with the bytes copied by this transfer. The digest should already
+     * contain the bytes that were present locally.
+     */
+    void setDigest(MessageDigest digest) {
+        this.digest = digest;
+    }
+
+    /**
+     * Sets a checksum (such as the CRC of an archive entry) to be updated with the bytes copied by this transfer.
+     */
+    void setChecksum(Checksum checksum) {
+        this.checksum = checksum;
+    }
+
+    /**
+     * Sets whether the bytes read from the source are charged to the bandwidth limits. They should not be
+     * when the source decompresses a stream returned by {@link BandwidthLimiter#throttle}.
+     */
+    void setThrottled(boolean throttled) {
+        this.throttled = throttled;
+    }
+
+    /**
+     * Copies at most <code>maxBytes</code> bytes from the source stream into the target channel,
+     * starting at the given position. The bytes may still be in the ring when the method returns:
+     * {@link #flush()} has to be called before relying on them being written.
+     *
+     * @return  The number of bytes copied
+     */
+    long copy(InputStream source, FileChannel target, long position, long maxBytes) throws IOException {
+        if (this.writer == null) {
+            return copyDirect(source, target, position, maxBytes);
+        }
+        byte[] chunk = chunks.get();
+        ReadableByteChannel channel = channelOf(source);
+        long copied = 0;
+        boolean endOfStream = false;
+        while (!endOfStream && copied < maxBytes) {
+            ByteBuffer block = this.writer.takeBlock();
+            if (maxBytes - copied < block.capacity()) {
+                block.limit((int) (maxBytes - copied));
+            }
+            try {
+                endOfStream = fill(source, channel, block, chunk);
+            } catch (IOException | RuntimeException e) {
+                this.writer.recycle(block);
+                throw e;
+            }
+            block.flip();
+            int count = block.remaining();
+            if (count == 0) {
+                this.writer.recycle(block);
+                break;
+            }
+            this.writer.submit(block, target, position);
+            position += count;
+            copied += count;
+            this.transferred.addAndGet(count);
+        }
+        return copied;
+    }
+
+    /**
+     * Copies the whole source stream into the target channel, starting at the given position.
+     */
+    long copy(InputStream source, FileChannel target, long position) throws IOException {
+        return copy(source, target, position, Long.MAX_VALUE);
+    }
+
+    /**
+     * Waits until all the copied bytes were written to their channel.
+     *
+     * @throws IOException  If any write failed
+     */
+    void flush() throws IOException {
+        if (this.writer != null) {
+            this.writer.flush();
+        }
+    }
+
+    long getTransferredBytes() {
+        return this.transferred.get();
+    }
+
+    /**
+     * Writes the pending bytes and releases the resources of the transfer.
+     *
+     * @throws IOException  If any write failed
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            if (this.writer != null) {
+                this.writer.close();
+            }
+        } finally {
+            if (this.progressTask != null) {
+                this.progressTask.cancel(false);
+                this.progressTask = null;
+                notifyProgress();
+            }
+        }
+    }
+
+    private long copyDirect(InputStream source, FileChannel target, long position, long maxBytes) throws IOException {
+        ByteBuffer buffer;
+        StallWatchdog.pause();
+        try {
+            buffer = BufferPool.acquire();
+        } finally {
+            StallWatchdog.resume();
+        }
+        byte[] chunk = chunks.get();
+        ReadableByteChannel channel = channelOf(source);
+        long copied = 0;
+        boolean endOfStream = false;
+        try {
+            while (!endOfStream && copied < maxBytes) {
+                buffer.clear();
+                if (maxBytes - copied < buffer.capacity()) {
+                    buffer.limit((int) (maxBytes - copied));
+                }
+                endOfStream = fill(source, channel, buffer, chunk);
+                buffer.flip();
+                int count = buffer.remaining();
+                while (buffer.hasRemaining()) {
+                    position += target.write(buffer, position);
+                }
+                copied += count;
+                this.transferred.addAndGet(count);
+            }
+        } finally {
+            BufferPool.release(buffer);
+        }
+        return copied;
+    }
+
+    /**
+     * Fills the buffer as much as possible, to keep the number of writes low.
+     *
+     * @param channel   The channel of the source, or <code>null</code> if the source has to be read as a stream
+     * @return  <code>true</code> if the end of the stream was reached
+     */
+    private boolean fill(InputStream source, ReadableByteChannel channel, ByteBuffer buffer, byte[] chunk) throws IOException {
+        if (channel != null) {
+            return fill(channel, buffer);
+        }
+        while (buffer.hasRemaining()) {
+            int read = source.read(chunk, 0, Math.min(chunk.length, buffer.remaining()));
+            if (read == -1) {
+                return true;
+            }
+            if (this.throttled) {
+                BandwidthLimiter.acquire(this.store, read);
+            }
+            buffer.put(chunk, 0, read);
+            if (this.digest != null) {
+                this.digest.update(chunk, 0, read);
+            }
+            if (this.checksum != null) {
+                this.checksum.update(chunk, 0, read);
+            }
+        }
+        return false;
+    }
+
+    private boolean fill(ReadableByteChannel source, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = source.read(buffer);
+            if (read == -1) {
+                return true;
+            }
+            if (this.throttled) {
+                BandwidthLimiter.acquire(this.store, read);
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns the channel through which the given stream is read during one copy, or <code>null</code> if the stream
+     * has to be read through the heap chunk. The channel of a file stream is used directly. The channel is not closed,
+     * the stream belongs to the caller.
+     */
+    private ReadableByteChannel channelOf(InputStream source) {
+        return this.digest == null && this.checksum == null ? Channels.newChannel(source) : null;
+    }
+
+    private void notifyProgress() {
+        long bytes = this.transferred.get();
+        double seconds = Math.max(1, System.currentTimeMillis() - this.startTime) / 1000.0;
+        this.listener.notifyProgress(this.length > 0 ? (double) bytes / (double) this.length : 0,
+                                     (double) bytes / 1024 / 1024 / seconds);
+    }
+
+    /**
+     * A block waiting in the ring to be written at a position of a channel.
+     */
+    private static class Block {
+        private final ByteBuffer buffer;
+        private final FileChannel channel;
+        private final long position;
+
+        Block(ByteBuffer buffer, FileChannel channel, long position) {
+            this.buffer = buffer;
+            this.channel = channel;
+            this.position = position;
+        }
+    }
+
+    /**
+     * Drains the ring of a transfer to disk. At most {@link #RING_SIZE} blocks are in use by a transfer,
+     * either being filled by readers or queued for writing, hence the readers wait only when all of them are queued.
+     * Only the first block of a transfer waits for the memory budget of the pool, the others are taken only
+     * if the budget allows it: a transfer can always progress with the blocks it already holds.
+     */
+    private static class DiskWriter implements Runnable {
+        private static final Block END = new Block(null, null, 0);
+        private final BlockingQueue<ByteBuffer> freeBlocks = new ArrayBlockingQueue<>(RING_SIZE);
+        private final BlockingQueue<Block> ring = new ArrayBlockingQueue<>(RING_SIZE + 1);
+        private final AtomicLong readerWaitTime = new AtomicLong();
+        private final AtomicLong writerWaitTime = new AtomicLong();
+        private int allocatedBlocks;
+        private long submittedBlocks;
+        private long writtenBlocks;
+        private boolean started;
+        private boolean closed;
+        private volatile IOException failure;
+
+        /**
+         * Returns an empty block, waiting for one to be written if all the blocks of the ring are in use.
+         */
+        ByteBuffer takeBlock() throws IOException {
+            ByteBuffer block = this.freeBlocks.poll();
+            if (block == null) {
+                boolean canAllocate;
+                boolean first;
+                synchronized (this) {
+                    canAllocate = this.allocatedBlocks < RING_SIZE;
+                    first = this.allocatedBlocks == 0;
+                    if (canAllocate) {
+                        this.allocatedBlocks++;
+                    }
+                }
+                if (canAllocate) {
+                    long start = System.nanoTime();
+                    StallWatchdog.pause();
+                    try {
+                        block = first ? BufferPool.acquire() : BufferPool.tryAcquire();
+                    } finally {
+                        StallWatchdog.resume();
+                        this.readerWaitTime.addAndGet(System.nanoTime() - start);
+                        if (block == null) {
+                            synchronized (this) {
+                                this.allocatedBlocks--;
+                            }
+                        }
+                    }
+                }
+            }
+            if (block == null) {
+                long start = System.nanoTime();
+                // the source is not read meanwhile, which the stall watchdog must not take for a slow network
+                StallWatchdog.pause();
+                try {
+                    block = this.freeBlocks.take();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while waiting for the disk");
+                } finally {
+                    StallWatchdog.resume();
+                    this.readerWaitTime.addAndGet(System.nanoTime() - start);
+                }
+            }
+            block.clear();
+            return block;
+        }
+
+        void recycle(ByteBuffer block) {
+            this.freeBlocks.offer(block);
+        }
+
+        void submit(ByteBuffer block, FileChannel channel, long position) throws IOException {
+            synchronized (this) {
+                if (this.failure != null) {
+                    recycle(block);
+                    throw failure();
+                }
+                if (!this.started) {
+                    this.started = true;
+                    diskWriters.execute(this);
+                }
+                this.submittedBlocks++;
+            }
+            // there are never more blocks than free slots in the ring
+            this.ring.add(new Block(block, channel, position));
+        }
+
+        synchronized void flush() throws IOException {
+            try {
+                while (this.writtenBlocks < this.submittedBlocks) {
+                    wait();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for the disk");
+            }
+            if (this.failure != null) {
+                throw failure();
+            }
+        }
+
+        void close() throws IOException {
+            try {
+                flush();
+            } finally {
+                boolean wasStarted;
+                synchronized (this) {
+                    wasStarted = this.started && !this.closed;
+                    this.closed = true;
+                }
+                if (wasStarted) {
+                    this.ring.add(END);
+                }
+                // once flushed, all the blocks are back in the free list and can be used by other transfers
+                releaseBlocks();
+                if (wasStarted) {
+                    Logger.getRootLogger().debug("Disk writer done [reader waited %s ms for the disk, writer waited %s ms for the network, " +
+                                                         "buffer pool: %s]",
+                                                 TimeUnit.NANOSECONDS.toMillis(this.readerWaitTime.get()),
+                                                 TimeUnit.NANOSECONDS.toMillis(this.writerWaitTime.get()),
+                                                 BufferPool.getStatistics());
+                }
+            }
+        }
+
+        /**
+         * Returns a new exception for the write failure, which is reported to each call that finds it (for example,
+         * to a copy, then to the close of the transfer), since an exception cannot be suppressed by itself.
+         */
+        private IOException failure() {
+            return new IOException(this.failure.getMessage(), this.failure);
+        }
+
+        private void releaseBlocks() {
+            ByteBuffer block;
+            while ((block = this.freeBlocks.poll()) != null) {
+                BufferPool.release(block);
+            }
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                Block block;
+                long start = System.nanoTime();
+                try {
+                    block = this.ring.take();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                if (block == END) {
+                    // blocks written after an interrupted close are given back here
+                    releaseBlocks();
+                    return;
+                }
+                this.writerWaitTime.addAndGet(System.nanoTime() - start);
+                IOException error = null;
+                if (this.failure == null) {
+                    try {
+                        long position = block.position;
+                        while (block.buffer.hasRemaining()) {
+                            position += block.channel.write(block.buffer, position);
+                        }
+                    } catch (IOException e) {
+                        error = e;
+                    }
+                }
+                recycle(block.buffer);
+                synchronized (this) {
+                    if (error != null && this.failure == null) {
+                        this.failure = error;
+                    }
+                    this.writtenBlocks++;
+                    notifyAll();
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,204 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package ro.cs.products;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import ro.cs.products.util.Logger;
+import ro.cs.products.util.NetUtils;
+import ro.cs.products.util.RetryPolicy;
+import ro.cs.products.util.Utilities;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Fetches in advance the small metadata documents of the products that are next in a batch, while the current
+ * products are being transferred, such that the products can go straight to the transfer of their rasters.
+ * The documents are kept in memory, up to a given amount, until they are taken by the product download or
+ * discarded together with their product. A document that was not fetched yet when needed is fetched by the caller.
+ *
+ * @author Cosmin Cara
+ */
+class MetadataPrefetcher {
+    private static final long MAX_DOCUMENT_SIZE = 4 * 1024 * 1024;
+    private static final int CHUNK_SIZE = 8192;
+    private final ExecutorService workers;
+    private final long capacity;
+    private final AtomicLong size = new AtomicLong();
+    private final Map<String, Document> documents = new ConcurrentHashMap<>();
+    private final Set<String> products = ConcurrentHashMap.newKeySet();
+
+    MetadataPrefetcher(int threads, long capacity) {
+        this.workers = Utilities.newFixedThreadPool("metadata-prefetch", threads);
+        this.capacity = capacity;
+    }
+
+    /**
+     * Marks the given product as handled. Only the first call for a product returns <code>true</code>.
+     */
+    boolean claim(String product) {
+        return this.products.add(product);
+    }
+
+    /**
+     * Schedules the fetch of the given document. The returned future completes with the content of the document,
+     * or with <code>null</code> if the document could not be fetched or kept.
+     */
+    CompletableFuture<byte[]> prefetch(String product, String url, String authToken) {
+        Document document = this.documents.computeIfAbsent(url, u -> new Document(product));
+        if (document.scheduled.compareAndSet(false, true)) {
+            try {
+                this.workers.execute(() -> fetch(url, authToken, document));
+            } catch (RuntimeException e) {
+                // the prefetcher was closed
+                document.content.complete(null);
+            }
+        }
+        return document.content;
+    }
+
+    /**
+     * Returns the content of the given document, if it was prefetched, and forgets it. If the fetch is in progress,
+     * the caller waits for it. If the fetch did not start yet, it is cancelled and <code>null</code> is returned.
+     */
+    byte[] take(String url) {
+        Document document = this.documents.remove(url);
+        if (document == null) {
+            return null;
+        }
+        if (document.started.compareAndSet(false, true)) {
+            document.content.complete(null);
+            return null;
+        }
+        try {
+            byte[] content = document.content.get();
+            if (content != null) {
+                this.size.addAndGet(-content.length);
+                Logger.getRootLogger().debug("Using prefetched %s", url);
+            }
+            return content;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        } catch (ExecutionException | CancellationException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Forgets the documents of the given product that were not taken.
+     */
+    void discard(String product) {
+        this.documents.entrySet().removeIf(entry -> {
+            Document document = entry.getValue();
+            if (!product.equals(document.product)) {
+                return false;
+            }
+            if (document.started.compareAndSet(false, true)) {
+                document.content.complete(null);
+            } else {
+                document.content.thenAccept(content -> {
+                    if (content != null) {
+                        this.size.addAndGet(-content.length);
+                    }
+                });
+            }
+            return true;
+        });
+    }
+
+    void close() {
+        this.workers.shutdownNow();
+        this.documents.clear();
+        this.products.clear();
+        this.size.set(0);
+    }
+
+    private void fetch(String url, String authToken, Document document) {
+        if (!document.started.compareAndSet(false, true)) {
+            return;
+        }
+        byte[] content = null;
+        try (CloseableHttpResponse response = NetUtils.openConnection(url, authToken, null, RetryPolicy.Operation.METADATA)) {
+            NetUtils.checkResponse(response, url);
+            long length = response.getEntity().getContentLength();
+            if (length <= MAX_DOCUMENT_SIZE && this.size.get() + Math.max(0, length) <= this.capacity) {
+                content = read(response.getEntity(), length);
+            }
+            Logger.getRootLogger().debug(content != null ? "Prefetched %s" : "%s too large to be prefetched", url);
+        } catch (Exception e) {
+            Logger.getRootLogger().debug("Prefetch of %s failed [%s]", url, e.getMessage());
+        } finally {
+            document.content.complete(content);
+        }
+    }
+
+    /**
+     * Reads a document, charging the bytes against the capacity as they arrive, since the length of the document
+     * may not be known in advance. The document is dropped, and its bytes released, as soon as it exceeds
+     * the maximum document size or the capacity.
+     */
+    private byte[] read(HttpEntity entity, long length) throws IOException {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream(length > 0 ? (int) length : CHUNK_SIZE);
+        byte[] chunk = new byte[CHUNK_SIZE];
+        long charged = 0;
+        boolean kept = false;
+        try {
+            // the stream is not closed when the document is dropped, since closing it would read the rest of
+            // the body; the connection is aborted instead, when the response is closed
+            InputStream inputStream = entity.getContent();
+            int read;
+            while ((read = inputStream.read(chunk)) != -1) {
+                charged += read;
+                if (this.size.addAndGet(read) > this.capacity || charged > MAX_DOCUMENT_SIZE) {
+                    return null;
+                }
+                buffer.write(chunk, 0, read);
+            }
+            kept = true;
+            return buffer.toByteArray();
+        } finally {
+            if (!kept) {
+                this.size.addAndGet(-charged);
+            }
+        }
+    }
+
+    private static class Document {
+        private final String product;
+        private final AtomicBoolean scheduled = new AtomicBoolean();
+        private final AtomicBoolean started = new AtomicBoolean();
+        private final CompletableFuture<byte[]> content = new CompletableFuture<>();
+
+        Document(String product) {
+            this.product = product;
+        }
+    }
+}
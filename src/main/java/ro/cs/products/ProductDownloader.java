@@ -19,21 +19,30 @@
 
 package ro.cs.products;
 
+import org.apache.http.HttpStatus;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.util.EntityUtils;
 import ro.cs.products.base.DownloadMode;
 import ro.cs.products.base.ProductDescriptor;
+import ro.cs.products.base.SchedulingPolicy;
 import ro.cs.products.sentinel2.ProductStore;
+import ro.cs.products.util.Constants;
 import ro.cs.products.util.Logger;
 import ro.cs.products.util.NetUtils;
+import ro.cs.products.util.RetryPolicy;
 import ro.cs.products.util.ReturnCode;
 import ro.cs.products.util.Utilities;
+import ro.cs.products.util.ZipArchiveWriter;
+import ro.cs.products.util.ZipDirectory;
+import ro.cs.products.util.Zipper;
 
+import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InterruptedIOException;
-import java.net.HttpURLConnection;
-import java.nio.ByteBuffer;
-import java.nio.channels.SeekableByteChannel;
+import java.net.SocketTimeoutException;
+import java.nio.channels.FileChannel;
 import java.nio.file.FileVisitResult;
 import java.nio.file.Files;
 import java.nio.file.Path;
@@ -42,25 +51,44 @@ import java.nio.file.SimpleFileVisitor;
 import java.nio.file.StandardCopyOption;
 import java.nio.file.StandardOpenOption;
 import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
 import java.util.Collections;
-import java.util.EnumSet;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Properties;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
+import java.util.zip.CRC32;
 
 /**
  * Base class for downloaders
  *
  * @author  Cosmin Cara
  */
-public abstract class ProductDownloader<T extends ProductDescriptor> {
+public abstract class ProductDownloader<T extends ProductDescriptor> implements Cloneable {
     private static final String startMessage = "(%s,%s) %s [size: %skB]";
     private static final String completeMessage = "(%s,%s) %s [elapsed: %ss]";
     private static final String errorMessage ="Cannot download %s: %s";
-    private static final int BUFFER_SIZE = 1024 * 1024;
     protected static final String NAME_SEPARATOR = "_";
     public static final String URL_SEPARATOR = "/";
+    private static final long JOURNAL_INTERVAL = 8 * 1024 * 1024;
+    private static final int MAX_STALL_RECONNECTS = 10;
+    private static final Map<String, CompletableFuture<Path>> inFlight = new ConcurrentHashMap<>();
+    private static final int PREFETCH_THREADS = 2;
+    private static final int SIZE_PROBE_THREADS = 4;
+    private static final long PREFETCH_CAPACITY = 32 * 1024 * 1024;
 
     protected Properties props;
     protected String destination;
@@ -73,6 +101,21 @@ public abstract class ProductDownloader<T extends ProductDescriptor> {
     protected boolean shouldDeleteAfterCompression;
     protected DownloadMode downloadMode;
     protected ProductStore store;
+    protected int parallelDownloads = 1;
+    protected int parallelFileDownloads = 1;
+    protected int segmentsPerFile = 1;
+    protected long segmentedMinSize;
+    protected SchedulingPolicy schedulingPolicy = SchedulingPolicy.FIFO;
+    protected int prefetchDepth;
+    private ExecutorService fileDownloadPool;
+    private DownloadJournal journal = DownloadJournal.disabled();
+    private AtomicInteger failedDownloads = new AtomicInteger(0);
+    private FileChecksums expectedChecksums;
+    private MetadataPrefetcher prefetcher;
+    private ProductPipeline pipeline;
+    private List<CompletableFuture<Integer>> postProcessing;
+    private List<ProductTask> repairTasks = new ArrayList<>();
+    private Map<Path, ZipArchiveWriter> archives;
 
     protected Logger.ScopeLogger productLogger;
 
@@ -88,6 +131,10 @@ public abstract class ProductDownloader<T extends ProductDescriptor> {
         this.destination = targetFolder;
         this.props = properties;
         this.netUtils = netUtils;
+        this.segmentedMinSize = Long.parseLong(properties.getProperty(Constants.PROPERTY_NAME_SEGMENTED_MIN_SIZE,
+                                                                      String.valueOf(Constants.DEFAULT_SEGMENTED_MIN_SIZE)));
+        this.prefetchDepth = Integer.parseInt(properties.getProperty(Constants.PROPERTY_NAME_METADATA_PREFETCH_DEPTH,
+                                                                     String.valueOf(Constants.DEFAULT_METADATA_PREFETCH_DEPTH)));
     }
 
     public void setAdditionalDownloader(ProductDownloader<T> anotherDownloader) {
@@ -129,82 +176,665 @@ public abstract class ProductDownloader<T extends ProductDescriptor> {
     }
 
     /**
-     * Downloads a list of products given their descriptors
+     * Sets the number of products to be downloaded in parallel
+     */
+    void setParallelDownloads(int value) {
+        this.parallelDownloads = Math.max(1, value);
+    }
+
+    /**
+     * Sets the number of files of the same product to be downloaded in parallel
+     */
+    void setParallelFileDownloads(int value) {
+        this.parallelFileDownloads = Math.max(1, value);
+    }
+
+    /**
+     * Sets the number of connections used for downloading a large file
+     */
+    void setSegmentsPerFile(int value) {
+        this.segmentsPerFile = Math.max(1, value);
+    }
+
+    /**
+     * Sets the order in which the products of a batch are downloaded
+     */
+    void setSchedulingPolicy(SchedulingPolicy policy) {
+        this.schedulingPolicy = policy != null ? policy : SchedulingPolicy.FIFO;
+    }
+
+    /**
+     * Downloads a list of products given their descriptors.
+     * If more than one parallel download was requested, the products are distributed to a bounded pool of workers,
+     * each product being handled by its own copy of this downloader.
      * @param products      The list of product descriptors
      */
     int downloadProducts(List<T> products) {
         int retCode = ReturnCode.OK;
         if (products != null) {
-            int productCounter = 1, productCount = products.size();
+            int productCount = products.size();
+            if (this.schedulingPolicy != SchedulingPolicy.FIFO && productCount > 1) {
+                estimateSizes(ProductScheduler.needingSize(products, this.schedulingPolicy));
+                products = ProductScheduler.schedule(products, this.schedulingPolicy, ProductDescriptor::getApproximateSize);
+                getLogger().debug("Products will be downloaded in the order: %s",
+                                  products.stream().map(ProductDescriptor::getName).collect(Collectors.joining(", ")));
+            }
+            openFileDownloadPool();
+            openJournal();
+            openPrefetcher(productCount);
+            openPipeline();
+            try {
+                if (this.parallelDownloads > 1 && productCount > 1) {
+                    retCode = downloadInParallel(products);
+                } else {
+                    int productCounter = 1;
+                    for (T product : products) {
+                        prefetchAfter(products, productCounter - 1);
+                        int code = downloadProduct(product, productCounter, productCount);
+                        if (code != ReturnCode.OK) {
+                            retCode = code;
+                        }
+                        notifyBatchProgress(productCounter++, productCount);
+                    }
+                }
+            } finally {
+                closePrefetcher();
+                int code = closePipeline();
+                if (code != ReturnCode.OK) {
+                    retCode = code;
+                }
+                closeJournal();
+                closeFileDownloadPool();
+                getLogger().info("Buffer pool: %s", BufferPool.getStatistics());
+            }
+        }
+        return retCode;
+    }
+
+    private int downloadInParallel(List<T> products) {
+        int retCode = ReturnCode.OK;
+        int productCount = products.size();
+        ExecutorService workers = Utilities.newFixedThreadPool("product-download",
+                                                               Math.min(this.parallelDownloads, productCount));
+        AtomicInteger completed = new AtomicInteger(0);
+        List<Future<Integer>> results = new ArrayList<>(productCount);
+        try {
+            int productCounter = 1;
             for (T product : products) {
-                long startTime = System.currentTimeMillis();
-                Path file = null;
-                currentProduct = "Product " + String.valueOf(productCounter++) + "/" + String.valueOf(productCount);
+                final int index = productCounter++;
+                final ProductDownloader<T> worker = newWorker();
+                results.add(workers.submit(() -> {
+                    try {
+                        worker.prefetchAfter(products, index - 1);
+                        return worker.downloadProduct(product, index, productCount);
+                    } finally {
+                        notifyBatchProgress(completed.incrementAndGet(), productCount);
+                    }
+                }));
+            }
+            for (Future<Integer> result : results) {
+                int code;
                 try {
-                    Utilities.ensureExists(Paths.get(destination));
-                    switch (this.store) {
-                        case LOCAL:
-                            switch (this.downloadMode) {
-                                case COPY:
-                                    file = copy(product, Paths.get(baseUrl), Paths.get(destination));
-                                    break;
-                                case SYMLINK:
-                                    file = link(product, Paths.get(baseUrl), Paths.get(destination));
-                                    break;
-                                case FILTERED_SYMLINK:
-                                    file = link(product);
-                                    break;
-                            }
-                            if (file == null) {
-                                retCode = ReturnCode.EMPTY_PRODUCT;
-                                getLogger().warn("(" + currentProduct + ") Product copy or link failed");
-                            }
+                    code = result.get();
+                } catch (ExecutionException e) {
+                    getLogger().error("Product download failed: %s", e.getCause().getMessage());
+                    code = ReturnCode.DOWNLOAD_ERROR;
+                }
+                if (code != ReturnCode.OK) {
+                    retCode = code;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            getLogger().warn("Parallel download interrupted");
+            retCode = ReturnCode.DOWNLOAD_ERROR;
+        } finally {
+            workers.shutdownNow();
+        }
+        return retCode;
+    }
+
+    private int downloadProduct(T product, int productIndex, int productCount) {
+        int retCode = ReturnCode.OK;
+        long startTime = System.currentTimeMillis();
+        Path file = null;
+        currentProduct = "Product " + String.valueOf(productIndex) + "/" + String.valueOf(productCount);
+        try {
+            Utilities.ensureExists(Paths.get(destination));
+            switch (this.store) {
+                case LOCAL:
+                    switch (this.downloadMode) {
+                        case COPY:
+                            file = copy(product, Paths.get(baseUrl), Paths.get(destination));
                             break;
-                        case SCIHUB:
-                        case AWS:
-                        default:
-                            file = download(product);
-                            if (file == null) {
-                                if (this.additionalDownloader != null && this.additionalDownloader.isIntendedFor(product)) {
-                                    file = this.additionalDownloader.download(product);
-                                    if (file == null) {
-                                        retCode = ReturnCode.EMPTY_PRODUCT;
-                                    }
-                                } else {
-                                    retCode = ReturnCode.EMPTY_PRODUCT;
-                                }
-                                if (retCode == ReturnCode.EMPTY_PRODUCT) {
-                                    getLogger().warn("(" + currentProduct + ") Product download aborted");
-                                }
-                            }
+                        case SYMLINK:
+                            file = link(product, Paths.get(baseUrl), Paths.get(destination));
+                            break;
+                        case FILTERED_SYMLINK:
+                            file = link(product);
                             break;
                     }
-                } catch (IOException ignored) {
-                    getLogger().warn("(" + currentProduct + ") IO Exception: " + ignored.getMessage());
-                    retCode = ReturnCode.DOWNLOAD_ERROR;
-                } finally {
-                    if (productLogger != null) {
-                        try {
-                            productLogger.close();
-                        } catch (IOException e) {
-                            getLogger().error(e.getMessage());
-                        } finally {
-                            productLogger = null;
+                    if (file == null) {
+                        retCode = ReturnCode.EMPTY_PRODUCT;
+                        getLogger().warn("(" + currentProduct + ") Product copy or link failed");
+                    }
+                    break;
+                case SCIHUB:
+                case AWS:
+                default:
+                    if (this.journal.isProductDownloaded(product.getName())) {
+                        getLogger().info("(" + currentProduct + ") Product %s already downloaded", product.getName());
+                        return retCode;
+                    }
+                    beginProduct(product);
+                    try {
+                        file = download(product);
+                    } finally {
+                        if (this.prefetcher != null) {
+                            this.prefetcher.discard(product.getName());
                         }
                     }
+                    if (file == null) {
+                        if (this.additionalDownloader != null && this.additionalDownloader.isIntendedFor(product)) {
+                            file = this.additionalDownloader.download(product);
+                            if (file == null) {
+                                retCode = ReturnCode.EMPTY_PRODUCT;
+                            }
+                        } else {
+                            retCode = ReturnCode.EMPTY_PRODUCT;
+                        }
+                        if (retCode == ReturnCode.EMPTY_PRODUCT) {
+                            getLogger().warn("(" + currentProduct + ") Product download aborted");
+                        }
+                    }
+                    if (file != null) {
+                        postProcess(product, file, System.currentTimeMillis() - startTime);
+                    }
+                    break;
+            }
+        } catch (IOException ignored) {
+            getLogger().warn("(" + currentProduct + ") IO Exception: " + ignored.getMessage());
+            retCode = ReturnCode.DOWNLOAD_ERROR;
+        } finally {
+            discardArchives(this.archives);
+            this.archives = null;
+            if (productLogger != null) {
+                try {
+                    productLogger.close();
+                } catch (IOException e) {
+                    getLogger().error(e.getMessage());
+                } finally {
+                    productLogger = null;
                 }
-                long millis = System.currentTimeMillis() - startTime;
-                if (file != null && Files.exists(file)) {
-                    getLogger().info("(" + currentProduct + ") Download completed in %s", Utilities.formatTime(millis));
+            }
+        }
+        long millis = System.currentTimeMillis() - startTime;
+        if (file != null && Files.exists(file)) {
+            getLogger().info("(" + currentProduct + ") Download completed in %s", Utilities.formatTime(millis));
+        }
+        return retCode;
+    }
+
+    private void openJournal() {
+        if (!this.journal.isEnabled() && this.store != ProductStore.LOCAL) {
+            try {
+                // the files of the products streamed into their archives are looked up in the archives instead
+                this.journal = DownloadJournal.open(Utilities.ensureExists(Paths.get(destination)),
+                                                    DownloadMode.RESUME.equals(this.downloadMode),
+                                                    !(this.shouldCompress && this.shouldDeleteAfterCompression));
+                if (this.additionalDownloader != null) {
+                    this.additionalDownloader.journal = this.journal;
                 }
-                if (batchProgressListener != null) {
-                    batchProgressListener.notifyProgress((double) productCounter / (double) productCount);
+            } catch (IOException e) {
+                getLogger().warn("Cannot open download journal [%s]", e.getMessage());
+            }
+        }
+    }
+
+    private void closeJournal() {
+        this.journal.close();
+        this.journal = DownloadJournal.disabled();
+        if (this.additionalDownloader != null) {
+            this.additionalDownloader.journal = this.journal;
+        }
+    }
+
+    /**
+     * Returns the journal of the current batch, which records nothing if the downloads are not journalled.
+     */
+    protected DownloadJournal getJournal() {
+        return this.journal;
+    }
+
+    private void beginProduct(T product) {
+        if (this.prefetcher != null) {
+            // a product already in progress is not worth prefetching any more
+            this.prefetcher.claim(product.getName());
+        }
+        this.failedDownloads = new AtomicInteger(0);
+        this.expectedChecksums = null;
+        this.repairTasks = Collections.synchronizedList(new ArrayList<>());
+        // a product that is not kept unpacked is written into its archive while being downloaded
+        this.archives = this.shouldCompress && this.shouldDeleteAfterCompression ? new ConcurrentHashMap<>() : null;
+        if (this.additionalDownloader != null) {
+            this.additionalDownloader.failedDownloads = this.failedDownloads;
+            this.additionalDownloader.repairTasks = this.repairTasks;
+            this.additionalDownloader.archives = this.archives;
+        }
+        this.journal.beginProduct(product.getName());
+    }
+
+    private void completeJournal(String label, T product, Path file, int failed) {
+        if (this.journal.isEnabled()) {
+            if (failed == 0) {
+                this.journal.completeProduct(product.getName(), file);
+            } else {
+                Logger.getRootLogger().warn("(%s) %s file(s) of product %s could not be downloaded",
+                                            label, failed, product.getName());
+            }
+        }
+    }
+
+    /**
+     * Hands a downloaded product to the post-processing stages: the repair tasks registered during its download,
+     * then its packaging. The product is recorded as complete in the journal once packaged.
+     */
+    private void postProcess(T product, Path file, long downloadTime) throws IOException {
+        final String label = this.currentProduct;
+        final int failed = this.failedDownloads.get();
+        final List<ProductTask> tasks = this.repairTasks;
+        final Map<Path, ZipArchiveWriter> productArchives = this.archives;
+        this.archives = null;
+        Callable<Void> repair = () -> {
+            for (ProductTask task : tasks) {
+                task.execute();
+            }
+            return null;
+        };
+        if (this.pipeline == null) {
+            try {
+                repair.call();
+                completeJournal(label, product, packageProduct(file, productArchives), failed);
+            } catch (IOException e) {
+                throw e;
+            } catch (Exception e) {
+                throw new IOException(e);
+            }
+            return;
+        }
+        this.pipeline.downloaded(downloadTime);
+        this.postProcessing.add(this.pipeline.submit(repair, () -> packageProduct(file, productArchives)).handle((path, error) -> {
+            if (error != null) {
+                Logger.getRootLogger().error("(%s) Post-processing of %s failed: %s", label, product.getName(),
+                                             error.getCause() != null ? error.getCause().getMessage() : error.getMessage());
+                return ReturnCode.DOWNLOAD_ERROR;
+            }
+            completeJournal(label, product, path, failed);
+            return ReturnCode.OK;
+        }));
+    }
+
+    /**
+     * Completes the archive into which the files of the product were streamed, if any, with the files left on disk
+     * (such as the metadata), which are then deleted.
+     */
+    private Path packageProduct(Path file, Map<Path, ZipArchiveWriter> productArchives) throws IOException {
+        ZipArchiveWriter archive = productArchives != null ? productArchives.remove(file.toAbsolutePath().normalize()) : null;
+        discardArchives(productArchives);
+        if (archive == null) {
+            return packageProduct(file);
+        }
+        Logger.getRootLogger().debug("Completing archive of product %s", file.getFileName());
+        try {
+            if (Files.isDirectory(file)) {
+                archive.addTree(file);
+            }
+            archive.close();
+        } catch (IOException | RuntimeException e) {
+            archive.abort();
+            throw e;
+        }
+        Path zipFile = file.resolveSibling(file.getFileName() + ".zip");
+        if (!archive.getFile().equals(zipFile)) {
+            Files.move(archive.getFile(), zipFile, StandardCopyOption.REPLACE_EXISTING);
+        }
+        Zipper.delete(file);
+        return zipFile;
+    }
+
+    private static void discardArchives(Map<Path, ZipArchiveWriter> productArchives) {
+        if (productArchives != null) {
+            for (ZipArchiveWriter archive : productArchives.values()) {
+                try {
+                    archive.abort();
+                } catch (IOException e) {
+                    Logger.getRootLogger().warn("Cannot discard archive %s [%s]", archive.getFile(), e.getMessage());
                 }
             }
+            productArchives.clear();
+        }
+    }
+
+    /**
+     * Packages a downloaded product and returns its final location. By default, the product folder is compressed
+     * if so requested. When resuming, an existing archive of the product is updated rather than created again.
+     */
+    protected Path packageProduct(Path file) throws IOException {
+        if (!this.shouldCompress || !Files.isDirectory(file)) {
+            return file;
+        }
+        Logger.getRootLogger().debug("Compressing product %s", file.getFileName());
+        Zipper.compress(file, file.getFileName().toString(), this.shouldDeleteAfterCompression,
+                        DownloadMode.RESUME.equals(this.downloadMode));
+        return file.resolveSibling(file.getFileName() + ".zip");
+    }
+
+    /**
+     * Registers a task to be run on the files of the current product once all of them were downloaded,
+     * such as the repair of a metadata file. The tasks run in the repair stage of the post-processing,
+     * thus overlapping the download of the next products.
+     */
+    protected void addRepairTask(ProductTask task) {
+        this.repairTasks.add(task);
+    }
+
+    /**
+     * Records the tiles whose file downloads (already completed) all succeeded as downloaded. A file counts as
+     * downloaded only if the journal holds it as complete, since a failed download still yields its local path.
+     * The records are written by the repair stage, after the repair tasks registered so far for the product
+     * (among which those of the tiles), so that a tile skipped when resuming never misses its repair.
+     *
+     * @param productName       The name of the product
+     * @param tileDownloads     The file downloads of each tile, keyed by the tile name
+     */
+    protected void markTilesDownloaded(String productName, Map<String, List<Future<Path>>> tileDownloads) throws IOException {
+        final DownloadJournal journal = this.journal;
+        for (Map.Entry<String, List<Future<Path>>> entry : tileDownloads.entrySet()) {
+            boolean downloaded = true;
+            for (Future<Path> download : entry.getValue()) {
+                Path file = getResult(download);
+                DownloadJournal.Entry fileEntry = file != null ? journal.getFile(journal.keyOf(file)) : null;
+                downloaded &= fileEntry != null && fileEntry.isComplete();
+            }
+            if (downloaded) {
+                final String tileName = entry.getKey();
+                addRepairTask(() -> journal.markTileDownloaded(productName, tileName));
+            }
+        }
+    }
+
+    /**
+     * Sets the checksums that the files of the current product are verified against, while being downloaded.
+     * Files downloaded afterwards, which are listed here, and whose digest doesn't match, are downloaded again.
+     *
+     * @param productFolder The local folder of the product
+     * @param algorithm     The digest algorithm (for example, MD5)
+     * @param checksums     The checksums (in hexadecimal form), keyed by the file path relative to the product folder
+     */
+    protected void setExpectedChecksums(Path productFolder, String algorithm, Map<String, String> checksums) {
+        try {
+            this.expectedChecksums = checksums != null && !checksums.isEmpty() ?
+                    new FileChecksums(productFolder, algorithm, checksums) : null;
+        } catch (NoSuchAlgorithmException e) {
+            getLogger().warn("Checksums cannot be verified [%s]", e.getMessage());
+            this.expectedChecksums = null;
+        }
+    }
+
+    private void notifyBatchProgress(int completedProducts, int productCount) {
+        getLogger().debug("%s of %s products done. Buffer pool: %s", completedProducts, productCount, BufferPool.getStatistics());
+        if (batchProgressListener != null) {
+            synchronized (batchProgressListener) {
+                batchProgressListener.notifyProgress((double) completedProducts / (double) productCount);
+            }
+        }
+    }
+
+    /**
+     * Creates a copy of this downloader that shares its configuration, but has its own per-product state
+     * (current product, current step and product logger).
+     */
+    protected ProductDownloader<T> newWorker() {
+        ProductDownloader<T> worker = duplicate();
+        worker.currentProduct = null;
+        worker.currentStep = null;
+        worker.productLogger = null;
+        worker.expectedChecksums = null;
+        if (this.additionalDownloader != null) {
+            worker.additionalDownloader = this.additionalDownloader.newWorker();
+        }
+        return worker;
+    }
+
+    @SuppressWarnings("unchecked")
+    private ProductDownloader<T> duplicate() {
+        try {
+            return (ProductDownloader<T>) super.clone();
+        } catch (CloneNotSupportedException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private void openFileDownloadPool() {
+        if (this.parallelFileDownloads > 1 && this.fileDownloadPool == null) {
+            this.fileDownloadPool = Utilities.newFixedThreadPool("file-download", this.parallelFileDownloads);
+            if (this.additionalDownloader != null) {
+                this.additionalDownloader.fileDownloadPool = this.fileDownloadPool;
+            }
+        }
+    }
+
+    private void closeFileDownloadPool() {
+        if (this.fileDownloadPool != null) {
+            this.fileDownloadPool.shutdownNow();
+            this.fileDownloadPool = null;
+            if (this.additionalDownloader != null) {
+                this.additionalDownloader.fileDownloadPool = null;
+            }
+        }
+    }
+
+    private void openPipeline() {
+        if (this.store != ProductStore.LOCAL && this.pipeline == null) {
+            int threads = Math.max(1, Math.min(this.parallelDownloads, Runtime.getRuntime().availableProcessors()));
+            this.pipeline = new ProductPipeline(threads, this.parallelDownloads);
+            this.postProcessing = Collections.synchronizedList(new ArrayList<>());
+        }
+    }
+
+    /**
+     * Waits for the post-processing of the downloaded products and returns the outcome.
+     */
+    private int closePipeline() {
+        int retCode = ReturnCode.OK;
+        if (this.pipeline != null) {
+            this.pipeline.close();
+            synchronized (this.postProcessing) {
+                for (CompletableFuture<Integer> result : this.postProcessing) {
+                    int code = result.getNow(ReturnCode.DOWNLOAD_ERROR);
+                    if (code != ReturnCode.OK) {
+                        retCode = code;
+                    }
+                }
+            }
+            this.pipeline = null;
+            this.postProcessing = null;
         }
         return retCode;
     }
 
+    private void openPrefetcher(int productCount) {
+        if (this.prefetchDepth > 0 && productCount > 1 && this.store != ProductStore.LOCAL && this.prefetcher == null) {
+            this.prefetcher = new MetadataPrefetcher(PREFETCH_THREADS, PREFETCH_CAPACITY);
+        }
+    }
+
+    private void closePrefetcher() {
+        if (this.prefetcher != null) {
+            this.prefetcher.close();
+            this.prefetcher = null;
+        }
+    }
+
+    /**
+     * Starts fetching the metadata of the products that follow the given position in the batch.
+     */
+    private void prefetchAfter(List<T> products, int position) {
+        if (this.prefetcher == null) {
+            return;
+        }
+        int last = Math.min(products.size() - 1, position + this.prefetchDepth);
+        for (int i = position + 1; i <= last; i++) {
+            T product = products.get(i);
+            if (!this.journal.isProductDownloaded(product.getName()) && this.prefetcher.claim(product.getName())) {
+                try {
+                    prefetchMetadata(product);
+                } catch (RuntimeException e) {
+                    getLogger().debug("Cannot prefetch the metadata of %s [%s]", product.getName(), e.getMessage());
+                }
+            }
+        }
+    }
+
+    /**
+     * Starts fetching, in background, the metadata documents that the download of the given product begins with.
+     * By default, this is the metadata file of the product. The documents are picked up by the subsequent
+     * calls of {@link #downloadFile} and {@link #fetchMetadata} for the same urls.
+     */
+    protected void prefetchMetadata(T product) {
+        String url = getMetadataUrl(product);
+        if (url != null) {
+            prefetch(product, url, this.netUtils != null ? this.netUtils.getAuthToken() : null);
+        }
+    }
+
+    /**
+     * Schedules the fetch of a metadata document of the given product.
+     *
+     * @return  A future completed with the content of the document, or with <code>null</code> if it was not fetched
+     */
+    protected CompletableFuture<byte[]> prefetch(T product, String url, String authToken) {
+        return this.prefetcher != null ?
+                this.prefetcher.prefetch(product.getName(), url, authToken) : CompletableFuture.completedFuture(null);
+    }
+
+    /**
+     * Returns the content of a (small) metadata document, either prefetched or fetched now.
+     */
+    protected byte[] fetchMetadata(String url, String authToken) throws IOException {
+        byte[] content = this.prefetcher != null ? this.prefetcher.take(url) : null;
+        if (content == null) {
+            try (CloseableHttpResponse response = NetUtils.openConnection(url, authToken, null, RetryPolicy.Operation.METADATA)) {
+                NetUtils.checkResponse(response, url);
+                content = EntityUtils.toByteArray(response.getEntity());
+            }
+        }
+        return content;
+    }
+
+    /**
+     * Schedules the download of a file of the current product. The current step is captured at the moment of the call.
+     * If parallel file downloads are not enabled, the file is downloaded before returning.
+     * Download failures are logged and result in a <code>null</code> path.
+     */
+    protected Future<Path> downloadFileAsync(String remoteUrl, Path file) {
+        return downloadFileAsync(remoteUrl, file, null);
+    }
+
+    protected Future<Path> downloadFileAsync(String remoteUrl, Path file, String authToken) {
+        if (this.fileDownloadPool == null) {
+            return CompletableFuture.completedFuture(downloadFileQuietly(remoteUrl, file, authToken));
+        }
+        final ProductDownloader<T> task = duplicate();
+        return this.fileDownloadPool.submit(() -> task.downloadFileQuietly(remoteUrl, file, authToken));
+    }
+
+    /**
+     * Waits for the completion of the given file downloads.
+     */
+    protected void waitFor(List<Future<Path>> downloads) throws IOException {
+        for (Future<Path> download : downloads) {
+            getResult(download);
+        }
+        downloads.clear();
+    }
+
+    /**
+     * Waits for the completion of the given file download and returns the downloaded file,
+     * or <code>null</code> if the download failed.
+     */
+    protected Path getResult(Future<Path> download) throws IOException {
+        try {
+            return download.get();
+        } catch (ExecutionException e) {
+            getLogger().warn("(%s,%s) Download failed [%s]", currentProduct, currentStep, e.getCause().getMessage());
+            return null;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for file downloads");
+        }
+    }
+
+    private Path downloadFileQuietly(String remoteUrl, Path file, String authToken) {
+        try {
+            return downloadFile(remoteUrl, file, authToken);
+        } catch (IOException ex) {
+            getLogger().warn("Download for %s failed [%s]", file.getFileName(), ex.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Downloads, into the destination folder, only the entries of a remote product archive that are accepted
+     * by the given filter. The entries are fetched by byte ranges, hence the server has to support range requests.
+     * When resuming, the entries already extracted are skipped. A failed extraction is logged and counted.
+     *
+     * @param archiveUrl    The URL of the archive
+     * @param authToken     The authentication token, if any
+     * @param filter        The filter of the entry names (relative to the archive root)
+     * @return  The top folder of the archive entries, or <code>null</code> if the archive cannot be read by ranges
+     */
+    protected Path extractFromArchive(String archiveUrl, String authToken, Predicate<String> filter) throws IOException {
+        Path root = Paths.get(destination).toAbsolutePath().normalize();
+        return RemoteZip.extractProduct(archiveUrl, authToken, this.store, root,
+                                        record -> filter.test(record.getName()) && !isExtracted(root, record),
+                                        this.fileProgressListener, this.failedDownloads);
+    }
+
+    /**
+     * Checks if an archive entry was extracted by a previous run, when resuming.
+     */
+    private boolean isExtracted(Path root, ZipDirectory.Record record) {
+        if (!DownloadMode.RESUME.equals(this.downloadMode) || record.isDirectory()) {
+            return false;
+        }
+        Path file = root.resolve(record.getName());
+        try {
+            return (Files.exists(file) && Files.size(file) == record.getSize()) || isArchived(file);
+        } catch (IOException ex) {
+            return false;
+        }
+    }
+
+    /**
+     * Downloads a remote product archive and extracts, while it arrives, the entries accepted by the given filter
+     * into the destination folder. The other entries are discarded, and the archive itself is not kept.
+     * If the transfer fails, the entries not yet extracted are fetched by byte ranges or, if the server doesn't
+     * support them, by reading the archive again.
+     *
+     * @param archiveUrl    The URL of the archive
+     * @param authToken     The authentication token, if any
+     * @param filter        The filter of the entry names (relative to the archive root)
+     * @return  The top folder of the archive entries, or <code>null</code> if the archive was not found
+     */
+    protected Path extractWhileDownloading(String archiveUrl, String authToken, Predicate<String> filter) throws IOException {
+        Path root = Paths.get(destination).toAbsolutePath().normalize();
+        return new ZipStreamExtractor(root, filter, this.store)
+                .extractProduct(archiveUrl, authToken, DownloadMode.RESUME.equals(this.downloadMode),
+                                record -> filter.test(record.getName()) && !isExtracted(root, record),
+                                this.fileProgressListener, this.failedDownloads);
+    }
+
     /**
      * Instructs the downloader to compress a product when completed
      */
@@ -223,6 +853,51 @@ public abstract class ProductDownloader<T extends ProductDescriptor> {
      * Returns the URL, as a string, of the given product
      */
     protected abstract String getProductUrl(T descriptor);
+    /**
+     * Returns the URL, as a string, of the archive of the given product, if the product can be downloaded
+     * as a single archive, or <code>null</code> otherwise
+     */
+    protected String getArchiveUrl(T descriptor) { return null; }
+    /**
+     * Returns the estimated size, in bytes, of the given product, or -1 if it cannot be estimated.
+     * Unless reported by the search, the size is that of the product archive.
+     */
+    protected long estimateSize(T product) {
+        long size = product.getApproximateSize();
+        if (size < 0 && this.store != ProductStore.LOCAL) {
+            String url = getArchiveUrl(product);
+            if (url != null) {
+                size = NetUtils.getContentLength(url, this.netUtils != null ? this.netUtils.getAuthToken() : null);
+                product.setApproximateSize(size);
+            }
+        }
+        return size;
+    }
+    /**
+     * Estimates the sizes of the given products, probing the remote archives concurrently.
+     */
+    private void estimateSizes(List<T> products) {
+        if (products.isEmpty()) {
+            return;
+        }
+        ExecutorService probes = Utilities.newFixedThreadPool("size-probe", Math.min(SIZE_PROBE_THREADS, products.size()));
+        try {
+            List<Future<Long>> sizes = new ArrayList<>(products.size());
+            for (T product : products) {
+                sizes.add(probes.submit(() -> estimateSize(product)));
+            }
+            for (Future<Long> size : sizes) {
+                size.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            getLogger().warn("Cannot estimate the size of the products [%s]", e.getCause().getMessage());
+        } finally {
+            probes.shutdownNow();
+        }
+    }
+
     /**
      * Returns the URL, as a string, of the metadata file for the given product
      */
@@ -291,14 +966,12 @@ public abstract class ProductDownloader<T extends ProductDescriptor> {
 
                 @Override
                 public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
-                    Files.copy(file,
-                               destinationPath.resolve(sourcePath.relativize(file)),
-                               StandardCopyOption.REPLACE_EXISTING);
+                    copyLocalFile(file, destinationPath.resolve(sourcePath.relativize(file)));
                     return FileVisitResult.CONTINUE;
                 }
             });
         } else {
-            Files.copy(sourcePath, destinationPath, StandardCopyOption.REPLACE_EXISTING);
+            copyLocalFile(sourcePath, destinationPath);
         }
         return destinationPath;
     }
@@ -317,7 +990,26 @@ public abstract class ProductDownloader<T extends ProductDescriptor> {
     }
 
     protected Path copyFile(Path sourcePath, Path file) throws IOException {
-        return Files.exists(file) ? file : Files.copy(sourcePath, file);
+        if (!Files.exists(file)) {
+            copyLocalFile(sourcePath, file);
+        }
+        return file;
+    }
+
+    /**
+     * Copies a file from the local archive, within the bandwidth budget of the local store (if any).
+     */
+    private void copyLocalFile(Path sourcePath, Path file) throws IOException {
+        if (!BandwidthLimiter.isLimited(ProductStore.LOCAL)) {
+            Files.copy(sourcePath, file, StandardCopyOption.REPLACE_EXISTING);
+            return;
+        }
+        try (InputStream inputStream = new FileInputStream(sourcePath.toFile());
+             FileChannel outputChannel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                                                          StandardOpenOption.TRUNCATE_EXISTING);
+             FileTransfer transfer = new FileTransfer(Files.size(sourcePath), 0, null, ProductStore.LOCAL)) {
+            transfer.copy(inputStream, outputChannel, 0);
+        }
     }
 
     protected Path linkFile(Path sourcePath, Path file) throws IOException {
@@ -332,90 +1024,501 @@ public abstract class ProductDownloader<T extends ProductDescriptor> {
         return downloadFile(remoteUrl, file, this.downloadMode, authToken);
     }
 
+    /**
+     * Downloads a file, unless the same file is already being downloaded to the same location, in which case
+     * the caller waits for that transfer and shares its outcome. Failed downloads are logged and counted
+     * for each of the callers.
+     */
     private Path downloadFile(String remoteUrl, Path file, DownloadMode mode, String authToken) throws IOException {
-        HttpURLConnection connection = null;
+        String key = remoteUrl + "|" + file.toAbsolutePath().normalize();
+        while (true) {
+            CompletableFuture<Path> transfer = new CompletableFuture<>();
+            CompletableFuture<Path> current = inFlight.putIfAbsent(key, transfer);
+            if (current == null) {
+                try {
+                    Path result = transferFile(remoteUrl, file, mode, authToken);
+                    transfer.complete(result);
+                    return result;
+                } catch (TransferFailedException e) {
+                    transfer.completeExceptionally(e);
+                    return failed(remoteUrl, file, e);
+                } catch (IOException | RuntimeException | Error e) {
+                    transfer.completeExceptionally(e);
+                    throw e;
+                } finally {
+                    inFlight.remove(key, transfer);
+                }
+            }
+            Logger.getRootLogger().debug("%s is already being downloaded, waiting for the transfer to complete", file.getFileName());
+            try {
+                return current.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException(String.format("Interrupted while waiting for the download of %s", file.getFileName()));
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof TransferFailedException) {
+                    return failed(remoteUrl, file, (TransferFailedException) cause);
+                }
+                if (!(cause instanceof InterruptedIOException) || cause instanceof SocketTimeoutException) {
+                    this.failedDownloads.incrementAndGet();
+                    throw cause instanceof IOException ? (IOException) cause : new IOException(cause);
+                }
+                // the thread that owned the transfer was interrupted, the file is still needed by this one
+                Logger.getRootLogger().debug("Download of %s was abandoned by another worker, retrying", file.getFileName());
+            }
+        }
+    }
+
+    private Path failed(String remoteUrl, Path file, TransferFailedException e) throws IOException {
+        this.failedDownloads.incrementAndGet();
+        getLogger().error(errorMessage, remoteUrl, e.getMessage());
+        return Utilities.ensurePermissions(file);
+    }
+
+    /**
+     * Downloads a file, retrying the transient failures according to the policy of the kind of file.
+     * A retry resumes the transfer whenever the bytes already on disk can be trusted. A file whose content
+     * doesn't match the expected checksum is downloaded again once.
+     */
+    private Path transferFile(String remoteUrl, Path file, DownloadMode mode, String authToken) throws IOException {
+        RetryPolicy.Operation operation = RetryPolicy.forFile(file.getFileName().toString());
+        RetryPolicy policy = RetryPolicy.get(operation);
+        boolean checksumFailed = false;
+        byte[] prefetched = this.prefetcher != null ? this.prefetcher.take(remoteUrl) : null;
+        if (prefetched != null) {
+            try {
+                return storePrefetched(file, prefetched);
+            } catch (ChecksumException e) {
+                getLogger().warn("%s. File will be downloaded again", e.getMessage());
+                Files.deleteIfExists(file);
+                mode = DownloadMode.OVERWRITE;
+                checksumFailed = true;
+            }
+        }
+        int reconnects = 0;
+        for (int attempt = 1; ; attempt++) {
+            try {
+                return fetchFile(remoteUrl, file, mode, authToken, operation);
+            } catch (FileNotFoundException fnex) {
+                getLogger().warn(errorMessage, remoteUrl, "No such file");
+                return null;
+            } catch (ChecksumException e) {
+                if (checksumFailed) {
+                    throw new TransferFailedException(e.getMessage());
+                }
+                getLogger().warn("%s. File will be downloaded again", e.getMessage());
+                Files.deleteIfExists(file);
+                mode = DownloadMode.OVERWRITE;
+                checksumFailed = true;
+                attempt--;
+            } catch (IOException ex) {
+                if (ex instanceof StalledTransferException && reconnects++ < MAX_STALL_RECONNECTS) {
+                    // a stalled stream is resumed right away, on a new connection, from the bytes already written
+                    getLogger().warn("%s of %s. Reconnecting", ex.getMessage(), file.getFileName());
+                    mode = DownloadMode.RESUME;
+                    attempt--;
+                    continue;
+                }
+                if (!policy.isRetryable(ex)) {
+                    if (ex instanceof InterruptedIOException && !(ex instanceof SocketTimeoutException)) {
+                        // the worker was interrupted, the product has to be abandoned
+                        this.failedDownloads.incrementAndGet();
+                        throw ex;
+                    }
+                } else if (attempt < policy.getMaxAttempts()) {
+                    long delay = policy.getDelay(attempt, ex);
+                    getLogger().warn("Attempt %s of %s for %s failed [%s]. Retrying in %s ms",
+                                     attempt, policy.getMaxAttempts(), file.getFileName(), ex.getMessage(), delay);
+                    policy.sleep(delay);
+                    if (canResume(file)) {
+                        mode = DownloadMode.RESUME;
+                    }
+                    continue;
+                }
+                throw new TransferFailedException(ex.getMessage());
+            } catch (RuntimeException ex) {
+                throw new TransferFailedException(ex.getMessage());
+            }
+        }
+    }
+
+    private Path storePrefetched(Path file, byte[] content) throws IOException {
+        String journalKey = this.journal.keyOf(file);
+        Files.write(file, content);
+        verifyLocalFile(file, journalKey, content.length);
+        this.journal.recordFile(journalKey, DownloadJournal.State.COMPLETE, content.length, content.length, null, null);
+        getLogger().info(completeMessage, currentProduct, currentStep, file.getFileName(), 0);
+        return Utilities.ensurePermissions(file);
+    }
+
+    /**
+     * Checks if a failed transfer left on disk bytes that can be safely resumed, either as a segmented download
+     * or as a partial file whose remote version can be validated.
+     */
+    private boolean canResume(Path file) throws IOException {
+        if (SegmentedDownload.isPending(file)) {
+            return true;
+        }
+        DownloadJournal.Entry entry = this.journal.getFile(this.journal.keyOf(file));
+        return Files.exists(file) && entry != null && entry.canResume(Files.size(file));
+    }
+
+    private Path fetchFile(String remoteUrl, Path file, DownloadMode mode, String authToken,
+                           RetryPolicy.Operation operation) throws IOException {
+        CloseableHttpResponse response = null;
+        String journalKey = this.journal.keyOf(file);
         try {
             Logger.getRootLogger().debug("Begin download for %s", remoteUrl);
-            connection = NetUtils.openConnection(remoteUrl, authToken);
-            long remoteFileLength = connection.getContentLengthLong();
-            long localFileLength = 0;
-            if (Files.exists(file)) {
-                localFileLength = Files.size(file);
-                if (localFileLength != remoteFileLength) {
-                    if (DownloadMode.RESUME.equals(mode)) {
-                        connection.disconnect();
-                        connection = NetUtils.openConnection(remoteUrl, authToken);
-                        connection.setRequestProperty("Range", "bytes=" + localFileLength + "-");
+            DownloadJournal.Entry entry = this.journal.getFile(journalKey);
+            long localFileLength = Files.exists(file) ? Files.size(file) : -1;
+            if (DownloadMode.RESUME.equals(mode) && entry != null && entry.isComplete() && localFileLength == entry.bytes) {
+                Logger.getRootLogger().debug("File already downloaded");
+                getLogger().info(completeMessage, currentProduct, currentStep, file.getFileName(), 0);
+                return Utilities.ensurePermissions(file);
+            }
+            if (localFileLength < 0 && isArchived(file)) {
+                Logger.getRootLogger().debug("File already archived");
+                getLogger().info(completeMessage, currentProduct, currentStep, file.getFileName(), 0);
+                return file;
+            }
+            // the first request is made conditional, so that a single connection is enough for any outcome
+            Map<String, String> headers = new HashMap<>();
+            long offset = 0;
+            if (localFileLength > 0 && !SegmentedDownload.isPending(file)) {
+                String validator = entry != null ? entry.getValidator() : null;
+                if (validator != null && entry.isComplete() && localFileLength == entry.bytes) {
+                    if (entry.eTag != null) {
+                        headers.put("If-None-Match", entry.eTag);
                     } else {
-                        Files.delete(file);
+                        headers.put("If-Modified-Since", entry.lastModified);
+                    }
+                } else if (DownloadMode.RESUME.equals(mode)) {
+                    offset = entry != null && entry.canResume(localFileLength) ? entry.bytes : localFileLength;
+                    headers.put("Range", "bytes=" + offset + "-");
+                    if (validator != null) {
+                        headers.put("If-Range", validator);
                     }
-                    Logger.getRootLogger().debug("Remote file size: %s. Local file size: %s. File " +
-                                                         (DownloadMode.OVERWRITE.equals(mode) ?
-                                                                 "will be downloaded again." :
-                                                                 "download will be resumed."),
-                                                 remoteFileLength,
-                                                 localFileLength);
                 }
             }
-            if (localFileLength != remoteFileLength) {
-                int kBytes = (int) (remoteFileLength / 1024);
-                getLogger().info(startMessage, currentProduct, currentStep, file.getFileName(), kBytes);
-                InputStream inputStream = null;
-                SeekableByteChannel outputStream = null;
-                try {
-                    if (this.fileProgressListener != null) {
-                        this.fileProgressListener.notifyProgress(0, 0);
-                    }
-                    //Logger.getRootLogger().debug("Local temporary file %s created", file.toString());
+            response = NetUtils.openConnection(remoteUrl, authToken, headers, operation);
+            int statusCode = response.getStatusLine().getStatusCode();
+            if (statusCode == HttpStatus.SC_NOT_MODIFIED) {
+                Logger.getRootLogger().debug("File not modified since last download");
+                getLogger().info(completeMessage, currentProduct, currentStep, file.getFileName(), 0);
+                return Utilities.ensurePermissions(file);
+            }
+            if (statusCode == HttpStatus.SC_REQUESTED_RANGE_NOT_SATISFIABLE) {
+                long remoteFileLength = NetUtils.getContentRangeLength(response);
+                if (remoteFileLength == localFileLength) {
+                    verifyLocalFile(file, journalKey, localFileLength);
+                    this.journal.recordFile(journalKey, DownloadJournal.State.COMPLETE, localFileLength, remoteFileLength, response);
+                    Logger.getRootLogger().debug("File already downloaded");
+                    getLogger().info(completeMessage, currentProduct, currentStep, file.getFileName(), 0);
+                    return Utilities.ensurePermissions(file);
+                }
+                // the local file is longer than the remote one, hence it cannot be resumed
+                response.close();
+                Files.delete(file);
+                localFileLength = -1;
+                offset = 0;
+                response = NetUtils.openConnection(remoteUrl, authToken, null, operation);
+                statusCode = response.getStatusLine().getStatusCode();
+            }
+            NetUtils.checkResponse(response, remoteUrl);
+            long remoteFileLength;
+            if (statusCode == HttpStatus.SC_PARTIAL_CONTENT) {
+                remoteFileLength = NetUtils.getContentRangeLength(response);
+                if (remoteFileLength < 0) {
+                    remoteFileLength = offset + response.getEntity().getContentLength();
+                }
+                Logger.getRootLogger().debug("Remote file size: %s. Local file size: %s. File download will be resumed.",
+                                             remoteFileLength, offset);
+            } else {
+                remoteFileLength = response.getEntity().getContentLength();
+                ZipArchiveWriter.Entry archiveEntry = localFileLength < 0 ? reserveArchiveEntry(file, remoteFileLength) : null;
+                if (archiveEntry != null) {
+                    return streamFile(response, file, journalKey, archiveEntry);
+                }
+                if (shouldDownloadSegmented(response, remoteFileLength, file, mode)) {
+                    this.journal.recordFile(journalKey, DownloadJournal.State.PARTIAL, 0, remoteFileLength, response);
+                    String eTag = NetUtils.getHeader(response, "ETag");
+                    String lastModified = NetUtils.getHeader(response, "Last-Modified");
+                    response.close();
+                    response = null;
+                    getLogger().info(startMessage, currentProduct, currentStep, file.getFileName(), remoteFileLength / 1024);
                     long start = System.currentTimeMillis();
-                    inputStream = connection.getInputStream();
-                    outputStream = Files.newByteChannel(file, EnumSet.of(StandardOpenOption.CREATE,
-                                                                         StandardOpenOption.APPEND,
-                                                                         StandardOpenOption.WRITE));
-                    outputStream.position(localFileLength);
-                    byte[] buffer = new byte[BUFFER_SIZE];
-                    int read;
-                    int totalRead = 0;
-                    long millis;
-                    Logger.getRootLogger().debug("Begin reading from input stream");
-                    while ((read = inputStream.read(buffer)) != -1) {
-                        outputStream.write(ByteBuffer.wrap(buffer, 0, read));
-                        totalRead += read;
-                        if (this.fileProgressListener != null) {
-                            millis = (System.currentTimeMillis() - start) / 1000;
-                            this.fileProgressListener.notifyProgress((double) totalRead / (double) remoteFileLength,
-                                    (double) (totalRead / 1024 / 1024) / (double) millis);
+                    new SegmentedDownload(remoteUrl, authToken, file, remoteFileLength, this.store).execute(this.segmentsPerFile,
+                                                                                                  this.fileProgressListener);
+                    // segments arrive out of order, hence the digest can only be computed once the file is complete
+                    verifyLocalFile(file, journalKey, remoteFileLength);
+                    this.journal.recordFile(journalKey, DownloadJournal.State.COMPLETE, remoteFileLength, remoteFileLength, eTag, lastModified);
+                    getLogger().debug(completeMessage, currentProduct, currentStep, file.getFileName(), (System.currentTimeMillis() - start) / 1000);
+                    return Utilities.ensurePermissions(file);
+                }
+                localFileLength = Files.exists(file) ? Files.size(file) : -1;
+                if (headers.isEmpty() && localFileLength == remoteFileLength) {
+                    verifyLocalFile(file, journalKey, localFileLength);
+                    this.journal.recordFile(journalKey, DownloadJournal.State.COMPLETE, localFileLength, remoteFileLength, response);
+                    Logger.getRootLogger().debug("File already downloaded");
+                    getLogger().info(completeMessage, currentProduct, currentStep, file.getFileName(), 0);
+                    return Utilities.ensurePermissions(file);
+                }
+                if (localFileLength >= 0) {
+                    Logger.getRootLogger().debug("Remote file size: %s. Local file size: %s. File will be downloaded again.",
+                                                 remoteFileLength, localFileLength);
+                }
+                offset = 0;
+            }
+            int kBytes = (int) (remoteFileLength / 1024);
+            getLogger().info(startMessage, currentProduct, currentStep, file.getFileName(), kBytes);
+            long start = System.currentTimeMillis();
+            this.journal.recordFile(journalKey, DownloadJournal.State.PARTIAL, offset, remoteFileLength, response);
+            MessageDigest digest = newDigest(file);
+            if (digest != null && offset > 0) {
+                FileChecksums.update(digest, file, offset);
+            }
+            try (InputStream inputStream = StallWatchdog.watch(response.getEntity().getContent(), response, this.store);
+                 FileChannel outputChannel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+                 FileTransfer transfer = new FileTransfer(remoteFileLength, offset, this.fileProgressListener, this.store)) {
+                Logger.getRootLogger().debug("Begin reading from input stream");
+                transfer.setDigest(digest);
+                if (outputChannel.size() > offset) {
+                    outputChannel.truncate(offset);
+                }
+                long position = offset;
+                long read;
+                try {
+                    while ((read = transfer.copy(inputStream, outputChannel, position, JOURNAL_INTERVAL)) > 0) {
+                        position += read;
+                        if (this.journal.isEnabled() && position != remoteFileLength) {
+                            // the journal may only record bytes that are known to be on disk
+                            transfer.flush();
+                            outputChannel.force(false);
+                            this.journal.recordFile(journalKey, DownloadJournal.State.PARTIAL, position, remoteFileLength, response);
                         }
                     }
-                    Logger.getRootLogger().debug("End reading from input stream");
-                    getLogger().debug(completeMessage, currentProduct, currentStep, file.getFileName(), (System.currentTimeMillis() - start) / 1000);
-                } finally {
-                    if (outputStream != null) outputStream.close();
-                    if (inputStream != null) inputStream.close();
+                } catch (IOException e) {
+                    // the chunks are written in order, so whatever reached the file can be resumed by a retry
+                    try {
+                        transfer.flush();
+                    } catch (IOException ignored) {
+                        // the bytes written before the failure are still valid
+                    }
+                    if (this.journal.isEnabled() && outputChannel.size() > position) {
+                        outputChannel.force(false);
+                        this.journal.recordFile(journalKey, DownloadJournal.State.PARTIAL, outputChannel.size(), remoteFileLength, response);
+                    }
+                    if (StallWatchdog.isStalled(inputStream)) {
+                        throw new StalledTransferException(String.format("Transfer stalled at byte %s", outputChannel.size()));
+                    }
+                    throw e;
                 }
-                Logger.getRootLogger().debug("End download for %s", remoteUrl);
-            } else {
-                Logger.getRootLogger().debug("File already downloaded");
-                getLogger().info(completeMessage, currentProduct, currentStep, file.getFileName(), 0);
+                Logger.getRootLogger().debug("End reading from input stream");
+            }
+            if (digest != null) {
+                verify(digest, file, journalKey, remoteFileLength);
             }
-        } catch (FileNotFoundException fnex) {
-            getLogger().warn(errorMessage, remoteUrl, "No such file");
-            file = null;
-        } catch (InterruptedIOException iioe) {
-            getLogger().error("Operation timed out");
-            throw new IOException("Operation timed out");
-        } catch (Exception ex) {
-            getLogger().error(errorMessage, remoteUrl, ex.getMessage());
+            this.journal.recordFile(journalKey, DownloadJournal.State.COMPLETE, Files.size(file), remoteFileLength, response);
+            getLogger().debug(completeMessage, currentProduct, currentStep, file.getFileName(), (System.currentTimeMillis() - start) / 1000);
+            Logger.getRootLogger().debug("End download for %s", remoteUrl);
         } finally {
-            if (connection != null) {
-                connection.disconnect();
+            if (response != null) {
+                response.close();
             }
         }
         return Utilities.ensurePermissions(file);
     }
 
+    /**
+     * Reserves the entry of a file in the archive of its product, if the product is packaged while downloading.
+     */
+    private ZipArchiveWriter.Entry reserveArchiveEntry(Path file, long length) throws IOException {
+        ZipArchiveWriter archive = length > 0 ? archiveOf(file) : null;
+        return archive != null ? archive.reserve(archiveEntryName(file), length) : null;
+    }
+
+    /**
+     * Checks if the given file is in the archive of its product, which was kept from a previous run.
+     */
+    private boolean isArchived(Path file) throws IOException {
+        ZipArchiveWriter archive = DownloadMode.RESUME.equals(this.downloadMode) ? archiveOf(file) : null;
+        return archive != null && archive.contains(archiveEntryName(file));
+    }
+
+    /**
+     * Returns the archive into which the given file is streamed, or <code>null</code> if the file is not streamed.
+     * Only the rasters are streamed, the other files are read once downloaded and thus remain on disk until
+     * the product is packaged. When resuming, the existing archive of a product is updated instead of being replaced.
+     */
+    private ZipArchiveWriter archiveOf(Path file) throws IOException {
+        Map<Path, ZipArchiveWriter> productArchives = this.archives;
+        Path folder = productArchives != null &&
+                RetryPolicy.forFile(file.getFileName().toString()) == RetryPolicy.Operation.RASTER ? productFolderOf(file) : null;
+        if (folder == null) {
+            return null;
+        }
+        synchronized (productArchives) {
+            ZipArchiveWriter archive = productArchives.get(folder);
+            if (archive == null) {
+                Path zipFile = folder.resolveSibling(folder.getFileName() + ".zip");
+                if (DownloadMode.RESUME.equals(this.downloadMode) && Files.exists(zipFile)) {
+                    try {
+                        archive = ZipArchiveWriter.open(zipFile);
+                    } catch (IOException e) {
+                        getLogger().warn("Cannot update %s, it will be created again [%s]", zipFile.getFileName(), e.getMessage());
+                    }
+                }
+                if (archive == null) {
+                    archive = new ZipArchiveWriter(folder.resolveSibling(folder.getFileName() + ".zip.part"));
+                }
+                productArchives.put(folder, archive);
+            }
+            return archive;
+        }
+    }
+
+    /**
+     * Returns the top folder (under the destination) of a file, or <code>null</code> if the file is not in such a folder.
+     */
+    private Path productFolderOf(Path file) {
+        Path root = Paths.get(destination).toAbsolutePath().normalize();
+        Path path = file.toAbsolutePath().normalize();
+        return path.startsWith(root) && root.relativize(path).getNameCount() > 1 ?
+                root.resolve(root.relativize(path).getName(0)) : null;
+    }
+
+    private String archiveEntryName(Path file) {
+        Path path = file.toAbsolutePath().normalize();
+        return productFolderOf(path).relativize(path).toString().replace('\\', '/');
+    }
+
+    /**
+     * Transfers a file straight into its entry of the product archive. A retried transfer starts again
+     * from the beginning of the entry.
+     */
+    private Path streamFile(CloseableHttpResponse response, Path file, String journalKey,
+                            ZipArchiveWriter.Entry entry) throws IOException {
+        long length = entry.getLength();
+        getLogger().info(startMessage, currentProduct, currentStep, file.getFileName(), length / 1024);
+        long start = System.currentTimeMillis();
+        MessageDigest digest = newDigest(file);
+        CRC32 crc = new CRC32();
+        long copied;
+        try (InputStream inputStream = StallWatchdog.watch(response.getEntity().getContent(), response, this.store);
+             FileTransfer transfer = new FileTransfer(length, 0, this.fileProgressListener, this.store)) {
+            transfer.setDigest(digest);
+            transfer.setChecksum(crc);
+            try {
+                copied = transfer.copy(inputStream, entry.getChannel(), entry.getDataOffset(), length);
+            } catch (IOException e) {
+                if (StallWatchdog.isStalled(inputStream)) {
+                    throw new StalledTransferException(String.format("Transfer stalled at byte %s", transfer.getTransferredBytes()));
+                }
+                throw e;
+            }
+        }
+        if (copied != length) {
+            throw new IOException(String.format("Transfer of %s ended at byte %s of %s", file.getFileName(), copied, length));
+        }
+        if (digest != null) {
+            verify(digest, file, journalKey, length);
+        }
+        entry.commit(crc.getValue());
+        getLogger().debug(completeMessage, currentProduct, currentStep, file.getFileName(), (System.currentTimeMillis() - start) / 1000);
+        return file;
+    }
+
+    private MessageDigest newDigest(Path file) {
+        FileChecksums checksums = this.expectedChecksums;
+        return checksums != null && checksums.get(file) != null ? checksums.newDigest() : null;
+    }
+
+    /**
+     * Verifies a file that was not downloaded as a single stream, by reading it from disk.
+     */
+    private void verifyLocalFile(Path file, String journalKey, long length) throws IOException {
+        MessageDigest digest = newDigest(file);
+        if (digest != null) {
+            FileChecksums.update(digest, file, length);
+            verify(digest, file, journalKey, length);
+        }
+    }
+
+    /**
+     * Compares the digest of a downloaded file with the expected checksum. If they don't match, the journal
+     * record of the file is reset, so that the file is not resumed from its corrupted content.
+     */
+    private void verify(MessageDigest digest, Path file, String journalKey, long length) throws ChecksumException {
+        String expected = this.expectedChecksums.get(file);
+        String actual = FileChecksums.toHex(digest.digest());
+        if (!expected.equals(actual)) {
+            this.journal.recordFile(journalKey, DownloadJournal.State.PARTIAL, 0, length, null);
+            throw new ChecksumException(String.format("Checksum mismatch for %s [expected %s, found %s]",
+                                                      file.getFileName(), expected, actual));
+        }
+        Logger.getRootLogger().debug("Checksum verified for %s", file.getFileName());
+    }
+
+    /**
+     * Checks if the file should be downloaded in segments. This is the case if the download of the file in segments
+     * was previously interrupted, or if the file is large enough and the server accepts byte ranges.
+     */
+    private boolean shouldDownloadSegmented(CloseableHttpResponse response, long remoteFileLength,
+                                            Path file, DownloadMode mode) throws IOException {
+        if (SegmentedDownload.isPending(file)) {
+            if (DownloadMode.RESUME.equals(mode)) {
+                return true;
+            }
+            SegmentedDownload.discard(file);
+        }
+        return this.segmentsPerFile > 1 && remoteFileLength >= this.segmentedMinSize &&
+                "bytes".equalsIgnoreCase(NetUtils.getHeader(response, "Accept-Ranges")) &&
+                !(Files.exists(file) && Files.size(file) == remoteFileLength);
+    }
+
+    /**
+     * A unit of work on the files of a downloaded product
+     */
+    protected interface ProductTask {
+        void execute() throws IOException;
+    }
+
     protected Logger.CustomLogger getLogger() {
         return productLogger != null ? productLogger : Logger.getRootLogger();
     }
 
+    /**
+     * Signals that the content of a downloaded file doesn't match its expected checksum
+     */
+    private static class ChecksumException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        ChecksumException(String message) {
+            super(message);
+        }
+    }
+
+    /**
+     * Signals that a transfer was cut because its throughput was too low
+     */
+    private static class StalledTransferException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        StalledTransferException(String message) {
+            super(message);
+        }
+    }
+
+    /**
+     * Signals that a file could not be downloaded, after all the retries allowed by the policy
+     */
+    private static class TransferFailedException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        TransferFailedException(String message) {
+            super(message);
+        }
+    }
+
 }
@@ -0,0 +1,152 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package ro.cs.products;
+
+import ro.cs.products.util.Logger;
+import ro.cs.products.util.Utilities;
+
+import java.io.InterruptedIOException;
+import java.nio.file.Path;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The stages that a product goes through after its files were transferred: repair (and verification) of the
+ * metadata, then packaging. Each stage has its own workers and accepts a bounded number of products, so that
+ * the CPU-bound work on a product overlaps the transfer of the next ones, while a slow stage eventually holds
+ * back the downloads instead of letting the products pile up on disk.
+ * The time spent by the products in each stage, including the transfer, is logged when the pipeline is closed.
+ *
+ * @author Cosmin Cara
+ */
+class ProductPipeline {
+    private final Stage download;
+    private final Stage repair;
+    private final Stage packaging;
+
+    ProductPipeline(int threads, int capacity) {
+        this.download = new Stage("download", 0, 0);
+        this.repair = new Stage("repair", threads, capacity);
+        this.packaging = new Stage("packaging", threads, capacity);
+    }
+
+    /**
+     * Records the time taken by the transfer of a product.
+     */
+    void downloaded(long millis) {
+        this.download.record(0, millis);
+    }
+
+    /**
+     * Hands a downloaded product to the repair stage and, once repaired, to the packaging stage. The calling thread
+     * waits while the repair stage is full.
+     *
+     * @param repairTask    The task of the repair stage
+     * @param packagingTask The task of the packaging stage, returning the final location of the product
+     * @return  A future completed with the final location of the product, or failed with the error of a stage
+     */
+    CompletableFuture<Path> submit(Callable<Void> repairTask, Callable<Path> packagingTask) throws InterruptedIOException {
+        CompletableFuture<Path> result = new CompletableFuture<>();
+        this.repair.submit(() -> {
+            repairTask.call();
+            // handing over from a worker of the repair stage propagates the back pressure of the packaging stage
+            this.packaging.submit(() -> {
+                result.complete(packagingTask.call());
+                return null;
+            }, result);
+            return null;
+        }, result);
+        return result;
+    }
+
+    void close() {
+        this.repair.close();
+        this.packaging.close();
+        Logger.getRootLogger().debug("Post-processing stages: %s; %s; %s", this.download, this.repair, this.packaging);
+    }
+
+    private static class Stage {
+        private final String name;
+        private final ExecutorService workers;
+        private final Semaphore slots;
+        private int count;
+        private long totalWait;
+        private long totalTime;
+        private long maxTime;
+
+        Stage(String name, int threads, int capacity) {
+            this.name = name;
+            this.workers = threads > 0 ? Utilities.newFixedThreadPool(name, threads) : null;
+            this.slots = new Semaphore(threads + capacity);
+        }
+
+        void submit(Callable<Void> task, CompletableFuture<?> result) throws InterruptedIOException {
+            try {
+                this.slots.acquire();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException(String.format("Interrupted while waiting for the %s stage", this.name));
+            }
+            long queued = System.currentTimeMillis();
+            try {
+                this.workers.execute(() -> {
+                    long start = System.currentTimeMillis();
+                    try {
+                        task.call();
+                    } catch (Exception e) {
+                        result.completeExceptionally(e);
+                    } finally {
+                        this.slots.release();
+                        record(start - queued, System.currentTimeMillis() - start);
+                    }
+                });
+            } catch (RuntimeException e) {
+                this.slots.release();
+                result.completeExceptionally(e);
+            }
+        }
+
+        synchronized void record(long wait, long time) {
+            this.count++;
+            this.totalWait += wait;
+            this.totalTime += time;
+            this.maxTime = Math.max(this.maxTime, time);
+        }
+
+        void close() {
+            this.workers.shutdown();
+            try {
+                this.workers.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                this.workers.shutdownNow();
+            }
+        }
+
+        @Override
+        public synchronized String toString() {
+            return this.count == 0 ? String.format("%s: none", this.name) :
+                    String.format("%s: %s products, mean wait %s ms, mean time %s ms, max time %s ms",
+                                  this.name, this.count, this.totalWait / this.count, this.totalTime / this.count, this.maxTime);
+        }
+    }
+}
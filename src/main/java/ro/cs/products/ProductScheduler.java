@@ -0,0 +1,142 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package ro.cs.products;
+
+import ro.cs.products.base.ProductDescriptor;
+import ro.cs.products.base.SchedulingPolicy;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.ToLongFunction;
+
+/**
+ * Orders the products of a batch according to a scheduling policy. The products are handed to the download
+ * workers in this order, hence it is also the order in which they start.
+ * Products whose size cannot be estimated are assumed to have the average size of the others.
+ *
+ * @author Cosmin Cara
+ */
+class ProductScheduler {
+
+    static <T extends ProductDescriptor> List<T> schedule(List<T> products, SchedulingPolicy policy,
+                                                          ToLongFunction<T> sizeEstimator) {
+        if (policy == null || policy == SchedulingPolicy.FIFO || products.size() < 2) {
+            return products;
+        }
+        Map<T, Long> sizes = estimateSizes(products, sizeEstimator);
+        Comparator<T> bySize = Comparator.comparingLong(sizes::get);
+        Comparator<T> byDeadline = Comparator.comparingLong(p -> p.getDeadline() > 0 ? p.getDeadline() : Long.MAX_VALUE);
+        Comparator<T> byPriority = Comparator.comparingInt(p -> -p.getPriority());
+        List<T> ordered = new ArrayList<>(products);
+        switch (policy) {
+            case SIZE:
+                ordered.sort(bySize);
+                break;
+            case DEADLINE:
+                ordered.sort(byDeadline.thenComparing(byPriority).thenComparing(bySize));
+                break;
+            case PRIORITY:
+                ordered.sort(byPriority.thenComparing(byDeadline).thenComparing(bySize));
+                break;
+            case FAIR:
+                ordered = shareFairly(ordered, sizes, bySize);
+                break;
+        }
+        return ordered;
+    }
+
+    /**
+     * Returns the products whose size is not known and is needed to order them with the given policy: all of them
+     * for the policies ordering by size, only those tied with another product on deadline and priority otherwise.
+     */
+    static <T extends ProductDescriptor> List<T> needingSize(List<T> products, SchedulingPolicy policy) {
+        List<T> needed = new ArrayList<>();
+        if (policy == null || policy == SchedulingPolicy.FIFO || products.size() < 2) {
+            return needed;
+        }
+        Map<String, Integer> ties = new HashMap<>();
+        if (policy == SchedulingPolicy.DEADLINE || policy == SchedulingPolicy.PRIORITY) {
+            for (T product : products) {
+                ties.merge(product.getDeadline() + "/" + product.getPriority(), 1, Integer::sum);
+            }
+        }
+        for (T product : products) {
+            if (product.getApproximateSize() < 0 &&
+                    (ties.isEmpty() || ties.get(product.getDeadline() + "/" + product.getPriority()) > 1)) {
+                needed.add(product);
+            }
+        }
+        return needed;
+    }
+
+    /**
+     * Interleaves the groups of products, always picking the next product from the group that was given
+     * the fewest bytes so far.
+     */
+    private static <T extends ProductDescriptor> List<T> shareFairly(List<T> products, Map<T, Long> sizes, Comparator<T> bySize) {
+        Map<String, List<T>> groups = new LinkedHashMap<>();
+        for (T product : products) {
+            groups.computeIfAbsent(product.getGroup() != null ? product.getGroup() : "", g -> new ArrayList<>()).add(product);
+        }
+        List<Deque<T>> queues = new ArrayList<>();
+        for (List<T> group : groups.values()) {
+            group.sort(bySize);
+            queues.add(new ArrayDeque<>(group));
+        }
+        long[] scheduled = new long[queues.size()];
+        List<T> ordered = new ArrayList<>(products.size());
+        while (ordered.size() < products.size()) {
+            int next = -1;
+            for (int i = 0; i < queues.size(); i++) {
+                if (!queues.get(i).isEmpty() && (next < 0 || scheduled[i] < scheduled[next])) {
+                    next = i;
+                }
+            }
+            T product = queues.get(next).poll();
+            // products of unknown size still count, so that the groups at least take turns
+            scheduled[next] += Math.max(1, sizes.get(product));
+            ordered.add(product);
+        }
+        return ordered;
+    }
+
+    private static <T extends ProductDescriptor> Map<T, Long> estimateSizes(List<T> products, ToLongFunction<T> sizeEstimator) {
+        Map<T, Long> sizes = new IdentityHashMap<>();
+        long total = 0;
+        int known = 0;
+        for (T product : products) {
+            long size = sizeEstimator.applyAsLong(product);
+            sizes.put(product, size);
+            if (size >= 0) {
+                total += size;
+                known++;
+            }
+        }
+        long average = known > 0 ? total / known : 0;
+        sizes.replaceAll((product, size) -> size >= 0 ? size : average);
+        return sizes;
+    }
+}
@@ -0,0 +1,419 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package ro.cs.products;
+
+import org.apache.http.HttpStatus;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.util.EntityUtils;
+import ro.cs.products.sentinel2.ProductStore;
+import ro.cs.products.util.Logger;
+import ro.cs.products.util.NetUtils;
+import ro.cs.products.util.RetryPolicy;
+import ro.cs.products.util.ZipDirectory;
+
+import java.io.EOFException;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Predicate;
+import java.util.zip.CRC32;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+import java.util.zip.ZipEntry;
+
+/**
+ * Reader of a zip archive that is accessed only by byte ranges, without downloading it entirely.
+ * The end record and the central directory are read first; then the selected entries are fetched,
+ * the entries that are close to each other being grouped into a single range request, and extracted
+ * while they arrive. A failed range is retried from the first entry not yet extracted.
+ * The bandwidth limits are charged with the bytes of the ranges, before they are decompressed.
+ *
+ * @author Cosmin Cara
+ */
+class RemoteZip {
+    private static final int TAIL_SIZE = 22 + 0xFFFF;
+    private static final int LOCAL_HEADER_SIGNATURE = 0x04034b50;
+    private static final int LOCAL_HEADER_SIZE = 30;
+    private static final long MAX_GAP = 1024 * 1024;
+
+    private final String url;
+    private final String authToken;
+    private final ProductStore store;
+    private ZipDirectory directory;
+
+    /**
+     * Extracts under the given folder the wanted entries of a remote product archive, whose entries are all
+     * in a single product folder. The entries are fetched by byte ranges, hence the server has to support them.
+     * A failed extraction is logged and counted, the entries extracted until then are kept.
+     *
+     * @param wanted    The entries to be extracted
+     * @param failures  The counter of the failed downloads of the product
+     * @return  The product folder, or <code>null</code> if the archive cannot be read by ranges
+     */
+    static Path extractProduct(String url, String authToken, ProductStore store, Path root,
+                               Predicate<ZipDirectory.Record> wanted, ProgressListener listener,
+                               AtomicInteger failures) throws IOException {
+        RemoteZip archive;
+        try {
+            archive = open(url, authToken, store);
+        } catch (IOException ex) {
+            if (ex instanceof InterruptedIOException && !(ex instanceof SocketTimeoutException)) {
+                throw ex;
+            }
+            Logger.getRootLogger().warn("Cannot read the entries of %s [%s]", url, ex.getMessage());
+            return null;
+        }
+        String topFolder = null;
+        List<ZipDirectory.Record> entries = new ArrayList<>();
+        long size = 0;
+        for (ZipDirectory.Record record : archive.getRecords()) {
+            String name = record.getName();
+            String folder = name.indexOf('/') > 0 ? name.substring(0, name.indexOf('/')) : null;
+            if (topFolder == null) {
+                topFolder = folder;
+            }
+            if (folder == null || !folder.equals(topFolder)) {
+                Logger.getRootLogger().warn("The entries of %s are not in a single product folder", url);
+                return null;
+            }
+            if (wanted.test(record)) {
+                entries.add(record);
+                size += record.getCompressedSize();
+            }
+        }
+        if (topFolder == null) {
+            return null;
+        }
+        Logger.getRootLogger().info("Extracting %s entries of %s [size: %skB]", entries.size(), topFolder, size / 1024);
+        long start = System.currentTimeMillis();
+        try {
+            archive.extract(entries, root, listener);
+        } catch (IOException ex) {
+            failures.incrementAndGet();
+            if (ex instanceof InterruptedIOException && !(ex instanceof SocketTimeoutException)) {
+                throw ex;
+            }
+            Logger.getRootLogger().error("Cannot download %s: %s", url, ex.getMessage());
+        }
+        Logger.getRootLogger().debug("Entries of %s extracted in %ss", topFolder, (System.currentTimeMillis() - start) / 1000);
+        return root.resolve(topFolder);
+    }
+
+    /**
+     * Reads the central directory of a remote archive. The server has to accept byte ranges, otherwise
+     * the archive cannot be read this way.
+     */
+    static RemoteZip open(String url, String authToken, ProductStore store) throws IOException {
+        byte[] tail;
+        long length;
+        try (CloseableHttpResponse response = NetUtils.openConnection(url, authToken,
+                                                                      Collections.singletonMap("Range", "bytes=-" + TAIL_SIZE),
+                                                                      RetryPolicy.Operation.METADATA)) {
+            NetUtils.checkResponse(response, url);
+            int statusCode = response.getStatusLine().getStatusCode();
+            length = NetUtils.getContentRangeLength(response);
+            if (statusCode != HttpStatus.SC_PARTIAL_CONTENT || length < 0) {
+                throw new IOException(String.format("Range request returned code %s", statusCode));
+            }
+            tail = EntityUtils.toByteArray(response.getEntity());
+        }
+        RemoteZip archive = new RemoteZip(url, authToken, store);
+        long tailOffset = length - tail.length;
+        // the directory is usually within the tail already fetched
+        archive.directory = ZipDirectory.read((offset, count) -> offset >= tailOffset && offset + count <= length ?
+                Arrays.copyOfRange(tail, (int) (offset - tailOffset), (int) (offset - tailOffset) + count) :
+                archive.read(offset, count), length);
+        Logger.getRootLogger().debug("Archive %s has %s entries", url, archive.directory.getRecords().size());
+        return archive;
+    }
+
+    private RemoteZip(String url, String authToken, ProductStore store) {
+        this.url = url;
+        this.authToken = authToken;
+        this.store = store;
+    }
+
+    List<ZipDirectory.Record> getRecords() {
+        return this.directory.getRecords();
+    }
+
+    /**
+     * Extracts the given entries of the archive under the given folder.
+     *
+     * @param records   The entries to extract
+     * @param root      The folder to which the entry names are relative
+     * @param listener  Optional listener for the progress of each entry
+     */
+    void extract(List<ZipDirectory.Record> records, Path root, ProgressListener listener) throws IOException {
+        List<ZipDirectory.Record> all = new ArrayList<>(this.directory.getRecords());
+        all.sort(Comparator.comparingLong(ZipDirectory.Record::getLocalHeaderOffset));
+        List<ZipDirectory.Record> selected = new ArrayList<>(records);
+        selected.sort(Comparator.comparingLong(ZipDirectory.Record::getLocalHeaderOffset));
+        // an entry ends where the next one begins, which also accounts for its data descriptor, if any
+        List<Span> spans = new ArrayList<>();
+        Span span = null;
+        int index = 0;
+        for (ZipDirectory.Record record : selected) {
+            while (index < all.size() && all.get(index).getLocalHeaderOffset() <= record.getLocalHeaderOffset()) {
+                index++;
+            }
+            long end = index < all.size() ? all.get(index).getLocalHeaderOffset() : this.directory.getOffset();
+            if (span == null || record.getLocalHeaderOffset() - span.end > MAX_GAP) {
+                span = new Span();
+                spans.add(span);
+            }
+            span.records.add(record);
+            span.end = end;
+        }
+        Logger.getRootLogger().debug("%s entries of %s to be fetched with %s range requests", selected.size(), this.url, spans.size());
+        for (Span current : spans) {
+            fetch(current, root, listener);
+        }
+    }
+
+    private void fetch(Span span, Path root, ProgressListener listener) throws IOException {
+        RetryPolicy policy = RetryPolicy.get(RetryPolicy.Operation.RASTER);
+        for (int attempt = 1; ; attempt++) {
+            try {
+                fetchRange(span, root, listener);
+                return;
+            } catch (IOException ex) {
+                if (!policy.isRetryable(ex) || attempt >= policy.getMaxAttempts()) {
+                    throw ex;
+                }
+                long delay = policy.getDelay(attempt, ex);
+                Logger.getRootLogger().warn("Attempt %s of %s for the range %s-%s of %s failed [%s]. Retrying in %s ms",
+                                            attempt, policy.getMaxAttempts(), span.start(), span.end - 1, this.url,
+                                            ex.getMessage(), delay);
+                policy.sleep(delay);
+            }
+        }
+    }
+
+    /**
+     * Fetches the range of the entries of a span not yet extracted, and extracts them in order.
+     */
+    private void fetchRange(Span span, Path root, ProgressListener listener) throws IOException {
+        long position = span.start();
+        try (CloseableHttpResponse response = NetUtils.openConnection(this.url, this.authToken,
+                                                                      Collections.singletonMap("Range", "bytes=" + position + "-" + (span.end - 1)),
+                                                                      RetryPolicy.Operation.RASTER)) {
+            NetUtils.checkResponse(response, this.url);
+            int statusCode = response.getStatusLine().getStatusCode();
+            if (statusCode != HttpStatus.SC_PARTIAL_CONTENT) {
+                throw new IOException(String.format("Range request returned code %s", statusCode));
+            }
+            try (InputStream inputStream = BandwidthLimiter.throttle(StallWatchdog.watch(response.getEntity().getContent(),
+                                                                                         response, this.store), this.store)) {
+                while (!span.records.isEmpty()) {
+                    ZipDirectory.Record record = span.records.get(0);
+                    skip(inputStream, record.getLocalHeaderOffset() - position);
+                    position = record.getLocalHeaderOffset();
+                    position += extract(inputStream, record, root, listener);
+                    span.records.remove(0);
+                }
+            }
+        }
+    }
+
+    /**
+     * Extracts an entry from a stream positioned at its local header.
+     *
+     * @return  The number of bytes read from the stream
+     */
+    private long extract(InputStream inputStream, ZipDirectory.Record record, Path root, ProgressListener listener) throws IOException {
+        ByteBuffer header = ByteBuffer.wrap(readFully(inputStream, LOCAL_HEADER_SIZE)).order(ByteOrder.LITTLE_ENDIAN);
+        if (header.getInt(0) != LOCAL_HEADER_SIGNATURE) {
+            throw new IOException(String.format("Invalid local header for %s", record.getName()));
+        }
+        int headerLength = LOCAL_HEADER_SIZE + (header.getShort(26) & 0xFFFF) + (header.getShort(28) & 0xFFFF);
+        skip(inputStream, headerLength - LOCAL_HEADER_SIZE);
+        Path file = root.resolve(record.getName()).normalize();
+        if (!file.startsWith(root.normalize())) {
+            throw new IOException(String.format("Entry %s is outside of the target folder", record.getName()));
+        }
+        if (record.isDirectory()) {
+            Files.createDirectories(file);
+            return headerLength;
+        }
+        if (record.getMethod() != ZipEntry.STORED && record.getMethod() != ZipEntry.DEFLATED) {
+            throw new IOException(String.format("Unsupported compression method %s for %s", record.getMethod(), record.getName()));
+        }
+        Files.createDirectories(file.getParent());
+        InputStream entryStream = new EntryInputStream(inputStream, record.getCompressedSize());
+        Inflater inflater = record.getMethod() == ZipEntry.DEFLATED ? new Inflater(true) : null;
+        CRC32 crc = new CRC32();
+        long extracted;
+        boolean completed = false;
+        try {
+            try (FileChannel outputChannel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                                                              StandardOpenOption.TRUNCATE_EXISTING);
+                 FileTransfer transfer = new FileTransfer(record.getSize(), 0, listener, this.store)) {
+                transfer.setChecksum(crc);
+                // the range stream is throttled already
+                transfer.setThrottled(false);
+                extracted = transfer.copy(inflater != null ? new InflaterInputStream(entryStream, inflater) : entryStream,
+                                          outputChannel, 0, Long.MAX_VALUE);
+            }
+            completed = true;
+        } finally {
+            if (inflater != null) {
+                inflater.end();
+            }
+            if (!completed) {
+                Files.deleteIfExists(file);
+            }
+        }
+        // the compressed data may be followed by padding that the inflater did not need
+        skip(entryStream, Long.MAX_VALUE);
+        if (extracted != record.getSize() || crc.getValue() != record.getCrc()) {
+            Files.deleteIfExists(file);
+            throw new IOException(String.format("Corrupted entry %s [expected %s bytes with CRC %08x, found %s bytes with CRC %08x]",
+                                                record.getName(), record.getSize(), record.getCrc(), extracted, crc.getValue()));
+        }
+        return headerLength + record.getCompressedSize();
+    }
+
+    private byte[] read(long offset, int count) throws IOException {
+        try (CloseableHttpResponse response = NetUtils.openConnection(this.url, this.authToken,
+                                                                      Collections.singletonMap("Range", "bytes=" + offset + "-" + (offset + count - 1)),
+                                                                      RetryPolicy.Operation.METADATA)) {
+            NetUtils.checkResponse(response, this.url);
+            int statusCode = response.getStatusLine().getStatusCode();
+            if (statusCode != HttpStatus.SC_PARTIAL_CONTENT) {
+                throw new IOException(String.format("Range request returned code %s", statusCode));
+            }
+            try (InputStream inputStream = response.getEntity().getContent()) {
+                return readFully(inputStream, count);
+            }
+        }
+    }
+
+    private static byte[] readFully(InputStream inputStream, int count) throws IOException {
+        byte[] buffer = new byte[count];
+        int done = 0;
+        while (done < count) {
+            int read = inputStream.read(buffer, done, count - done);
+            if (read < 0) {
+                throw new EOFException(String.format("Range ended at byte %s of %s", done, count));
+            }
+            done += read;
+        }
+        return buffer;
+    }
+
+    /**
+     * Skips the given number of bytes, or up to the end of the stream if there are fewer.
+     */
+    private static void skip(InputStream inputStream, long count) throws IOException {
+        byte[] buffer = new byte[(int) Math.min(count, 64 * 1024)];
+        while (count > 0) {
+            int read = inputStream.read(buffer, 0, (int) Math.min(count, buffer.length));
+            if (read < 0) {
+                if (count == Long.MAX_VALUE) {
+                    return;
+                }
+                throw new EOFException("Range ended prematurely");
+            }
+            if (count != Long.MAX_VALUE) {
+                count -= read;
+            }
+        }
+    }
+
+    /**
+     * The entries fetched with a single range request
+     */
+    private static class Span {
+        private final List<ZipDirectory.Record> records = new ArrayList<>();
+        private long end;
+
+        long start() {
+            return this.records.get(0).getLocalHeaderOffset();
+        }
+    }
+
+    /**
+     * The compressed bytes of an entry. Closing it leaves the underlying stream open for the next entries.
+     */
+    private static class EntryInputStream extends FilterInputStream {
+        private long remaining;
+
+        EntryInputStream(InputStream in, long length) {
+            super(in);
+            this.remaining = length;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (this.remaining <= 0) {
+                return -1;
+            }
+            int value = super.read();
+            if (value < 0) {
+                throw new EOFException("Range ended prematurely");
+            }
+            this.remaining--;
+            return value;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (this.remaining <= 0) {
+                return -1;
+            }
+            int read = super.read(b, off, (int) Math.min(len, this.remaining));
+            if (read < 0) {
+                throw new EOFException("Range ended prematurely");
+            }
+            this.remaining -= read;
+            return read;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = super.skip(Math.min(n, this.remaining));
+            this.remaining -= skipped;
+            return skipped;
+        }
+
+        @Override
+        public int available() throws IOException {
+            return (int) Math.min(super.available(), this.remaining);
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
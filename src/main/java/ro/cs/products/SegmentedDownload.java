@@ -0,0 +1,305 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package ro.cs.products;
+
+import org.apache.http.HttpStatus;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import ro.cs.products.sentinel2.ProductStore;
+import ro.cs.products.util.Logger;
+import ro.cs.products.util.NetUtils;
+import ro.cs.products.util.RetryPolicy;
+import ro.cs.products.util.Utilities;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Downloads a single remote file over several connections, each one fetching a byte range
+ * of the file and writing it at its offset into a preallocated local file.
+ * The completion state of each segment is kept in a side file, so that an interrupted download
+ * is resumed segment by segment.
+ *
+ * @author Cosmin Cara
+ */
+class SegmentedDownload {
+    private static final String STATE_FILE_EXTENSION = ".segments";
+    private static final long SAVE_INTERVAL = 8 * 1024 * 1024;
+    private static final long COPY_CHUNK = 1024 * 1024;
+    private static final int MAX_STALL_RECONNECTS = 10;
+
+    private final String remoteUrl;
+    private final String authToken;
+    private final Path file;
+    private final Path stateFile;
+    private final long length;
+    private final ProductStore store;
+    private long[] starts;
+    private long[] ends;
+    private long[] completed;
+    private long unsavedBytes;
+
+    /**
+     * Checks if the given file is the target of an interrupted segmented download.
+     */
+    static boolean isPending(Path file) {
+        return Files.exists(stateFileOf(file));
+    }
+
+    /**
+     * Discards the state of an interrupted segmented download, together with the partial file.
+     */
+    static void discard(Path file) throws IOException {
+        Files.deleteIfExists(stateFileOf(file));
+        Files.deleteIfExists(file);
+    }
+
+    private static Path stateFileOf(Path file) {
+        return file.resolveSibling(file.getFileName().toString() + STATE_FILE_EXTENSION);
+    }
+
+    SegmentedDownload(String remoteUrl, String authToken, Path file, long length, ProductStore store) {
+        this.remoteUrl = remoteUrl;
+        this.authToken = authToken;
+        this.file = file;
+        this.stateFile = stateFileOf(file);
+        this.length = length;
+        this.store = store;
+    }
+
+    /**
+     * Performs (or resumes) the download of the file.
+     *
+     * @param segmentCount  The number of segments for a new download. A resumed download keeps its initial layout.
+     * @param listener      Optional listener for the download progress
+     */
+    Path execute(int segmentCount, ProgressListener listener) throws IOException {
+        // segments beyond the number of connections allowed to the host would only wait for each other
+        int connections = NetUtils.getConnectionLimit(this.remoteUrl);
+        if (!loadState()) {
+            initState(Math.min(segmentCount, connections));
+            Files.deleteIfExists(this.file);
+        }
+        try (RandomAccessFile randomAccessFile = new RandomAccessFile(this.file.toFile(), "rw")) {
+            if (randomAccessFile.length() != this.length) {
+                randomAccessFile.setLength(this.length);
+            }
+            FileChannel channel = randomAccessFile.getChannel();
+            saveState(channel);
+            ExecutorService workers = Utilities.newFixedThreadPool("segment", Math.min(this.starts.length, connections));
+            List<Future<Void>> results = new ArrayList<>();
+            FileTransfer transfer = new FileTransfer(this.length, downloadedBytes(), listener, this.store);
+            try {
+                for (int i = 0; i < this.starts.length; i++) {
+                    if (remaining(i) > 0) {
+                        final int segment = i;
+                        results.add(workers.submit(() -> {
+                            fetch(segment, channel, transfer);
+                            return null;
+                        }));
+                    }
+                }
+                IOException failure = null;
+                for (Future<Void> result : results) {
+                    try {
+                        result.get();
+                    } catch (ExecutionException e) {
+                        Throwable cause = e.getCause();
+                        failure = cause instanceof IOException ? (IOException) cause : new IOException(cause);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        failure = new InterruptedIOException("Segmented download interrupted");
+                    }
+                }
+                if (failure != null) {
+                    throw failure;
+                }
+            } finally {
+                boolean written = false;
+                try {
+                    transfer.close();
+                    written = true;
+                } finally {
+                    workers.shutdownNow();
+                    if (written) {
+                        synchronized (this) {
+                            saveState(channel);
+                        }
+                    }
+                }
+            }
+        }
+        Files.deleteIfExists(this.stateFile);
+        return this.file;
+    }
+
+    private void fetch(int segment, FileChannel channel, FileTransfer transfer) throws IOException {
+        int reconnects = 0;
+        while (true) {
+            try {
+                fetchRange(segment, channel, transfer);
+                return;
+            } catch (StalledSegmentException e) {
+                // the segment continues on a new connection, from its last completed byte
+                if (reconnects++ >= MAX_STALL_RECONNECTS) {
+                    throw e;
+                }
+                Logger.getRootLogger().debug("%s. Reconnecting", e.getMessage());
+            }
+        }
+    }
+
+    private void fetchRange(int segment, FileChannel channel, FileTransfer transfer) throws IOException {
+        long position = this.starts[segment] + this.completed[segment];
+        try (CloseableHttpResponse response = NetUtils.openConnection(this.remoteUrl, this.authToken,
+                                                                      Collections.singletonMap("Range", "bytes=" + position + "-" + this.ends[segment]),
+                                                                      RetryPolicy.Operation.RASTER)) {
+            NetUtils.checkResponse(response, this.remoteUrl);
+            int responseCode = response.getStatusLine().getStatusCode();
+            if (responseCode != HttpStatus.SC_PARTIAL_CONTENT) {
+                throw new IOException(String.format("Range request for segment %s returned code %s", segment, responseCode));
+            }
+            Logger.getRootLogger().debug("Segment %s of %s: bytes %s-%s", segment, this.file.getFileName(), position, this.ends[segment]);
+            try (InputStream inputStream = StallWatchdog.watch(response.getEntity().getContent(), response, this.store)) {
+                long read;
+                try {
+                    while (remaining(segment) > 0 &&
+                            (read = transfer.copy(inputStream, channel, position, Math.min(COPY_CHUNK, remaining(segment)))) > 0) {
+                        position += read;
+                        synchronized (this) {
+                            this.completed[segment] += read;
+                            this.unsavedBytes += read;
+                            if (this.unsavedBytes >= SAVE_INTERVAL) {
+                                // the state may only record bytes that are known to be written
+                                transfer.flush();
+                                saveState(channel);
+                            }
+                        }
+                    }
+                } catch (IOException e) {
+                    if (StallWatchdog.isStalled(inputStream)) {
+                        throw new StalledSegmentException(String.format("Segment %s of %s stalled at byte %s",
+                                                                        segment, this.file.getFileName(), position));
+                    }
+                    throw e;
+                }
+            }
+            if (remaining(segment) > 0) {
+                throw new IOException(String.format("Segment %s ended prematurely", segment));
+            }
+        }
+    }
+
+    private synchronized long remaining(int segment) {
+        return this.ends[segment] - this.starts[segment] + 1 - this.completed[segment];
+    }
+
+    private long downloadedBytes() {
+        long done = 0;
+        for (long value : this.completed) {
+            done += value;
+        }
+        return done;
+    }
+
+    private void initState(int segmentCount) {
+        int count = (int) Math.max(1, Math.min(segmentCount, this.length));
+        long segmentSize = this.length / count;
+        this.starts = new long[count];
+        this.ends = new long[count];
+        this.completed = new long[count];
+        for (int i = 0; i < count; i++) {
+            this.starts[i] = i * segmentSize;
+            this.ends[i] = i == count - 1 ? this.length - 1 : (i + 1) * segmentSize - 1;
+        }
+    }
+
+    /**
+     * Reads the state of a previous download. The state file contains the total length on the first line,
+     * followed by one line per segment, holding the segment start, end and number of completed bytes.
+     */
+    private boolean loadState() {
+        if (!Files.exists(this.stateFile) || !Files.exists(this.file)) {
+            return false;
+        }
+        try {
+            List<String> lines = Files.readAllLines(this.stateFile, StandardCharsets.UTF_8);
+            if (lines.size() < 2 || Long.parseLong(lines.get(0).trim()) != this.length) {
+                Logger.getRootLogger().debug("Remote file %s has changed, segmented download will restart", this.remoteUrl);
+                return false;
+            }
+            int count = lines.size() - 1;
+            this.starts = new long[count];
+            this.ends = new long[count];
+            this.completed = new long[count];
+            for (int i = 0; i < count; i++) {
+                String[] tokens = lines.get(i + 1).trim().split(" ");
+                this.starts[i] = Long.parseLong(tokens[0]);
+                this.ends[i] = Long.parseLong(tokens[1]);
+                this.completed[i] = Long.parseLong(tokens[2]);
+            }
+            Logger.getRootLogger().debug("Resuming segmented download of %s [%s of %s bytes]",
+                                         this.file.getFileName(), downloadedBytes(), this.length);
+            return true;
+        } catch (IOException | RuntimeException e) {
+            Logger.getRootLogger().warn("Cannot read segments state of %s [%s]", this.file.getFileName(), e.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * Saves the state of the segments, once the bytes they record as completed are synced to the disk,
+     * so that a crash never leaves a state that claims bytes the file doesn't hold.
+     */
+    private void saveState(FileChannel channel) throws IOException {
+        channel.force(false);
+        List<String> lines = new ArrayList<>();
+        lines.add(String.valueOf(this.length));
+        for (int i = 0; i < this.starts.length; i++) {
+            lines.add(this.starts[i] + " " + this.ends[i] + " " + this.completed[i]);
+        }
+        Path tempFile = this.stateFile.resolveSibling(this.stateFile.getFileName().toString() + ".tmp");
+        Files.write(tempFile, lines, StandardCharsets.UTF_8);
+        Files.move(tempFile, this.stateFile, StandardCopyOption.REPLACE_EXISTING);
+        this.unsavedBytes = 0;
+    }
+
+    /**
+     * Signals that the transfer of a segment was cut because its throughput was too low
+     */
+    private static class StalledSegmentException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        StalledSegmentException(String message) {
+            super(message);
+        }
+    }
+}
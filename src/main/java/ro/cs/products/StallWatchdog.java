@@ -0,0 +1,212 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package ro.cs.products;
+
+import ro.cs.products.sentinel2.ProductStore;
+import ro.cs.products.util.Logger;
+
+import java.io.Closeable;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Watches the throughput of the remote streams. When a stream delivers less than the configured rate
+ * for a whole window, its connection is closed, so that the blocked read fails immediately instead of
+ * waiting for the socket timeout. The reader can then tell the stall from other failures and resume
+ * the transfer on a new connection.
+ * The time the reader of a stream spends waiting for something else than the network, such as a disk that
+ * holds back the transfer, is signalled with {@link #pause()} and {@link #resume()} and left out of the window.
+ *
+ * @author Cosmin Cara
+ */
+class StallWatchdog {
+    private static final Set<Watch> watches = ConcurrentHashMap.newKeySet();
+    private static final ThreadLocal<Watch> readStreams = new ThreadLocal<>();
+    private static final ScheduledExecutorService checker = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "stall-watchdog");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private static volatile long minRate;
+    private static volatile int window = 30;
+
+    static {
+        checker.scheduleAtFixedRate(StallWatchdog::check, 1, 1, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Sets the minimum throughput and the window over which it is measured.
+     *
+     * @param bytesPerSecond    The minimum throughput of a stream (0 disables the watchdog)
+     * @param seconds           The length of the window
+     */
+    static void configure(long bytesPerSecond, int seconds) {
+        minRate = Math.max(0, bytesPerSecond);
+        window = Math.max(1, seconds);
+    }
+
+    /**
+     * Returns a stream that counts the bytes read from the given one and closes the given connection
+     * if the throughput falls below the minimum. The transfers from a store that has a bandwidth limit
+     * are not watched, since they may be slowed down on purpose.
+     */
+    static InputStream watch(InputStream inputStream, Closeable connection, ProductStore store) {
+        if (minRate <= 0 || BandwidthLimiter.isLimited(store)) {
+            return inputStream;
+        }
+        Watch watch = new Watch(inputStream, connection, window);
+        watches.add(watch);
+        return watch;
+    }
+
+    /**
+     * Checks if the given stream was cut because it stalled.
+     */
+    static boolean isStalled(InputStream inputStream) {
+        return inputStream instanceof Watch && ((Watch) inputStream).stalled;
+    }
+
+    /**
+     * Signals that the calling thread stops reading its watched stream, if any, to wait for something else
+     * than the network. The waiting time doesn't count against the throughput of the stream.
+     */
+    static void pause() {
+        Watch watch = readStreams.get();
+        if (watch != null) {
+            watch.pausedSince = System.nanoTime();
+        }
+    }
+
+    /**
+     * Signals that the calling thread goes back to reading its watched stream, if any.
+     */
+    static void resume() {
+        Watch watch = readStreams.get();
+        if (watch != null && watch.pausedSince != 0) {
+            watch.pausedTime += System.nanoTime() - watch.pausedSince;
+            watch.pausedSince = 0;
+        }
+    }
+
+    private static void check() {
+        long rate = minRate;
+        for (Watch watch : watches) {
+            if (watch.sample(rate)) {
+                watches.remove(watch);
+                Logger.getRootLogger().debug("Stream stalled [less than %s bytes/s for %s s], closing the connection",
+                                             rate, watch.samples.length - 1);
+                try {
+                    watch.connection.close();
+                } catch (IOException | RuntimeException e) {
+                    Logger.getRootLogger().debug("Cannot close stalled connection: %s", e.getMessage());
+                }
+            }
+        }
+    }
+
+    private static class Watch extends FilterInputStream {
+        private final Closeable connection;
+        private final long[] samples;
+        private final long[] readingTimes;
+        private volatile long bytes;
+        private volatile long pausedTime;
+        private volatile long pausedSince;
+        private volatile boolean stalled;
+        private Thread reader;
+        private int count;
+
+        Watch(InputStream in, Closeable connection, int window) {
+            super(in);
+            this.connection = connection;
+            this.samples = new long[window + 1];
+            this.readingTimes = new long[window + 1];
+        }
+
+        @Override
+        public int read() throws IOException {
+            register();
+            int value = super.read();
+            if (value >= 0) {
+                this.bytes++;
+            }
+            return value;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            register();
+            int read = super.read(b, off, len);
+            if (read > 0) {
+                this.bytes += read;
+            }
+            return read;
+        }
+
+        @Override
+        public void close() throws IOException {
+            watches.remove(this);
+            if (readStreams.get() == this) {
+                readStreams.remove();
+            }
+            super.close();
+        }
+
+        /**
+         * Makes this stream the one that the pauses of the reading thread apply to. The stream may be read
+         * through other streams (such as an archive stream), hence it is looked up by thread.
+         */
+        private void register() {
+            Thread thread = Thread.currentThread();
+            if (this.reader != thread) {
+                this.reader = thread;
+                readStreams.set(this);
+            }
+        }
+
+        /**
+         * Records the bytes read so far and returns <code>true</code> if the stream has just been found stalled.
+         * The minimum number of bytes of the window only covers the time the reader was not paused.
+         */
+        boolean sample(long rate) {
+            long current = this.bytes;
+            long now = System.nanoTime();
+            long pausedSince = this.pausedSince;
+            // the reading time is what is left of the elapsed time once the pauses are taken out
+            long reading = now - this.pausedTime - (pausedSince != 0 ? now - pausedSince : 0);
+            this.samples[this.count % this.samples.length] = current;
+            this.readingTimes[this.count % this.samples.length] = reading;
+            this.count++;
+            if (this.count < this.samples.length) {
+                return false;
+            }
+            long windowStart = this.samples[this.count % this.samples.length];
+            long readingMillis = TimeUnit.NANOSECONDS.toMillis(reading - this.readingTimes[this.count % this.samples.length]);
+            if (readingMillis > 0 && current - windowStart < rate * readingMillis / 1000) {
+                this.stalled = true;
+            }
+            return this.stalled;
+        }
+    }
+}
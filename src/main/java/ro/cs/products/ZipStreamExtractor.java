@@ -0,0 +1,197 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package ro.cs.products;
+
+import org.apache.http.client.methods.CloseableHttpResponse;
+import ro.cs.products.sentinel2.ProductStore;
+import ro.cs.products.util.Logger;
+import ro.cs.products.util.NetUtils;
+import ro.cs.products.util.RetryPolicy;
+import ro.cs.products.util.ZipDirectory;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.SocketTimeoutException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Predicate;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+/**
+ * Extracts a zip archive while it is being downloaded. The entries accepted by the filter are written
+ * under a folder as they arrive, the other ones are read and discarded, so that neither the archive
+ * nor the unwanted entries ever reach the disk.
+ * The extractor remembers the entries it has written, so that a new pass over the archive
+ * (after a failed transfer) only writes the missing ones.
+ * The bandwidth limits are charged with the bytes of the archive, before they are decompressed.
+ *
+ * @author Cosmin Cara
+ */
+class ZipStreamExtractor {
+    private static final int DISCARD_CHUNK = 64 * 1024;
+
+    private final Path root;
+    private final Predicate<String> filter;
+    private final ProductStore store;
+    private final Set<String> extracted;
+    private String topFolder;
+
+    ZipStreamExtractor(Path root, Predicate<String> filter, ProductStore store) {
+        this.root = root.toAbsolutePath().normalize();
+        this.filter = filter;
+        this.store = store;
+        this.extracted = new HashSet<>();
+    }
+
+    /**
+     * Downloads a remote product archive and extracts the wanted entries while it arrives.
+     * If the transfer fails, the entries not yet extracted are fetched by byte ranges or, if the server doesn't
+     * support them, by reading the archive again. A failed extraction is logged and counted.
+     *
+     * @param skipExisting  If <code>true</code>, the entries found on disk with the same size are not written again
+     * @param remaining     The entries to be fetched by ranges, out of the ones not yet extracted
+     * @param failures      The counter of the failed downloads of the product
+     * @return  The product folder, or <code>null</code> if the archive was not found
+     */
+    Path extractProduct(String url, String authToken, boolean skipExisting, Predicate<ZipDirectory.Record> remaining,
+                        ProgressListener listener, AtomicInteger failures) throws IOException {
+        RetryPolicy policy = RetryPolicy.get(RetryPolicy.Operation.RASTER);
+        long start = System.currentTimeMillis();
+        for (int attempt = 1; ; attempt++) {
+            try (CloseableHttpResponse response = NetUtils.openConnection(url, authToken, null, RetryPolicy.Operation.RASTER)) {
+                NetUtils.checkResponse(response, url);
+                Logger.getRootLogger().info("Extracting %s [size: %skB]", url, response.getEntity().getContentLength() / 1024);
+                try (InputStream inputStream = StallWatchdog.watch(response.getEntity().getContent(), response, this.store)) {
+                    extract(inputStream, skipExisting, listener);
+                }
+                break;
+            } catch (FileNotFoundException ex) {
+                Logger.getRootLogger().warn("Cannot download %s: No such file", url);
+                return null;
+            } catch (IOException ex) {
+                if (ex instanceof InterruptedIOException && !(ex instanceof SocketTimeoutException)) {
+                    failures.incrementAndGet();
+                    throw ex;
+                }
+                Logger.getRootLogger().warn("Transfer of %s failed [%s]. Trying to fetch the remaining entries by ranges", url, ex.getMessage());
+                Path folder = RemoteZip.extractProduct(url, authToken, this.store, this.root,
+                                                       record -> remaining.test(record) && !isExtracted(record.getName()),
+                                                       listener, failures);
+                if (folder != null) {
+                    return folder;
+                }
+                if (!policy.isRetryable(ex) || attempt >= policy.getMaxAttempts()) {
+                    failures.incrementAndGet();
+                    Logger.getRootLogger().error("Cannot download %s: %s", url, ex.getMessage());
+                    break;
+                }
+                long delay = policy.getDelay(attempt, ex);
+                Logger.getRootLogger().warn("Attempt %s of %s for %s failed. Retrying in %s ms", attempt, policy.getMaxAttempts(), url, delay);
+                policy.sleep(delay);
+            }
+        }
+        Logger.getRootLogger().debug("%s extracted in %ss", url, (System.currentTimeMillis() - start) / 1000);
+        return this.topFolder != null ? this.root.resolve(this.topFolder) : null;
+    }
+
+    /**
+     * Reads the archive from the given stream.
+     *
+     * @param inputStream   The stream of the archive
+     * @param skipExisting  If <code>true</code>, the entries found on disk with the same size are not written again
+     * @param listener      Optional listener for the progress of each entry
+     */
+    void extract(InputStream inputStream, boolean skipExisting, ProgressListener listener) throws IOException {
+        ZipInputStream zipStream = new ZipInputStream(BandwidthLimiter.throttle(inputStream, this.store));
+        ZipEntry entry;
+        while ((entry = zipStream.getNextEntry()) != null) {
+            String name = entry.getName();
+            Path file = this.root.resolve(name).normalize();
+            if (!file.startsWith(this.root)) {
+                throw new IOException(String.format("Entry %s is outside of the target folder", name));
+            }
+            if (this.topFolder == null && name.indexOf('/') > 0) {
+                this.topFolder = name.substring(0, name.indexOf('/'));
+            }
+            if (this.extracted.contains(name) || !this.filter.test(name) ||
+                    (skipExisting && !entry.isDirectory() && entry.getSize() >= 0 &&
+                            Files.exists(file) && Files.size(file) == entry.getSize())) {
+                discard(zipStream);
+                continue;
+            }
+            if (entry.isDirectory()) {
+                Files.createDirectories(file);
+            } else {
+                write(zipStream, file, entry.getSize(), listener);
+            }
+            this.extracted.add(name);
+        }
+    }
+
+    /**
+     * Checks if the given entry was written by a previous pass.
+     */
+    boolean isExtracted(String name) {
+        return this.extracted.contains(name);
+    }
+
+    /**
+     * Returns the folder that holds the entries seen so far, or <code>null</code> if none was seen.
+     */
+    String getTopFolder() {
+        return this.topFolder;
+    }
+
+    private void write(InputStream entryStream, Path file, long length, ProgressListener listener) throws IOException {
+        Files.createDirectories(file.getParent());
+        boolean completed = false;
+        // the size and the CRC of the entry are verified by the zip stream when the end of the entry is reached
+        try {
+            try (FileChannel outputChannel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                                                              StandardOpenOption.TRUNCATE_EXISTING);
+                 FileTransfer transfer = new FileTransfer(length, 0, listener, this.store)) {
+                transfer.setThrottled(false);
+                transfer.copy(entryStream, outputChannel, 0);
+            }
+            completed = true;
+        } finally {
+            if (!completed) {
+                Files.deleteIfExists(file);
+            }
+        }
+    }
+
+    /**
+     * Reads the rest of the current entry. The bytes are transferred anyway, hence they count against the bandwidth limit
+     * (through the underlying stream).
+     */
+    private static void discard(InputStream entryStream) throws IOException {
+        byte[] buffer = new byte[DISCARD_CHUNK];
+        while (entryStream.read(buffer) > 0) {
+        }
+    }
+}
@@ -32,7 +32,8 @@ public enum DownloadMode {
     OVERWRITE,
     /**
      * Product will be downloaded from the remote site and, if a corresponding local product exists,
-     * the download will be resumed from the current length of the local product
+     * the download will be resumed from the current length of the local product.
+     * Products and files recorded as completed in the download journal of the output folder are skipped.
      */
     RESUME,
     /**
@@ -33,6 +33,10 @@ public abstract class ProductDescriptor {
     protected double cloudsPercentage;
     protected String sensingDate;
     protected String version;
+    protected long approximateSize = -1;
+    protected int priority;
+    protected long deadline;
+    protected String group;
 
     public ProductDescriptor() {}
 
@@ -75,6 +79,34 @@ public abstract class ProductDescriptor {
 
     public void setSensingDate(String date) { this.sensingDate = date; }
 
+    /**
+     * Returns the size of the product, in bytes, as reported by the search, or -1 if not known
+     */
+    public long getApproximateSize() { return approximateSize; }
+
+    public void setApproximateSize(long size) { this.approximateSize = size; }
+
+    /**
+     * Returns the download priority of the product (the higher, the sooner)
+     */
+    public int getPriority() { return priority; }
+
+    public void setPriority(int priority) { this.priority = priority; }
+
+    /**
+     * Returns the time (in milliseconds since the epoch) by which the product is needed, or 0 if there is no deadline
+     */
+    public long getDeadline() { return deadline; }
+
+    public void setDeadline(long deadline) { this.deadline = deadline; }
+
+    /**
+     * Returns the group (such as the area of interest or the job) the product was requested for, if any
+     */
+    public String getGroup() { return group; }
+
+    public void setGroup(String group) { this.group = group; }
+
     public abstract String getProductRelativePath();
 
     @Override
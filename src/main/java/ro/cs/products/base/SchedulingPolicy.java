@@ -0,0 +1,50 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package ro.cs.products.base;
+
+/**
+ * The order in which the products of a batch are downloaded
+ *
+ * @author Cosmin Cara
+ */
+public enum SchedulingPolicy {
+    /**
+     * Products are downloaded in the order they were found (or given)
+     */
+    FIFO,
+    /**
+     * Products are downloaded in the increasing order of their (estimated) size, so that the small products
+     * are not held up by the large ones
+     */
+    SIZE,
+    /**
+     * Products with the earliest deadline are downloaded first. Products without a deadline come last.
+     * Ties are broken by priority, then by size.
+     */
+    DEADLINE,
+    /**
+     * Products with the highest priority are downloaded first. Ties are broken by deadline, then by size.
+     */
+    PRIORITY,
+    /**
+     * Products of different groups (areas of interest or jobs) take turns, such that each group gets
+     * an equal share of the transferred bytes. Within a group, the smallest products come first.
+     */
+    FAIR
+}
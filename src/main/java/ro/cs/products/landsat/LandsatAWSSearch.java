@@ -117,6 +117,8 @@ public class LandsatAWSSearch extends AbstractSearch<CollectionCategory> {
                                                       tile, dateFormat.format(productDate.getTime()), clouds));
                             } else {
                                 ProductDescriptor descriptor = parseProductJson(jsonTile);
+                                // the products of a path/row share the download bandwidth fairly with the other ones
+                                descriptor.setGroup(tile);
                                 results.put(descriptor.getName(), descriptor);
                             }
                         }
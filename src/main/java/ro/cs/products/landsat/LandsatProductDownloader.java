@@ -22,15 +22,17 @@ import ro.cs.products.ProductDownloader;
 import ro.cs.products.util.Constants;
 import ro.cs.products.util.Logger;
 import ro.cs.products.util.Utilities;
-import ro.cs.products.util.Zipper;
 
 import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.ArrayList;
 import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Properties;
 import java.util.Set;
+import java.util.concurrent.Future;
 
 /**
  * Simple tool to download Landsat-8 L1T products from Amazon WS.
@@ -78,40 +80,31 @@ public class LandsatProductDownloader extends ProductDownloader<LandsatProductDe
         getLogger().debug("Downloading metadata file %s", metadataFile);
         metadataFile = downloadFile(url, metadataFile);
         if (metadataFile != null && Files.exists(metadataFile)) {
+            List<Future<Path>> downloads = new ArrayList<>();
             for (String suffix : bandFiles) {
                 String bandName = suffix.substring(1, suffix.indexOf("."));
                 if (this.bands == null || this.bands.contains(bandName)) {
                     String bandFileName = productName + suffix;
                     currentStep = "Band " + bandFileName;
-                    try {
-                        String bandFileUrl = getProductUrl(product) + bandFileName;
-                        Path path = rootPath.resolve(bandFileName);
-                        getLogger().debug("Downloading band raster %s from %s", path, bandFileUrl);
-                        downloadFile(bandFileUrl, path);
-                    } catch (IOException ex) {
-                        getLogger().warn("Download for %s failed [%s]", bandFileName, ex.getMessage());
-                    }
+                    String bandFileUrl = getProductUrl(product) + bandFileName;
+                    Path path = rootPath.resolve(bandFileName);
+                    getLogger().debug("Downloading band raster %s from %s", path, bandFileUrl);
+                    downloads.add(downloadFileAsync(bandFileUrl, path));
                 }
             }
             if (Constants.L8_COLL.equals(product.getVersion())) {
                 String fileName = productName + "_ANG.txt";
-                try {
-                    String fileUrl = getProductUrl(product) + fileName;
-                    Path path = rootPath.resolve(fileName);
-                    getLogger().debug("Downloading band raster %s from %s", path, fileUrl);
-                    downloadFile(fileUrl, path);
-                } catch (IOException ex) {
-                    getLogger().warn("Download for %s failed [%s]", fileName, ex.getMessage());
-                }
+                currentStep = "Angles";
+                String fileUrl = getProductUrl(product) + fileName;
+                Path path = rootPath.resolve(fileName);
+                getLogger().debug("Downloading band raster %s from %s", path, fileUrl);
+                downloads.add(downloadFileAsync(fileUrl, path));
             }
+            waitFor(downloads);
         } else {
             getLogger().warn("Either the product %s was not found or the metadata file could not be downloaded", productName);
             rootPath = null;
         }
-        if (shouldCompress && rootPath != null) {
-            getLogger().debug("Compressing product %s", product);
-            Zipper.compress(rootPath, rootPath.getFileName().toString(), shouldDeleteAfterCompression);
-        }
         return rootPath;
     }
 
@@ -166,6 +166,10 @@ public class LandsatSearch extends AbstractSearch<Object> {
         String queryUrl = getQuery();
         Logger.getRootLogger().info(queryUrl);
         try (CloseableHttpResponse response = NetUtils.openConnection(queryUrl, credentials)) {
+            if (response == null) {
+                Logger.getRootLogger().warn("%s is not available", this.url);
+                return results;
+            }
             switch (response.getStatusLine().getStatusCode()) {
                 case 200:
                     String body = EntityUtils.toString(response.getEntity());
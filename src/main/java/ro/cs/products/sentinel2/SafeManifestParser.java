@@ -0,0 +1,110 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package ro.cs.products.sentinel2;
+
+import org.xml.sax.Attributes;
+import org.xml.sax.SAXException;
+import org.xml.sax.helpers.DefaultHandler;
+import ro.cs.products.util.Logger;
+
+import javax.xml.parsers.SAXParser;
+import javax.xml.parsers.SAXParserFactory;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Parser for the checksums listed in the manifest (manifest.safe) of a SAFE product.
+ *
+ * @author Cosmin Cara
+ */
+class SafeManifestParser {
+
+    /**
+     * Returns the checksums computed with the given algorithm, keyed by the path of the file
+     * relative to the product folder. If the manifest cannot be parsed, an empty map is returned.
+     */
+    static Map<String, String> parseChecksums(Path manifestFile, String algorithm) {
+        Map<String, String> checksums = new HashMap<>();
+        try (InputStream inputStream = Files.newInputStream(manifestFile)) {
+            SAXParserFactory factory = SAXParserFactory.newInstance();
+            SAXParser parser = factory.newSAXParser();
+            parser.parse(inputStream, new Handler(algorithm, checksums));
+        } catch (Exception e) {
+            Logger.getRootLogger().warn("Cannot read checksums from %s [%s]", manifestFile, e.getMessage());
+            checksums.clear();
+        }
+        return checksums;
+    }
+
+    private static class Handler extends DefaultHandler {
+        private final String algorithm;
+        private final Map<String, String> checksums;
+        private final StringBuilder buffer;
+        private String location;
+        private boolean isChecksum;
+
+        Handler(String algorithm, Map<String, String> checksums) {
+            this.algorithm = algorithm;
+            this.checksums = checksums;
+            this.buffer = new StringBuilder();
+        }
+
+        @Override
+        public void characters(char[] ch, int start, int length) throws SAXException {
+            if (isChecksum) {
+                buffer.append(ch, start, length);
+            }
+        }
+
+        @Override
+        public void startElement(String uri, String localName, String qName, Attributes attributes) throws SAXException {
+            if (qName.indexOf(":") > 0) {
+                qName = qName.substring(qName.indexOf(":") + 1);
+            }
+            switch (qName) {
+                case "byteStream":
+                    location = null;
+                    break;
+                case "fileLocation":
+                    location = attributes.getValue("href");
+                    break;
+                case "checksum":
+                    isChecksum = algorithm.equalsIgnoreCase(attributes.getValue("checksumName"));
+                    buffer.setLength(0);
+                    break;
+            }
+        }
+
+        @Override
+        public void endElement(String uri, String localName, String qName) throws SAXException {
+            if (qName.indexOf(":") > 0) {
+                qName = qName.substring(qName.indexOf(":") + 1);
+            }
+            if ("checksum".equals(qName)) {
+                if (isChecksum && location != null && buffer.length() > 0) {
+                    checksums.put(location, buffer.toString().trim());
+                }
+                isChecksum = false;
+            }
+        }
+    }
+}
@@ -22,32 +22,34 @@ import ro.cs.products.ProductDownloader;
 import ro.cs.products.sentinel2.angles.FillAnglesMethod;
 import ro.cs.products.sentinel2.angles.MetadataRepairer;
 import ro.cs.products.util.Constants;
+import ro.cs.products.util.EndpointHealth;
 import ro.cs.products.util.Logger;
 import ro.cs.products.util.NetUtils;
 import ro.cs.products.util.Utilities;
-import ro.cs.products.util.Zipper;
 
 import javax.json.Json;
 import javax.json.JsonArray;
 import javax.json.JsonObject;
 import javax.json.JsonReader;
 import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
-import java.io.InputStream;
 import java.io.InputStreamReader;
-import java.net.HttpURLConnection;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
 import java.util.Set;
+import java.util.concurrent.Future;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -137,8 +139,7 @@ public class SentinelProductDownloader extends ProductDownloader<SentinelProduct
     boolean shouldFilterTiles;
     Pattern tileIdPattern;
     FillAnglesMethod fillMissingAnglesMethod;
-
-    Logger.ScopeLogger productLogger;
+    boolean extractArchives;
 
     public SentinelProductDownloader(ProductStore source, String targetFolder, Properties properties, NetUtils netUtils) {
         super(targetFolder, properties, netUtils);
@@ -156,10 +157,10 @@ public class SentinelProductDownloader extends ProductDownloader<SentinelProduct
         String scihubUrl;
         scihubUrl = props.getProperty(Constants.PROPERTY_NAME_SCIHUB_PRODUCTS_URL,
                                       Constants.PROPERTY_DEFAULT_SCIHUB_PRODUCTS_URL);
-        if (source.equals(ProductStore.SCIHUB) && !this.netUtils.isAvailable(scihubUrl)) {
-            System.err.println(scihubUrl + " is not available!");
-            scihubUrl = props.getProperty(Constants.PROPERTY_NAME_SCIHUB_BACKUP_SEARCH_URL,
-                                          Constants.PROPERTY_DEFAULT_SCIHUB_BACKUP_SEARCH_URL);
+        if (source.equals(ProductStore.SCIHUB)) {
+            // the requests switch to the backup url whenever the primary one fails repeatedly
+            EndpointHealth.register(scihubUrl, props.getProperty(Constants.PROPERTY_NAME_SCIHUB_BACKUP_SEARCH_URL,
+                                                                 Constants.PROPERTY_DEFAULT_SCIHUB_BACKUP_SEARCH_URL));
         }
         odataProductPath = odp.root(scihubUrl + "/Products('${UUID}')").node("${PRODUCT_NAME}.SAFE").path();
         odataArchivePath = odp.root(scihubUrl + "/Products('${UUID}')").value();
@@ -191,6 +192,14 @@ public class SentinelProductDownloader extends ProductDownloader<SentinelProduct
         this.fillMissingAnglesMethod = value;
     }
 
+    /**
+     * Instructs the downloader to extract the product archives while downloading them, keeping only
+     * the selected tiles and bands
+     */
+    public void setExtractArchives(boolean value) {
+        this.extractArchives = value;
+    }
+
     @Override
     public void setBandList(String[] bands) {
         if (bands != null) {
@@ -218,7 +227,11 @@ public class SentinelProductDownloader extends ProductDownloader<SentinelProduct
         this.shouldFilterTiles = anotherDownloader.shouldFilterTiles;
         this.tileIdPattern = anotherDownloader.tileIdPattern;
         this.fillMissingAnglesMethod = anotherDownloader.fillMissingAnglesMethod;
+        this.extractArchives = anotherDownloader.extractArchives;
         this.store = anotherDownloader.store;
+        this.parallelDownloads = anotherDownloader.parallelDownloads;
+        this.parallelFileDownloads = anotherDownloader.parallelFileDownloads;
+        this.segmentsPerFile = anotherDownloader.segmentsPerFile;
     }
 
     @Override
@@ -288,8 +301,15 @@ public class SentinelProductDownloader extends ProductDownloader<SentinelProduct
         if (Constants.PSD_13.equals(productDescriptor.getVersion()) && !shouldFilterTiles) {
             currentStep = "Archive";
             url = odataArchivePath.replace(Constants.ODATA_UUID, productDescriptor.getId());
-            rootPath = Paths.get(destination, productName + ".zip");
-            rootPath = downloadFile(url, rootPath, this.netUtils.getAuthToken());
+            if (this.extractArchives) {
+                rootPath = downloadFromArchive(productDescriptor, url, this.netUtils.getAuthToken(), true);
+            } else {
+                rootPath = Paths.get(destination, productName + ".zip");
+                rootPath = downloadFile(url, rootPath, this.netUtils.getAuthToken());
+            }
+        } else if (productDescriptor.getId() != null) {
+            rootPath = downloadFromArchive(productDescriptor, odataArchivePath.replace(Constants.ODATA_UUID, productDescriptor.getId()),
+                                           this.netUtils.getAuthToken(), false);
         }
         if (rootPath == null || !Files.exists(rootPath)) {
             rootPath = Utilities.ensureExists(Paths.get(destination, productName + ".SAFE"));
@@ -335,33 +355,55 @@ public class SentinelProductDownloader extends ProductDownloader<SentinelProduct
                     }
                     String count = String.valueOf(tileNames.size());
                     int tileCounter = 1;
+                    long start = System.currentTimeMillis();
                     ODataPath pathBuilder = new ODataPath();
+                    // tile metadata files are needed first, in order to know which QI masks have to be downloaded
+                    Map<String, Future<Path>> tileMetadataFiles = new LinkedHashMap<>();
                     for (Map.Entry<String, String> entry : tileNames.entrySet()) {
-                        long start = System.currentTimeMillis();
                         currentStep = "Tile " + String.valueOf(tileCounter++) + "/" + count;
-                        String tileUrl = entry.getValue();
                         String granuleId = entry.getKey();
                         String tileName = productDescriptor.getGranuleFolder(dataStripId, granuleId);
+                        if (getJournal().isTileDownloaded(productName, tileName)) {
+                            getLogger().debug("Tile %s already downloaded", tileName);
+                            continue;
+                        }
                         Path tileFolder = Utilities.ensureExists(tilesFolder.resolve(tileName));
+                        String metadataName = productDescriptor.getGranuleMetadataFileName(granuleId);
+                        tileMetadataFiles.put(granuleId,
+                                              downloadFileAsync(pathBuilder.root(entry.getValue()).node(metadataName).value(),
+                                                                tileFolder.resolve(metadataName),
+                                                                this.netUtils.getAuthToken()));
+                    }
+                    List<Future<Path>> downloads = new ArrayList<>();
+                    Map<String, List<Future<Path>>> tileDownloads = new LinkedHashMap<>();
+                    tileCounter = 1;
+                    for (Map.Entry<String, String> entry : tileNames.entrySet()) {
+                        currentStep = "Tile " + String.valueOf(tileCounter++) + "/" + count;
+                        String tileUrl = entry.getValue();
+                        String granuleId = entry.getKey();
+                        String tileName = productDescriptor.getGranuleFolder(dataStripId, granuleId);
+                        if (!tileMetadataFiles.containsKey(granuleId)) {
+                            continue;
+                        }
+                        int firstDownload = downloads.size();
+                        Path tileFolder = tilesFolder.resolve(tileName);
                         Path auxData = Utilities.ensureExists(tileFolder.resolve(Constants.FOLDER_AUXDATA));
                         Path imgData = Utilities.ensureExists(tileFolder.resolve(Constants.FOLDER_IMG_DATA));
                         Path qiData = Utilities.ensureExists(tileFolder.resolve(Constants.FOLDER_QI_DATA));
-                        String metadataName = productDescriptor.getGranuleMetadataFileName(granuleId);
-                        Path tileMetaFile = downloadFile(pathBuilder.root(tileUrl).node(metadataName).value(),
-                                                         tileFolder.resolve(metadataName),
-                                                         this.netUtils.getAuthToken());
+                        Path tileMetaFile = getResult(tileMetadataFiles.get(granuleId));
                         if (tileMetaFile != null) {
                             if (Files.exists(tileMetaFile)) {
-                                List<String> tileMetadataLines = MetadataRepairer.parse(tileMetaFile, this.fillMissingAnglesMethod);
+                                List<String> tileMetadataLines = Files.readAllLines(tileMetaFile);
+                                addRepairTask(() -> MetadataRepairer.parse(tileMetaFile, this.fillMissingAnglesMethod));
                                 if (isL1C) {
                                     for (String bandFileName : l1cBandFiles) {
                                         if (this.bands == null || this.bands.contains(bandFileName.substring(0, bandFileName.indexOf(".")))) {
-                                            downloadFile(pathBuilder.root(tileUrl)
-                                                                 .node(Constants.FOLDER_IMG_DATA)
-                                                                 .node(productDescriptor.getBandFileName(granuleId, bandFileName))
-                                                                 .value(),
-                                                         imgData.resolve(productDescriptor.getBandFileName(granuleId, bandFileName)),
-                                                         this.netUtils.getAuthToken());
+                                            downloads.add(downloadFileAsync(pathBuilder.root(tileUrl)
+                                                                                    .node(Constants.FOLDER_IMG_DATA)
+                                                                                    .node(productDescriptor.getBandFileName(granuleId, bandFileName))
+                                                                                    .value(),
+                                                                            imgData.resolve(productDescriptor.getBandFileName(granuleId, bandFileName)),
+                                                                            this.netUtils.getAuthToken()));
                                         } else {
                                             getLogger().debug("Band %s skipped", bandFileName.substring(0, bandFileName.indexOf(".")));
                                         }
@@ -371,13 +413,13 @@ public class SentinelProductDownloader extends ProductDownloader<SentinelProduct
                                         Path imgDataRes = Utilities.ensureExists(imgData.resolve(resEntry.getKey()));
                                         for (String bandFileName : resEntry.getValue()) {
                                             if (this.bands == null || this.bands.contains(bandFileName.substring(0, bandFileName.indexOf(".")))) {
-                                                downloadFile(pathBuilder.root(tileUrl)
-                                                                     .node(Constants.FOLDER_IMG_DATA)
-                                                                     .node(resEntry.getKey())
-                                                                     .node(productDescriptor.getBandFileName(granuleId, bandFileName))
-                                                                     .value(),
-                                                             imgDataRes.resolve(productDescriptor.getBandFileName(granuleId, bandFileName)),
-                                                             this.netUtils.getAuthToken());
+                                                downloads.add(downloadFileAsync(pathBuilder.root(tileUrl)
+                                                                                        .node(Constants.FOLDER_IMG_DATA)
+                                                                                        .node(resEntry.getKey())
+                                                                                        .node(productDescriptor.getBandFileName(granuleId, bandFileName))
+                                                                                        .value(),
+                                                                                imgDataRes.resolve(productDescriptor.getBandFileName(granuleId, bandFileName)),
+                                                                                this.netUtils.getAuthToken()));
                                             } else {
                                                 getLogger().debug("Band %s skipped", bandFileName.substring(0, bandFileName.indexOf(".")));
                                             }
@@ -393,32 +435,35 @@ public class SentinelProductDownloader extends ProductDownloader<SentinelProduct
                                     maskFileName = maskFileName.substring(maskFileName.lastIndexOf(URL_SEPARATOR) + 1);
                                     final String mfn = maskFileName;
                                     if (this.bands == null || this.bands.stream().anyMatch(mfn::contains)) {
-                                        downloadFile(pathBuilder.root(tileUrl)
-                                                             .node(Constants.FOLDER_QI_DATA)
-                                                             .node(maskFileName)
-                                                             .value(),
-                                                     qiData.resolve(maskFileName),
-                                                     this.netUtils.getAuthToken());
+                                        downloads.add(downloadFileAsync(pathBuilder.root(tileUrl)
+                                                                                .node(Constants.FOLDER_QI_DATA)
+                                                                                .node(maskFileName)
+                                                                                .value(),
+                                                                        qiData.resolve(maskFileName),
+                                                                        this.netUtils.getAuthToken()));
                                     } else {
                                         getLogger().debug("Mask %s skipped", mfn);
                                     }
                                 }
                                 if (!isL1C) {
                                     for (String maskFileName : l2aMasks) {
-                                        downloadFile(pathBuilder.root(tileUrl)
-                                                             .node(Constants.FOLDER_QI_DATA)
-                                                             .node(productDescriptor.getBandFileName(granuleId, maskFileName))
-                                                             .value(),
-                                                     qiData.resolve(productDescriptor.getBandFileName(granuleId, maskFileName)),
-                                                     this.netUtils.getAuthToken());
+                                        downloads.add(downloadFileAsync(pathBuilder.root(tileUrl)
+                                                                                .node(Constants.FOLDER_QI_DATA)
+                                                                                .node(productDescriptor.getBandFileName(granuleId, maskFileName))
+                                                                                .value(),
+                                                                        qiData.resolve(productDescriptor.getBandFileName(granuleId, maskFileName)),
+                                                                        this.netUtils.getAuthToken()));
                                     }
                                 }
-                                getLogger().info("Tile download completed in %s", Utilities.formatTime(System.currentTimeMillis() - start));
+                                tileDownloads.put(tileName, new ArrayList<>(downloads.subList(firstDownload, downloads.size())));
                             } else {
                                 getLogger().error("File %s was not downloaded", tileMetaFile.getFileName());
                             }
                         }
                     }
+                    waitFor(downloads);
+                    markTilesDownloaded(productName, tileDownloads);
+                    getLogger().info("Tiles download completed in %s", Utilities.formatTime(System.currentTimeMillis() - start));
                     if (dataStripId != null) {
                         String dataStripPath = pathBuilder.root(odataProductPath.replace(Constants.ODATA_UUID, productDescriptor.getId())
                                                                                 .replace(Constants.ODATA_PRODUCT_NAME, productName))
@@ -427,6 +472,7 @@ public class SentinelProductDownloader extends ProductDownloader<SentinelProduct
                                                           .value();
                         Path dataStrip = Utilities.ensureExists(dataStripFolder.resolve(productDescriptor.getDatastripFolder(dataStripId)));
                         String dataStripFile = productDescriptor.getDatastripMetadataFileName(dataStripId);
+                        currentStep = "Datastrip";
                         downloadFile(dataStripPath, dataStrip.resolve(dataStripFile), this.netUtils.getAuthToken());
                     }
                 } else {
@@ -440,10 +486,6 @@ public class SentinelProductDownloader extends ProductDownloader<SentinelProduct
                 rootPath = null;
             }
         }
-        if (rootPath != null && Files.exists(rootPath) && shouldCompress && !rootPath.endsWith(".zip")) {
-            getLogger().debug("Compressing product %s", productDescriptor);
-            Zipper.compress(rootPath, rootPath.getFileName().toString(), shouldDeleteAfterCompression);
-        }
         return rootPath;
     }
 
@@ -457,7 +499,10 @@ public class SentinelProductDownloader extends ProductDownloader<SentinelProduct
             url = zipsUrl + productName + ".zip";
             rootPath = Paths.get(destination, product + ".zip");
             productLogger = new Logger.ScopeLogger(rootPath.getParent().resolve("download.log").toString());
-            rootPath = downloadFile(url, rootPath);
+            rootPath = this.extractArchives ? downloadFromArchive(product, url, null, true) : downloadFile(url, rootPath);
+        } else {
+            productLogger = new Logger.ScopeLogger(Paths.get(destination, "download.log").toString());
+            rootPath = downloadFromArchive(product, zipsUrl + productName + ".zip", null, false);
         }
         if (rootPath == null || !Files.exists(rootPath)) {
             // let's try to assemble the product
@@ -477,9 +522,10 @@ public class SentinelProductDownloader extends ProductDownloader<SentinelProduct
                 List<String> metaTileNames = Utilities.filter(allLines, "<Granule" + (Constants.PSD_13.equals(product.getVersion()) ? "s" : " "));
                 boolean hasTiles = updateMedatata(metadataFile, allLines) != null;
                 if (hasTiles) {
-                    downloadFile(baseProductUrl + "inspire.xml", inspireFile);
-                    downloadFile(baseProductUrl + "manifest.safe", manifestFile);
-                    downloadFile(baseProductUrl + "preview.png", previewFile);
+                    List<Future<Path>> downloads = new ArrayList<>();
+                    downloads.add(downloadFileAsync(baseProductUrl + "inspire.xml", inspireFile));
+                    Future<Path> manifestDownload = downloadFileAsync(baseProductUrl + "manifest.safe", manifestFile);
+                    downloads.add(downloadFileAsync(baseProductUrl + "preview.png", previewFile));
 
                     // rep_info folder and contents
                     Path repFolder = Utilities.ensureExists(rootPath.resolve("rep_info"));
@@ -497,43 +543,72 @@ public class SentinelProductDownloader extends ProductDownloader<SentinelProduct
                     Path tilesFolder = Utilities.ensureExists(rootPath.resolve(Constants.FOLDER_GRANULE));
                     Utilities.ensureExists(rootPath.resolve(Constants.FOLDER_AUXDATA));
                     Path dataStripFolder = Utilities.ensureExists(rootPath.resolve(Constants.FOLDER_DATASTRIP));
+                    // the files downloaded from now on are verified against the checksums from the manifest
+                    manifestFile = getResult(manifestDownload);
+                    if (manifestFile != null && Files.exists(manifestFile)) {
+                        setExpectedChecksums(rootPath, "MD5", SafeManifestParser.parseChecksums(manifestFile, "MD5"));
+                    }
                     String productJsonUrl = baseProductUrl + "productInfo.json";
-                    HttpURLConnection connection = null;
-                    InputStream inputStream = null;
-                    JsonReader reader = null;
+                    String dataStripUrl = null;
+                    Path dataStripFile = null;
+                    Map<String, List<Future<Path>>> tileDownloads = new LinkedHashMap<>();
                     try {
                         getLogger().debug("Downloading json product descriptor %s", productJsonUrl);
-                        connection = NetUtils.openConnection(productJsonUrl);
-                        inputStream = connection.getInputStream();
-                        reader = Json.createReader(inputStream);
-                        getLogger().debug("Parsing json descriptor %s", productJsonUrl);
-                        JsonObject obj = reader.readObject();
+                        JsonObject obj = readJson(productJsonUrl);
                         final Map<String, String> tileNames = getTileNames(obj, metaTileNames, product.getVersion());
-                        String dataStripId = null;
                         String count = String.valueOf(tileNames.size());
                         int tileCounter = 1;
+                        // tile metadata files are needed first, in order to know which QI masks have to be downloaded
+                        Map<String, Future<Path>> tileMetadataFiles = new LinkedHashMap<>();
                         for (Map.Entry<String, String> entry : tileNames.entrySet()) {
                             currentStep = "Tile " + String.valueOf(tileCounter++) + "/" + count;
-                            String tileUrl = entry.getValue();
                             String tileName = entry.getKey();
+                            if (getJournal().isTileDownloaded(productName, tileName)) {
+                                getLogger().debug("Tile %s already downloaded", tileName);
+                                continue;
+                            }
                             Path tileFolder = Utilities.ensureExists(tilesFolder.resolve(tileName));
+                            String metadataName = product.getGranuleMetadataFileName(tileName);
+                            getLogger().debug("Downloading tile metadata %s", tileFolder.resolve(metadataName));
+                            tileMetadataFiles.put(tileName, downloadFileAsync(entry.getValue() + "/metadata.xml",
+                                                                              tileFolder.resolve(metadataName)));
+                        }
+                        tileCounter = 1;
+                        for (Map.Entry<String, String> entry : tileNames.entrySet()) {
+                            currentStep = "Tile " + String.valueOf(tileCounter++) + "/" + count;
+                            String tileUrl = entry.getValue();
+                            String tileName = entry.getKey();
+                            if (dataStripUrl == null) {
+                                String tileJson = tileUrl + "/tileInfo.json";
+                                getLogger().debug("Downloading json tile descriptor %s", tileJson);
+                                JsonObject tileObj = readJson(tileJson);
+                                String dataStripId = tileObj.getJsonObject("datastrip").getString("id");
+                                dataStripUrl = baseUrl + tileObj.getJsonObject("datastrip").getString("path") + "/metadata.xml";
+                                Path dataStrip = Utilities.ensureExists(dataStripFolder.resolve(product.getDatastripFolder(dataStripId)));
+                                dataStripFile = dataStrip.resolve(product.getDatastripMetadataFileName(dataStripId));
+                                Utilities.ensureExists(dataStrip.resolve(Constants.FOLDER_QI_DATA));
+                            }
+                            if (!tileMetadataFiles.containsKey(tileName)) {
+                                continue;
+                            }
+                            int firstDownload = downloads.size();
+                            Path tileFolder = tilesFolder.resolve(tileName);
                             Path auxData = Utilities.ensureExists(tileFolder.resolve(Constants.FOLDER_AUXDATA));
                             Path imgData = Utilities.ensureExists(tileFolder.resolve(Constants.FOLDER_IMG_DATA));
                             Path qiData = Utilities.ensureExists(tileFolder.resolve(Constants.FOLDER_QI_DATA));
-                            String metadataName = product.getGranuleMetadataFileName(tileName);
-                            getLogger().debug("Downloading tile metadata %s", tileFolder.resolve(metadataName));
-                            Path tileMetaFile = downloadFile(tileUrl + "/metadata.xml", tileFolder.resolve(metadataName));
-                            List<String> tileMetadataLines = MetadataRepairer.parse(tileMetaFile, this.fillMissingAnglesMethod);
+                            Path tileMetaFile = getResult(tileMetadataFiles.get(tileName));
+                            if (tileMetaFile == null || !Files.exists(tileMetaFile)) {
+                                getLogger().error("Metadata of tile %s was not downloaded", tileName);
+                                continue;
+                            }
+                            List<String> tileMetadataLines = Files.readAllLines(tileMetaFile);
+                            addRepairTask(() -> MetadataRepairer.parse(tileMetaFile, this.fillMissingAnglesMethod));
                             for (String bandFileName : l1cBandFiles) {
                                 if (this.bands == null || this.bands.contains(bandFileName.substring(0, bandFileName.indexOf(".")))) {
-                                    try {
-                                        String bandFileUrl = tileUrl + URL_SEPARATOR + bandFileName;
-                                        Path path = imgData.resolve(product.getBandFileName(tileName, bandFileName));
-                                        getLogger().debug("Downloading band raster %s from %s", path, bandFileName);
-                                        downloadFile(bandFileUrl, path);
-                                    } catch (IOException ex) {
-                                        getLogger().warn("Download for %s failed [%s]", bandFileName, ex.getMessage());
-                                    }
+                                    String bandFileUrl = tileUrl + URL_SEPARATOR + bandFileName;
+                                    Path path = imgData.resolve(product.getBandFileName(tileName, bandFileName));
+                                    getLogger().debug("Downloading band raster %s from %s", path, bandFileName);
+                                    downloads.add(downloadFileAsync(bandFileUrl, path));
                                 } else {
                                     getLogger().debug("Band %s skipped", bandFileName.substring(0, bandFileName.indexOf(".")));
                                 }
@@ -555,50 +630,25 @@ public class SentinelProductDownloader extends ProductDownloader<SentinelProduct
                                         remoteName = maskFileName.substring(maskFileName.lastIndexOf(URL_SEPARATOR) + 1);
                                         path = rootPath.resolve(maskFileName);
                                     }
-
-                                    try {
-                                        String fileUrl = tileUrl + "/qi/" + remoteName;
-                                        getLogger().debug("Downloading file %s from %s", path, fileUrl);
-                                        downloadFile(fileUrl, path);
-                                    } catch (IOException ex) {
-                                        getLogger().warn("Download for %s failed [%s]", path, ex.getMessage());
-                                    }
+                                    String fileUrl = tileUrl + "/qi/" + remoteName;
+                                    getLogger().debug("Downloading file %s from %s", path, fileUrl);
+                                    downloads.add(downloadFileAsync(fileUrl, path));
                                 } else {
                                     getLogger().debug("Mask %s skipped", maskFileName);
                                 }
                             }
                             getLogger().debug("Trying to download %s", tileUrl + "/auxiliary/ECMWFT");
-                            downloadFile(tileUrl + "/auxiliary/ECMWFT", auxData.resolve(product.getEcmWftFileName(tileName))); //auxData.resolve(refName.replace(tilePrefix, auxPrefix)));
-                            if (dataStripId == null) {
-                                String tileJson = tileUrl + "/tileInfo.json";
-                                HttpURLConnection tileConnection = null;
-                                InputStream is = null;
-                                JsonReader tiReader = null;
-                                try {
-                                    getLogger().debug("Downloading json tile descriptor %s", tileJson);
-                                    tileConnection = NetUtils.openConnection(tileJson);
-                                    is = tileConnection.getInputStream();
-                                    tiReader = Json.createReader(is);
-                                    getLogger().debug("Parsing json tile descriptor %s", tileJson);
-                                    JsonObject tileObj = tiReader.readObject();
-                                    dataStripId = tileObj.getJsonObject("datastrip").getString("id");
-                                    String dataStripPath = tileObj.getJsonObject("datastrip").getString("path") + "/metadata.xml";
-                                    Path dataStrip = Utilities.ensureExists(dataStripFolder.resolve(product.getDatastripFolder(dataStripId)));
-                                    String dataStripFile = product.getDatastripMetadataFileName(dataStripId);
-                                    Utilities.ensureExists(dataStrip.resolve(Constants.FOLDER_QI_DATA));
-                                    getLogger().debug("Downloading %s", baseUrl + dataStripPath);
-                                    downloadFile(baseUrl + dataStripPath, dataStrip.resolve(dataStripFile));
-                                } finally {
-                                    if (tiReader != null) tiReader.close();
-                                    if (is != null) is.close();
-                                    if (tileConnection != null) tileConnection.disconnect();
-                                }
-                            }
+                            downloads.add(downloadFileAsync(tileUrl + "/auxiliary/ECMWFT", auxData.resolve(product.getEcmWftFileName(tileName)))); //auxData.resolve(refName.replace(tilePrefix, auxPrefix)));
+                            tileDownloads.put(tileName, new ArrayList<>(downloads.subList(firstDownload, downloads.size())));
                         }
                     } finally {
-                        if (reader != null) reader.close();
-                        if (inputStream != null) inputStream.close();
-                        if (connection != null) connection.disconnect();
+                        waitFor(downloads);
+                    }
+                    markTilesDownloaded(productName, tileDownloads);
+                    if (dataStripUrl != null) {
+                        currentStep = "Datastrip";
+                        getLogger().debug("Downloading %s", dataStripUrl);
+                        downloadFile(dataStripUrl, dataStripFile);
                     }
                 } else {
                     Files.deleteIfExists(metadataFile);
@@ -610,10 +660,6 @@ public class SentinelProductDownloader extends ProductDownloader<SentinelProduct
                 rootPath = null;
             }
         }
-        if (rootPath != null && Files.exists(rootPath) && shouldCompress) {
-            getLogger().debug("Compressing product %s", product);
-            Zipper.compress(rootPath, rootPath.getFileName().toString(), shouldDeleteAfterCompression);
-        }
         return rootPath;
     }
 
@@ -678,6 +724,73 @@ public class SentinelProductDownloader extends ProductDownloader<SentinelProduct
         return productsUrl + descriptor.getProductRelativePath();
     }
 
+    @Override
+    protected String getArchiveUrl(SentinelProductDescriptor descriptor) {
+        switch (store) {
+            case AWS:
+                return zipsUrl + descriptor.getName() + ".zip";
+            case SCIHUB:
+                return descriptor.getId() != null ? odataArchivePath.replace(Constants.ODATA_UUID, descriptor.getId()) : null;
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * For products assembled from the tiles of the AWS bucket, prefetches the product metadata, the manifest
+     * and the product descriptor and, once the descriptor is known, the metadata and descriptors of the tiles.
+     */
+    @Override
+    protected void prefetchMetadata(SentinelProductDescriptor product) {
+        if (!ProductStore.AWS.equals(store)) {
+            super.prefetchMetadata(product);
+            return;
+        }
+        if (!shouldFilterTiles) {
+            // the product archive is tried first
+            return;
+        }
+        String baseProductUrl = getProductUrl(product);
+        prefetch(product, baseProductUrl + "metadata.xml", null);
+        prefetch(product, baseProductUrl + "manifest.safe", null);
+        prefetch(product, baseProductUrl + "productInfo.json", null).thenAccept(content -> {
+            if (content == null) {
+                return;
+            }
+            try (JsonReader reader = Json.createReader(new ByteArrayInputStream(content))) {
+                for (String tileUrl : getTileUrls(reader.readObject())) {
+                    prefetch(product, tileUrl + "/metadata.xml", null);
+                    prefetch(product, tileUrl + "/tileInfo.json", null);
+                }
+            } catch (RuntimeException e) {
+                getLogger().debug("Cannot parse the descriptor of %s [%s]", product.getName(), e.getMessage());
+            }
+        });
+    }
+
+    private JsonObject readJson(String url) throws IOException {
+        try (JsonReader reader = Json.createReader(new ByteArrayInputStream(fetchMetadata(url, null)))) {
+            getLogger().debug("Parsing json descriptor %s", url);
+            return reader.readObject();
+        }
+    }
+
+    /**
+     * Returns the urls of the tiles of the product that pass the tile filter.
+     */
+    private List<String> getTileUrls(JsonObject productInfo) {
+        List<String> urls = new ArrayList<>();
+        for (JsonObject result : productInfo.getJsonArray("tiles").getValuesAs(JsonObject.class)) {
+            String tilePath = result.getString("path");
+            String[] tokens = tilePath.split(URL_SEPARATOR);
+            String tileId = tokens[1] + tokens[2] + tokens[3];
+            if (!shouldFilterTiles || (filteredTiles.size() == 0 || filteredTiles.contains(tileId))) {
+                urls.add(baseUrl + tilePath);
+            }
+        }
+        return urls;
+    }
+
     private Map<String, String> getTileNames(JsonObject productInfo, List<String> metaTileNames, String psdVersion) {
         Map<String, String> ret = new HashMap<>();
         String dataTakeId = productInfo.getString("datatakeIdentifier");
@@ -734,6 +847,68 @@ public class SentinelProductDownloader extends ProductDownloader<SentinelProduct
         return extractedTileNames;
     }
 
+    /**
+     * Downloads the selected tiles and bands of a product from its remote archive, either with a few range requests
+     * instead of one request per file, or by extracting the whole archive while it is downloaded.
+     *
+     * @param streamed  If <code>true</code>, the whole archive is downloaded and extracted on the fly
+     * @return  The product folder, or <code>null</code> if the archive cannot be read
+     */
+    private Path downloadFromArchive(SentinelProductDescriptor productDescriptor, String url, String authToken,
+                                     boolean streamed) throws IOException {
+        currentStep = "Archive";
+        Path rootPath = streamed ?
+                extractWhileDownloading(url, authToken, this::isWantedEntry) :
+                extractFromArchive(url, authToken, this::isWantedEntry);
+        if (rootPath == null || !Files.isDirectory(rootPath)) {
+            return null;
+        }
+        Path metadataFile = rootPath.resolve(productDescriptor.getMetadataFileName());
+        if (Files.exists(metadataFile)) {
+            updateMedatata(metadataFile, Files.readAllLines(metadataFile));
+        }
+        Path tilesFolder = rootPath.resolve(Constants.FOLDER_GRANULE);
+        if (Files.isDirectory(tilesFolder)) {
+            try (DirectoryStream<Path> tileFolders = Files.newDirectoryStream(tilesFolder)) {
+                for (Path tileFolder : tileFolders) {
+                    try (DirectoryStream<Path> tileMetaFiles = Files.newDirectoryStream(tileFolder, "*.xml")) {
+                        for (Path tileMetaFile : tileMetaFiles) {
+                            addRepairTask(() -> MetadataRepairer.parse(tileMetaFile, this.fillMissingAnglesMethod));
+                        }
+                    }
+                }
+            }
+        }
+        return rootPath;
+    }
+
+    /**
+     * Checks if an entry of a product archive belongs to the selected tiles and bands.
+     * The entries outside the tile folders are always kept.
+     */
+    private boolean isWantedEntry(String name) {
+        String[] tokens = name.split(URL_SEPARATOR);
+        if (tokens.length < 3 || !Constants.FOLDER_GRANULE.equals(tokens[1])) {
+            return true;
+        }
+        if (this.filteredTiles != null && this.filteredTiles.size() > 0 &&
+                this.filteredTiles.stream().noneMatch(tile -> (tokens[2] + NAME_SEPARATOR).contains(NAME_SEPARATOR + "T" + tile + NAME_SEPARATOR))) {
+            return false;
+        }
+        if (this.bands == null || tokens.length < 5) {
+            return true;
+        }
+        String fileName = tokens[tokens.length - 1];
+        if (Constants.FOLDER_IMG_DATA.equals(tokens[3])) {
+            String baseName = NAME_SEPARATOR + (fileName.indexOf('.') > 0 ? fileName.substring(0, fileName.indexOf('.')) : fileName) + NAME_SEPARATOR;
+            return this.bands.stream().anyMatch(band -> baseName.contains(NAME_SEPARATOR + band + NAME_SEPARATOR));
+        }
+        if (Constants.FOLDER_QI_DATA.equals(tokens[3]) && fileName.contains("MSK_")) {
+            return this.bands.stream().anyMatch(fileName::contains);
+        }
+        return true;
+    }
+
     private void copyFromResources(String fileName, Path file) throws IOException {
         try (BufferedReader reader = new BufferedReader(new InputStreamReader(getClass().getResourceAsStream(fileName)))) {
             String line;
@@ -139,6 +139,8 @@ public class AmazonSearch extends AbstractSearch<ProductType> {
                                                     String jsonProduct = dayUrl + String.valueOf(sequence) + "/productInfo.json";
                                                     jsonProduct = jsonProduct.replace("?delimiter=/&prefix=", "");
                                                     ProductDescriptor descriptor = parseProductJson(jsonProduct);
+                                                    // the products of a tile share the download bandwidth fairly with the other tiles
+                                                    descriptor.setGroup(tile);
                                                     if (this.relativeOrbit == 0 ||
                                                             descriptor.getName().contains("_R" + String.format("%03d", this.relativeOrbit))) {
                                                         results.put(descriptor.getName(), descriptor);
@@ -85,6 +85,10 @@ public class PepsSearch extends AbstractSearch<PepsCollection> {
         String queryUrl = getQuery();
         Logger.getRootLogger().info(queryUrl);
         try (CloseableHttpResponse response = NetUtils.openConnection(queryUrl, credentials)) {
+            if (response == null) {
+                Logger.getRootLogger().warn("%s is not available", this.url);
+                return results;
+            }
             switch (response.getStatusLine().getStatusCode()) {
                 case 200:
                     ObjectMapper mapper = new ObjectMapper();
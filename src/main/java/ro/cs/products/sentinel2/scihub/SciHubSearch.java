@@ -30,6 +30,7 @@ import ro.cs.products.sentinel2.S2L1CProductDescriptor;
 import ro.cs.products.sentinel2.S2L2AProductDescriptor;
 import ro.cs.products.util.Logger;
 import ro.cs.products.util.NetUtils;
+import ro.cs.products.util.Utilities;
 
 import java.io.IOException;
 import java.net.URISyntaxException;
@@ -136,6 +137,10 @@ public class SciHubSearch extends AbstractSearch<ProductType> {
         String queryUrl = getQuery();
         Logger.getRootLogger().info(queryUrl);
         try (CloseableHttpResponse response = NetUtils.openConnection(queryUrl, credentials)) {
+            if (response == null) {
+                Logger.getRootLogger().warn("%s is not available", this.url);
+                return results;
+            }
             switch (response.getStatusLine().getStatusCode()) {
                 case 200:
                     String[] strings = EntityUtils.toString(response.getEntity()).split("\n");
@@ -163,6 +168,10 @@ public class SciHubSearch extends AbstractSearch<ProductType> {
                             if (currentProduct != null) {
                                 currentProduct.setCloudsPercentage(currentClouds);
                             }
+                        } else if (string.contains("<str name=\"size\">")) {
+                            if (currentProduct != null) {
+                                currentProduct.setApproximateSize(Utilities.parseSize(string.replace("<str name=\"size\">", "").replace("</str>", "")));
+                            }
                         } else if (string.contains("<id>")) {
                             if (currentProduct != null) {
                                 currentProduct.setId(string.replace("<id>", "").replace("</id>", ""));
@@ -0,0 +1,73 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package ro.cs.products.util;
+
+import java.util.Arrays;
+
+/**
+ * Socket timeout derived from the latency observed for a kind of request. Once enough responses were
+ * received, the timeout is a multiple of the 99th percentile of the time until the response headers,
+ * bounded by the given limits. Until then, the configured timeout is used.
+ *
+ * @author Cosmin Cara
+ */
+class AdaptiveTimeout {
+    private static final int SAMPLE_COUNT = 128;
+    private static final int MIN_SAMPLES = 20;
+    private static final int UPDATE_INTERVAL = 8;
+    private static final double MULTIPLIER = 4.0;
+
+    private final long[] samples = new long[SAMPLE_COUNT];
+    private final boolean canShorten;
+    private int count;
+    private int next;
+    private volatile long percentile = -1;
+
+    /**
+     * @param canShorten    If <code>false</code>, the timeout may only grow above the configured value
+     */
+    AdaptiveTimeout(boolean canShorten) {
+        this.canShorten = canShorten;
+    }
+
+    synchronized void record(long latencyMillis) {
+        this.samples[this.next] = latencyMillis;
+        this.next = (this.next + 1) % SAMPLE_COUNT;
+        this.count++;
+        if (this.count >= MIN_SAMPLES && this.count % UPDATE_INTERVAL == 0) {
+            long[] sorted = Arrays.copyOf(this.samples, Math.min(this.count, SAMPLE_COUNT));
+            Arrays.sort(sorted);
+            this.percentile = sorted[(int) Math.ceil(0.99 * sorted.length) - 1];
+        }
+    }
+
+    /**
+     * Returns the timeout, in milliseconds, for a new request.
+     *
+     * @param configured    The configured timeout
+     */
+    int getTimeout(int configured) {
+        long value = this.percentile;
+        if (value < 0) {
+            return configured;
+        }
+        long lowerBound = this.canShorten ? Math.min(5000, configured) : configured;
+        return (int) Math.max(lowerBound, Math.min(4L * configured, (long) (MULTIPLIER * value)));
+    }
+}
@@ -0,0 +1,121 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package ro.cs.products.util;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Hard limit of the concurrent requests to a host (or to a domain and its sub-domains), such as the number of
+ * downloads a provider allows for an account. Requests over the limit wait in arrival order and are rejected
+ * if not admitted within the admission timeout, so that a saturated provider cannot hold the callers indefinitely.
+ * Hosts without a configured limit are not restricted, hence they are never affected by the others.
+ *
+ * @author Cosmin Cara
+ */
+class Bulkhead {
+    private static final Map<String, Bulkhead> bulkheads = new ConcurrentHashMap<>();
+    private static volatile long admissionTimeout = TimeUnit.MINUTES.toMillis(15);
+
+    private final String domain;
+    private final int limit;
+    private final Semaphore permits;
+
+    static void setLimit(String domain, int limit) {
+        domain = domain.trim().toLowerCase();
+        if (limit > 0) {
+            bulkheads.put(domain, new Bulkhead(domain, limit));
+        } else {
+            bulkheads.remove(domain);
+        }
+    }
+
+    static void setAdmissionTimeout(long millis) {
+        admissionTimeout = Math.max(0, millis);
+    }
+
+    static long getAdmissionTimeout() {
+        return admissionTimeout;
+    }
+
+    /**
+     * Returns the bulkhead of the given host, or <code>null</code> if the host is not limited.
+     * The most specific domain configured for the host is used.
+     */
+    static Bulkhead forHost(String host) {
+        if (host == null || bulkheads.isEmpty()) {
+            return null;
+        }
+        String domain = host.toLowerCase();
+        while (true) {
+            Bulkhead bulkhead = bulkheads.get(domain);
+            if (bulkhead != null) {
+                return bulkhead;
+            }
+            int idx = domain.indexOf('.');
+            if (idx < 0) {
+                return null;
+            }
+            domain = domain.substring(idx + 1);
+        }
+    }
+
+    private Bulkhead(String domain, int limit) {
+        this.domain = domain;
+        this.limit = limit;
+        this.permits = new Semaphore(limit, true);
+    }
+
+    int getLimit() {
+        return this.limit;
+    }
+
+    /**
+     * Waits for a free slot, indefinitely if the admission timeout is 0.
+     *
+     * @throws IOException  If no slot was freed within the admission timeout
+     */
+    void admit() throws IOException {
+        if (this.permits.tryAcquire()) {
+            return;
+        }
+        Logger.getRootLogger().debug("Request to %s queued [limit: %s, waiting: %s]",
+                                     this.domain, this.limit, this.permits.getQueueLength() + 1);
+        try {
+            long timeout = admissionTimeout;
+            if (timeout == 0) {
+                this.permits.acquire();
+            } else if (!this.permits.tryAcquire(timeout, TimeUnit.MILLISECONDS)) {
+                throw new IOException(String.format("Request to %s not admitted within %s s [limit: %s]",
+                                                    this.domain, timeout / 1000, this.limit));
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException(String.format("Interrupted while waiting for a connection to %s", this.domain));
+        }
+    }
+
+    void release() {
+        this.permits.release();
+    }
+}
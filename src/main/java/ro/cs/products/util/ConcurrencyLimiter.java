@@ -0,0 +1,139 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package ro.cs.products.util;
+
+import java.io.InterruptedIOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Adaptive limit of the requests in flight to a host (additive increase, multiplicative decrease).
+ * While the limit is reached and the latency stays close to the best one observed, the limit grows
+ * by about one request per round trip. Failures, 429 or 5xx responses halve it, while a rising latency
+ * lowers it gently.
+ * A thread that already holds a permit is never blocked, so that nested requests cannot deadlock.
+ *
+ * @author Cosmin Cara
+ */
+class ConcurrencyLimiter {
+    private static final double OVERLOAD_RATIO = 0.5;
+    private static final double LATENCY_RATIO = 0.9;
+    private static final double LATENCY_TOLERANCE = 2.0;
+    private static final double SMOOTHING = 0.2;
+    private static final Map<String, ConcurrencyLimiter> limiters = new ConcurrentHashMap<>();
+    private static final ThreadLocal<AtomicInteger> heldPermits = ThreadLocal.withInitial(AtomicInteger::new);
+
+    private final String host;
+    private final int maxLimit;
+    private double limit;
+    private int inFlight;
+    private double minLatency = Double.MAX_VALUE;
+    private double smoothedLatency;
+    private long lastDecrease;
+
+    static ConcurrencyLimiter forHost(String host, int initialLimit, int maxLimit) {
+        return limiters.computeIfAbsent(host != null ? host : "", h -> new ConcurrencyLimiter(h, initialLimit, maxLimit));
+    }
+
+    static void reset() {
+        limiters.clear();
+    }
+
+    private ConcurrencyLimiter(String host, int initialLimit, int maxLimit) {
+        this.host = host;
+        this.maxLimit = Math.max(1, maxLimit);
+        this.limit = Math.max(1, Math.min(initialLimit, this.maxLimit));
+    }
+
+    /**
+     * Waits until a new request to the host is allowed.
+     *
+     * @return  The count of the permits held by the calling thread, to be handed back to {@link #release}
+     */
+    AtomicInteger acquire() throws InterruptedIOException {
+        AtomicInteger held = heldPermits.get();
+        synchronized (this) {
+            try {
+                while (held.get() == 0 && this.inFlight >= (int) this.limit) {
+                    wait();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException(String.format("Interrupted while waiting for a connection to %s", this.host));
+            }
+            this.inFlight++;
+        }
+        held.incrementAndGet();
+        return held;
+    }
+
+    /**
+     * Gives back a permit. The permit may be released by a thread other than the one that acquired it.
+     *
+     * @param held  The count returned by {@link #acquire}
+     */
+    void release(AtomicInteger held) {
+        held.decrementAndGet();
+        synchronized (this) {
+            this.inFlight--;
+            notifyAll();
+        }
+    }
+
+    /**
+     * Updates the limit with the outcome of a request.
+     *
+     * @param statusCode    The HTTP status code, or -1 if the request failed
+     * @param latency       The time until the response headers were received, in nanoseconds
+     */
+    synchronized void update(int statusCode, long latency) {
+        long now = System.nanoTime();
+        if (statusCode < 0 || statusCode == 429 || statusCode >= 500) {
+            decrease(now, OVERLOAD_RATIO, statusCode < 0 ? "request failed" : "HTTP " + statusCode);
+            return;
+        }
+        this.minLatency = Math.min(this.minLatency, latency);
+        this.smoothedLatency = this.smoothedLatency == 0 ?
+                latency : (1 - SMOOTHING) * this.smoothedLatency + SMOOTHING * latency;
+        if (this.smoothedLatency > LATENCY_TOLERANCE * this.minLatency) {
+            decrease(now, LATENCY_RATIO, "latency rising");
+        } else if (this.inFlight >= (int) this.limit && this.limit < this.maxLimit) {
+            this.limit = Math.min(this.maxLimit, this.limit + 1.0 / this.limit);
+            notifyAll();
+        }
+    }
+
+    synchronized int getLimit() {
+        return (int) this.limit;
+    }
+
+    private void decrease(long now, double ratio, String reason) {
+        // the requests already in flight reflect the previous limit, hence at most one decrease per round trip
+        if (now - this.lastDecrease > Math.max(this.smoothedLatency, TimeUnit.MILLISECONDS.toNanos(100))) {
+            int previous = (int) this.limit;
+            this.limit = Math.max(1, this.limit * ratio);
+            this.lastDecrease = now;
+            if ((int) this.limit != previous) {
+                Logger.getRootLogger().debug("Concurrency limit for %s lowered to %s (%s)", this.host, (int) this.limit, reason);
+            }
+        }
+    }
+}
@@ -45,6 +45,7 @@ public class Constants {
     public static final String PARAM_FLAG_PREOPS = "pre";
     public static final String PARAM_DOWNLOAD_STORE = "s";
     public static final String PARAM_FLAG_UNPACKED = "u";
+    public static final String PARAM_FLAG_EXTRACT = "x";
     public static final String PARAM_FLAG_SEARCH_AWS = "aws";
     public static final String PARAM_USER = "user";
     public static final String PARAM_PASSWORD = "pwd";
@@ -52,11 +53,18 @@ public class Constants {
     public static final String PARAM_L8_COLLECTION = "l8col";
     public static final String PARAM_S2_PRODUCT_TYPE = "s2t";
     public static final String PARAM_L8_PRODUCT_TYPE = "l8t";
+    public static final String PARAM_PARALLEL_PRODUCTS = "pp";
+    public static final String PARAM_PARALLEL_FILES = "pfi";
+    public static final String PARAM_SEGMENTS = "seg";
+    public static final String PARAM_BANDWIDTH = "bw";
     public static final double DEFAULT_CLOUD_PERCENTAGE = 100.0;
     public static final String DEFAULT_START_DATE = "NOW-7DAY";
     public static final String PATTERN_START_DATE = "NOW-%sDAY";
     public static final String DEFAULT_END_DATE = "NOW";
     public static final int DEFAULT_RESULTS_LIMIT = 10;
+    public static final int DEFAULT_PARALLEL_PRODUCTS = 1;
+    public static final int DEFAULT_PARALLEL_FILES = 1;
+    public static final int DEFAULT_SEGMENTS = 1;
     public static final String PROPERTY_NAME_SEARCH_URL = "scihub.search.url";
     public static final String PROPERTY_NAME_SEARCH_PREOPS_URL = "preops.scihub.search.url";
     public static final String PROPERTY_NAME_SCIHUB_PRODUCTS_URL = "scihub.product.url";
@@ -109,4 +117,32 @@ public class Constants {
     public static final String PROPERTY_NAME_AWS_TILES_URL = "s2.aws.tiles.url";
     public static final String PROPERTY_DEFAULT_AWS_TILES_URL = "http://sentinel-products-l1c.s3-website.eu-central-1.amazonaws.com";
     public static final String PROPERTY_DEFAULT_SCIHUB_PREOPS_PRODUCTS_URL = "https://scihub.copernicus.eu/s2b/odata/v1";
+    public static final String PROPERTY_NAME_SEGMENTED_MIN_SIZE = "segmented.download.min.size";
+    public static final long DEFAULT_SEGMENTED_MIN_SIZE = 64 * 1024 * 1024;
+    public static final String PROPERTY_NAME_HTTP_POOL_MAX_TOTAL = "http.pool.max.total";
+    public static final int DEFAULT_HTTP_POOL_MAX_TOTAL = 64;
+    public static final String PROPERTY_NAME_HTTP_POOL_MAX_PER_HOST = "http.pool.max.per.host";
+    public static final int DEFAULT_HTTP_POOL_MAX_PER_HOST = 16;
+    public static final String PROPERTY_NAME_HTTP_POOL_IDLE_TIMEOUT = "http.pool.idle.timeout";
+    public static final int DEFAULT_HTTP_POOL_IDLE_TIMEOUT = 60;
+    public static final String PROPERTY_NAME_HTTP_ADAPTIVE_CONCURRENCY = "http.adaptive.concurrency";
+    public static final int DEFAULT_HTTP_ADAPTIVE_CONCURRENCY = 4;
+    public static final String PROPERTY_NAME_HTTP_BULKHEAD = "http.bulkhead";
+    public static final String PROPERTY_NAME_HTTP_ADMISSION_TIMEOUT = "http.admission.timeout";
+    public static final int DEFAULT_HTTP_ADMISSION_TIMEOUT = 900;
+    public static final String PROPERTY_NAME_RETRY_ATTEMPTS = "retry.attempts";
+    public static final String PROPERTY_NAME_RETRY_DELAY = "retry.delay";
+    public static final String PROPERTY_NAME_RETRY_MAX_DELAY = "retry.max.delay";
+    public static final String PROPERTY_NAME_BUFFER_POOL_SIZE = "buffer.pool.size";
+    public static final int DEFAULT_BUFFER_POOL_SIZE = 64;
+    public static final String PROPERTY_NAME_STALL_MIN_RATE = "stall.min.rate";
+    public static final int DEFAULT_STALL_MIN_RATE = 8;
+    public static final String PROPERTY_NAME_STALL_WINDOW = "stall.window";
+    public static final int DEFAULT_STALL_WINDOW = 30;
+    public static final String PROPERTY_NAME_METADATA_PREFETCH_DEPTH = "metadata.prefetch.depth";
+    public static final int DEFAULT_METADATA_PREFETCH_DEPTH = 2;
+    public static final String PROPERTY_NAME_SCHEDULING_POLICY = "download.scheduling";
+    public static final String DEFAULT_SCHEDULING_POLICY = "FIFO";
+    public static final String PROPERTY_NAME_BANDWIDTH_LIMIT = "bandwidth.limit";
+    public static final String PROPERTY_NAME_BANDWIDTH_SCHEDULE = "bandwidth.schedule";
 }
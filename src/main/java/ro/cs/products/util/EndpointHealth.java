@@ -0,0 +1,237 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package ro.cs.products.util;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Registry of the health of the remote endpoints (search and product services), learnt from the outcome
+ * of the requests sent to them. Each endpoint, identified by its base url, has a circuit breaker that opens
+ * after several consecutive failures. While the breaker is open, the requests are sent to the backup of the
+ * endpoint, if one was registered, or fail immediately otherwise. An open endpoint is probed in the background
+ * and the breaker closes as soon as the endpoint answers again.
+ *
+ * @author Cosmin Cara
+ */
+public class EndpointHealth {
+    private static final int FAILURE_THRESHOLD = 3;
+    private static final long MIN_OPEN_TIME = TimeUnit.SECONDS.toMillis(30);
+    private static final long MAX_OPEN_TIME = TimeUnit.MINUTES.toMillis(5);
+    private static final long PROBE_INTERVAL = 5;
+    private static final Map<String, Breaker> breakers = new ConcurrentHashMap<>();
+    private static volatile long minOpenTime = MIN_OPEN_TIME;
+    private static ScheduledExecutorService prober;
+
+    /**
+     * Starts tracking the health of the endpoint with the given base url.
+     */
+    public static void register(String baseUrl) {
+        breakerOf(baseUrl);
+    }
+
+    /**
+     * Starts tracking the health of an endpoint and of its backup. The requests to the endpoint are
+     * sent to the backup while the breaker of the endpoint is open.
+     */
+    public static void register(String baseUrl, String backupUrl) {
+        Breaker breaker = breakerOf(baseUrl);
+        if (backupUrl != null && !normalize(backupUrl).equals(breaker.baseUrl)) {
+            breaker.backup = breakerOf(backupUrl);
+        }
+    }
+
+    /**
+     * Returns the url to which a request for the given url should be sent: the url itself, if its endpoint
+     * is available (or not tracked), or the same resource from the backup endpoint.
+     *
+     * @throws IOException  If the endpoint is not available and has no available backup
+     */
+    static String route(String url) throws IOException {
+        Breaker breaker = find(url);
+        if (breaker == null || breaker.isClosed()) {
+            return url;
+        }
+        Breaker backup = breaker.backup;
+        if (backup != null && backup.isClosed()) {
+            return backup.baseUrl + url.substring(breaker.baseUrl.length());
+        }
+        throw new IOException(String.format("%s is not available", breaker.baseUrl));
+    }
+
+    /**
+     * Records the outcome of a request.
+     *
+     * @param url       The url of the request
+     * @param success   <code>false</code> if the request failed or the server reported an error
+     */
+    static void record(String url, boolean success) {
+        Breaker breaker = find(url);
+        if (breaker != null) {
+            if (success) {
+                breaker.onSuccess();
+            } else if (breaker.onFailure()) {
+                scheduleProbes();
+            }
+        }
+    }
+
+    /**
+     * Sets how long a breaker stays open before its endpoint is probed for the first time.
+     * The time doubles, up to 5 minutes, with every probe that fails.
+     */
+    static void setMinOpenTime(long millis) {
+        minOpenTime = Math.max(0, millis);
+    }
+
+    /**
+     * Stops tracking all the endpoints.
+     */
+    static void reset() {
+        breakers.clear();
+    }
+
+    /**
+     * Probes the endpoints whose breakers were open long enough, and closes the breakers of those that answer.
+     */
+    static void probe() {
+        for (Breaker breaker : breakers.values()) {
+            if (breaker.shouldProbe()) {
+                boolean alive = NetUtils.probe(breaker.baseUrl);
+                breaker.onProbe(alive);
+            }
+        }
+    }
+
+    private static Breaker breakerOf(String baseUrl) {
+        return breakers.computeIfAbsent(normalize(baseUrl), Breaker::new);
+    }
+
+    /**
+     * Finds the breaker of the longest base url that is a prefix of the given url.
+     */
+    private static Breaker find(String url) {
+        if (breakers.isEmpty() || url == null) {
+            return null;
+        }
+        Breaker found = null;
+        for (Breaker breaker : breakers.values()) {
+            String base = breaker.baseUrl;
+            if (url.startsWith(base) && (url.length() == base.length() || "/?(#".indexOf(url.charAt(base.length())) >= 0) &&
+                    (found == null || base.length() > found.baseUrl.length())) {
+                found = breaker;
+            }
+        }
+        return found;
+    }
+
+    private static String normalize(String url) {
+        int idx = url.indexOf('?');
+        if (idx >= 0) {
+            url = url.substring(0, idx);
+        }
+        return url.endsWith("/") ? url.substring(0, url.length() - 1) : url;
+    }
+
+    private static synchronized void scheduleProbes() {
+        if (prober == null) {
+            prober = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "endpoint-prober");
+                thread.setDaemon(true);
+                return thread;
+            });
+            prober.scheduleWithFixedDelay(EndpointHealth::probe, PROBE_INTERVAL, PROBE_INTERVAL, TimeUnit.SECONDS);
+        }
+    }
+
+    private enum State { CLOSED, OPEN, HALF_OPEN }
+
+    private static class Breaker {
+        private final String baseUrl;
+        private volatile Breaker backup;
+        private volatile State state = State.CLOSED;
+        private int failures;
+        private long openTime = minOpenTime;
+        private long openUntil;
+
+        Breaker(String baseUrl) {
+            this.baseUrl = baseUrl;
+        }
+
+        boolean isClosed() {
+            return this.state == State.CLOSED;
+        }
+
+        synchronized void onSuccess() {
+            this.failures = 0;
+            if (this.state != State.CLOSED) {
+                close();
+            }
+        }
+
+        /**
+         * Counts a failure and returns <code>true</code> if the breaker has just opened.
+         */
+        synchronized boolean onFailure() {
+            if (this.state == State.CLOSED && ++this.failures >= FAILURE_THRESHOLD) {
+                open();
+                return true;
+            }
+            return false;
+        }
+
+        synchronized boolean shouldProbe() {
+            if (this.state == State.OPEN && System.currentTimeMillis() >= this.openUntil) {
+                this.state = State.HALF_OPEN;
+                return true;
+            }
+            return false;
+        }
+
+        synchronized void onProbe(boolean alive) {
+            if (this.state != State.HALF_OPEN) {
+                return;
+            }
+            if (alive) {
+                close();
+            } else {
+                this.openTime = Math.min(MAX_OPEN_TIME, this.openTime * 2);
+                open();
+            }
+        }
+
+        private void open() {
+            this.state = State.OPEN;
+            this.openUntil = System.currentTimeMillis() + this.openTime;
+            Logger.getRootLogger().warn("%s is not available%s", this.baseUrl,
+                                        this.backup != null ? ", using " + this.backup.baseUrl : "");
+        }
+
+        private void close() {
+            this.state = State.CLOSED;
+            this.failures = 0;
+            this.openTime = minOpenTime;
+            Logger.getRootLogger().info("%s is available again", this.baseUrl);
+        }
+    }
+}
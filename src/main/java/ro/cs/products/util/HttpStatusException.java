@@ -0,0 +1,49 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package ro.cs.products.util;
+
+import java.io.IOException;
+
+/**
+ * Signals that a HTTP request was answered with an unsuccessful status code.
+ *
+ * @author Cosmin Cara
+ */
+public class HttpStatusException extends IOException {
+    private static final long serialVersionUID = 1L;
+    private final int statusCode;
+    private final String retryAfter;
+
+    public HttpStatusException(String message, int statusCode, String retryAfter) {
+        super(message);
+        this.statusCode = statusCode;
+        this.retryAfter = retryAfter;
+    }
+
+    public int getStatusCode() {
+        return statusCode;
+    }
+
+    /**
+     * Returns the value of the <code>Retry-After</code> header of the response, if any.
+     */
+    public String getRetryAfter() {
+        return retryAfter;
+    }
+}
@@ -18,43 +18,82 @@
  */
 package ro.cs.products.util;
 
+import org.apache.http.Header;
 import org.apache.http.HttpHost;
+import org.apache.http.HttpStatus;
 import org.apache.http.auth.AuthScope;
 import org.apache.http.auth.Credentials;
 import org.apache.http.auth.UsernamePasswordCredentials;
+import org.apache.http.client.AuthCache;
 import org.apache.http.client.CredentialsProvider;
 import org.apache.http.client.config.RequestConfig;
 import org.apache.http.client.methods.CloseableHttpResponse;
 import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpHead;
+import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.http.client.protocol.HttpClientContext;
+import org.apache.http.config.Registry;
+import org.apache.http.config.RegistryBuilder;
+import org.apache.http.conn.socket.ConnectionSocketFactory;
+import org.apache.http.conn.socket.PlainConnectionSocketFactory;
+import org.apache.http.conn.ssl.SSLConnectionSocketFactory;
+import org.apache.http.impl.auth.BasicScheme;
+import org.apache.http.impl.client.BasicAuthCache;
 import org.apache.http.impl.client.BasicCredentialsProvider;
 import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClientBuilder;
 import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.protocol.HttpContext;
+import org.apache.http.ssl.SSLContexts;
 import org.apache.http.util.EntityUtils;
 
+import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.lang.reflect.InvocationTargetException;
 import java.net.Authenticator;
-import java.net.HttpURLConnection;
 import java.net.InetSocketAddress;
 import java.net.PasswordAuthentication;
 import java.net.Proxy;
+import java.net.Socket;
 import java.net.URI;
 import java.net.URISyntaxException;
-import java.net.URL;
-import java.util.List;
+import java.util.EnumMap;
 import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
- * Helper class to check availability of a given url.
+ * Helper class for HTTP traffic. All the requests go through a single, shared, pool of
+ * persistent connections.
  *
  * @author Cosmin Cara
  */
 public class NetUtils {
 
     private String authToken;
-    private static Proxy javaNetProxy;
+    private static Proxy socksProxy;
     private static HttpHost apacheHttpProxy;
-    private static CredentialsProvider proxyCredentials;
+    private static AuthScope proxyAuthScope;
+    private static Credentials proxyUserCredentials;
     private static int timeout = 30000;
+    private static int maxConnections = 64;
+    private static int maxConnectionsPerRoute = 16;
+    private static int idleConnectionTimeout = 60;
+    private static int initialConcurrency;
+    private static final Map<RetryPolicy.Operation, AdaptiveTimeout> timeouts = new EnumMap<>(RetryPolicy.Operation.class);
+    private static CloseableHttpClient httpClient;
+    private static RequestConfig requestConfig;
+
+    static {
+        for (RetryPolicy.Operation operation : RetryPolicy.Operation.values()) {
+            // only the requests for small files fail faster than configured, large transfers and searches may only wait longer
+            timeouts.put(operation, new AdaptiveTimeout(operation == RetryPolicy.Operation.METADATA ||
+                                                                operation == RetryPolicy.Operation.LISTING));
+        }
+    }
 
     public void setAuthToken(String value) {
         authToken = value;
@@ -67,7 +106,6 @@ public class NetUtils {
     public static void setProxy(String type, final String host, final int port, final String user, final String pwd) {
         if (type != null && host != null) {
             Proxy.Type proxyType = Enum.valueOf(Proxy.Type.class, type.toUpperCase());
-            javaNetProxy = new Proxy(proxyType, new InetSocketAddress(host, port));
             Authenticator.setDefault(new Authenticator() {
                 @Override
                 protected PasswordAuthentication getPasswordAuthentication() {
@@ -75,25 +113,85 @@ public class NetUtils {
                 }
             });
             if (user != null && pwd != null) {
-                proxyCredentials = new BasicCredentialsProvider();
-                proxyCredentials.setCredentials(new AuthScope(host, port), new UsernamePasswordCredentials(user, pwd));
+                proxyAuthScope = new AuthScope(host, port);
+                proxyUserCredentials = new UsernamePasswordCredentials(user, pwd);
             }
-            apacheHttpProxy = new HttpHost(host, port, proxyType.name());
+            if (Proxy.Type.SOCKS.equals(proxyType)) {
+                socksProxy = new Proxy(proxyType, new InetSocketAddress(host, port));
+            } else {
+                apacheHttpProxy = new HttpHost(host, port, proxyType.name());
+            }
+            resetHttpClient();
         }
     }
 
     public static void setTimeout(int newTimeout) {
         timeout = newTimeout;
+        resetHttpClient();
+    }
+
+    /**
+     * Configures the shared connection pool.
+     *
+     * @param maxTotal          The maximum number of connections in the pool
+     * @param maxPerRoute       The maximum number of connections to the same host
+     * @param idleSeconds       The time after which an idle connection is evicted from the pool
+     */
+    public static void setConnectionPool(int maxTotal, int maxPerRoute, int idleSeconds) {
+        maxConnections = Math.max(1, maxTotal);
+        maxConnectionsPerRoute = Math.max(1, Math.min(maxPerRoute, maxConnections));
+        idleConnectionTimeout = Math.max(1, idleSeconds);
+        resetHttpClient();
+    }
+
+    /**
+     * Enables the adaptive limit of the requests in flight to each host. The limit starts from the given value
+     * and varies between 1 and the maximum number of connections per host, following the errors and the latency
+     * of the responses. A value of 0 disables the limit.
+     */
+    public static void setAdaptiveConcurrency(int initialLimit) {
+        initialConcurrency = Math.max(0, initialLimit);
+        ConcurrencyLimiter.reset();
+    }
+
+    /**
+     * Limits the number of concurrent requests to the given host, and to its sub-domains, regardless of the adaptive
+     * limit and of the size of the connection pool. A value of 0 removes the limit.
+     */
+    public static void setBulkhead(String domain, int maxRequests) {
+        Bulkhead.setLimit(domain, maxRequests);
     }
 
+    /**
+     * Sets the time a request may wait for a slot of its bulkhead, or for a pooled connection, before failing.
+     */
+    public static void setAdmissionTimeout(int seconds) {
+        Bulkhead.setAdmissionTimeout(TimeUnit.SECONDS.toMillis(seconds));
+        resetHttpClient();
+    }
+
+    /**
+     * Returns the number of concurrent requests allowed to the host of the given url, or
+     * <code>Integer.MAX_VALUE</code> if the host is not limited.
+     */
+    public static int getConnectionLimit(String url) {
+        try {
+            Bulkhead bulkhead = Bulkhead.forHost(new URI(url).getHost());
+            return bulkhead != null ? bulkhead.getLimit() : Integer.MAX_VALUE;
+        } catch (URISyntaxException e) {
+            return Integer.MAX_VALUE;
+        }
+    }
+
+    /**
+     * Checks if the given url answers, by performing a blocking request.
+     * The availability of the endpoints that are in use is rather tracked by {@link EndpointHealth}.
+     */
     public boolean isAvailable(String url) {
         boolean status;
-        try {
-            Logger.getRootLogger().debug("Verifying url: %s", url);
-            HttpURLConnection connection = openConnection(url, authToken);
-            connection.setRequestMethod("GET");
-            connection.connect();
-            final int responseCode = connection.getResponseCode();
+        Logger.getRootLogger().debug("Verifying url: %s", url);
+        try (CloseableHttpResponse response = openConnection(url, authToken, null)) {
+            final int responseCode = response.getStatusLine().getStatusCode();
             status = (200 == responseCode || 400 == responseCode || 401 == responseCode);
             Logger.getRootLogger().debug("Url status: %s [code %s]", url, responseCode);
         } catch (Exception e) {
@@ -103,84 +201,195 @@ public class NetUtils {
         return status;
     }
 
-    public static HttpURLConnection openConnection(String url) {
-        return openConnection(url, (String) null);
+    /**
+     * Performs a GET request for the given url.
+     * The response has to be closed by the caller, after its entity was consumed,
+     * in order for the connection to be given back to the pool.
+     *
+     * @param url           The url
+     * @param authToken     The value of the Authorization header, if any
+     * @param headers       Additional request headers, if any
+     */
+    public static CloseableHttpResponse openConnection(String url, String authToken, Map<String, String> headers) throws IOException {
+        return openConnection(url, authToken, headers, RetryPolicy.Operation.METADATA);
     }
 
-    public static HttpURLConnection openConnection(String url, String authToken) {
-        HttpURLConnection connection = null;
+    /**
+     * Performs a GET request for the given url. The socket timeout of the request adapts to the latency
+     * observed for the given kind of operation. The request is not retried.
+     * The response has to be closed by the caller, after its entity was consumed,
+     * in order for the connection to be given back to the pool.
+     *
+     * @param url           The url
+     * @param authToken     The value of the Authorization header, if any
+     * @param headers       Additional request headers, if any
+     * @param operation     The kind of operation
+     */
+    public static CloseableHttpResponse openConnection(String url, String authToken, Map<String, String> headers,
+                                                       RetryPolicy.Operation operation) throws IOException {
+        HttpGet get;
         try {
-            URL urlObj = new URL(url);
-            if (javaNetProxy == null) {
-                connection = (HttpURLConnection) urlObj.openConnection();
-                Logger.getRootLogger().debug("Proxyless connection to %s opened", url);
-            } else {
-                connection = (HttpURLConnection) urlObj.openConnection(javaNetProxy);
-                Logger.getRootLogger().debug("Proxy connection to %s opened", url);
-            }
-            if (authToken != null) {
-                connection.setRequestProperty("Authorization", authToken);
+            get = new HttpGet(new URI(url));
+        } catch (URISyntaxException e) {
+            throw new IOException(e.getMessage());
+        }
+        if (authToken != null) {
+            get.setHeader("Authorization", authToken);
+        }
+        if (headers != null) {
+            for (Map.Entry<String, String> header : headers.entrySet()) {
+                get.setHeader(header.getKey(), header.getValue());
             }
-            connection.setConnectTimeout(timeout);
-            connection.setReadTimeout(timeout);
-        } catch (IOException e) {
-            Logger.getRootLogger().debug("Could not open connection to %s [%s]", url, e.getMessage());
-        }
-        if (connection != null) {
-            StringBuilder builder = new StringBuilder();
-            Map<String, List<String>> requestProperties = connection.getRequestProperties();
-            for (Map.Entry<String, List<String>> entry : requestProperties.entrySet()) {
-                builder.append(entry.getKey()).append("=");
-                for (String value : entry.getValue()) {
-                    builder.append(value).append(",");
+        }
+        HttpClientContext context = HttpClientContext.create();
+        if (proxyUserCredentials != null) {
+            CredentialsProvider credentialsProvider = new BasicCredentialsProvider();
+            credentialsProvider.setCredentials(proxyAuthScope, proxyUserCredentials);
+            context.setCredentialsProvider(credentialsProvider);
+        }
+        CloseableHttpResponse response = execute(get, context, operation);
+        Logger.getRootLogger().debug("HTTP GET %s returned %s", url, response.getStatusLine().getStatusCode());
+        return response;
+    }
+
+    public static CloseableHttpResponse openConnection(String url, Credentials credentials) {
+        return openConnection(url, credentials, RetryPolicy.Operation.SEARCH);
+    }
+
+    /**
+     * Performs a GET request for the given url, retrying it according to the policy of the given operation
+     * as long as it fails or is answered with a transient error status (such as 429 or 503).
+     *
+     * @return  The last response, or <code>null</code> if no response could be obtained
+     */
+    private static CloseableHttpResponse openConnection(String url, Credentials credentials, RetryPolicy.Operation operation) {
+        RetryPolicy policy = RetryPolicy.get(operation);
+        for (int attempt = 1; ; attempt++) {
+            String retryAfter = null;
+            try {
+                URI uri = new URI(url);
+                HttpClientContext context = HttpClientContext.create();
+                CredentialsProvider credentialsProvider = new BasicCredentialsProvider();
+                if (proxyUserCredentials != null) {
+                    credentialsProvider.setCredentials(proxyAuthScope, proxyUserCredentials);
+                }
+                if (credentials != null) {
+                    credentialsProvider.setCredentials(new AuthScope(uri.getHost(), uri.getPort()), credentials);
+                    // authenticate preemptively, to avoid a 401 round trip for each request
+                    AuthCache authCache = new BasicAuthCache();
+                    authCache.put(new HttpHost(uri.getHost(), uri.getPort(), uri.getScheme()), new BasicScheme());
+                    context.setAuthCache(authCache);
+                }
+                context.setCredentialsProvider(credentialsProvider);
+                HttpGet get = new HttpGet(uri);
+                CloseableHttpResponse response = execute(get, context, operation);
+                int statusCode = response.getStatusLine().getStatusCode();
+                Logger.getRootLogger().debug("HTTP GET %s returned %s", url, statusCode);
+                if (attempt >= policy.getMaxAttempts() || !policy.isRetryable(statusCode)) {
+                    return response;
+                }
+                retryAfter = getHeader(response, "Retry-After");
+                EntityUtils.consumeQuietly(response.getEntity());
+                response.close();
+            } catch (URISyntaxException e) {
+                Logger.getRootLogger().debug("Could not create connection to %s : %s", url, e.getMessage());
+                return null;
+            } catch (IOException e) {
+                Logger.getRootLogger().debug("Could not create connection to %s : %s", url, e.getMessage());
+                if (attempt >= policy.getMaxAttempts() || !policy.isRetryable(e)) {
+                    return null;
                 }
-                builder.append(";");
             }
-            if (builder.length() > 0) {
-                Logger.getRootLogger().debug("Request details: %s", builder.toString());
+            long delay = policy.getDelay(attempt, retryAfter);
+            Logger.getRootLogger().debug("Attempt %s of %s for %s failed, retrying in %s ms",
+                                         attempt, policy.getMaxAttempts(), url, delay);
+            try {
+                policy.sleep(delay);
+            } catch (InterruptedIOException e) {
+                return null;
             }
         }
-        return connection;
     }
 
-    public static CloseableHttpResponse openConnection(String url, Credentials credentials) {
-        CloseableHttpResponse response = null;
+    /**
+     * Checks that the response has a successful status code.
+     *
+     * @throws FileNotFoundException    If the remote resource does not exist
+     * @throws HttpStatusException      If the request was not successful for any other reason
+     */
+    public static void checkResponse(CloseableHttpResponse response, String url) throws IOException {
+        int statusCode = response.getStatusLine().getStatusCode();
+        if (statusCode == HttpStatus.SC_NOT_FOUND) {
+            throw new FileNotFoundException(url);
+        } else if (statusCode >= 300 && statusCode != HttpStatus.SC_NOT_MODIFIED) {
+            throw new HttpStatusException(String.format("Server returned HTTP response code: %s for URL: %s", statusCode, url),
+                                          statusCode, getHeader(response, "Retry-After"));
+        }
+    }
+
+    /**
+     * Returns the value of the given response header, or <code>null</code> if the header is not present.
+     */
+    public static String getHeader(CloseableHttpResponse response, String name) {
+        Header header = response.getFirstHeader(name);
+        return header != null ? header.getValue() : null;
+    }
+
+    /**
+     * Returns the complete length of the remote resource, as advertised by the <code>Content-Range</code> header
+     * of a partial (or unsatisfiable range) response, or -1 if the length is not known.
+     */
+    public static long getContentRangeLength(CloseableHttpResponse response) {
+        String contentRange = getHeader(response, "Content-Range");
+        if (contentRange != null) {
+            int idx = contentRange.lastIndexOf('/');
+            if (idx > 0 && idx < contentRange.length() - 1 && contentRange.charAt(idx + 1) != '*') {
+                try {
+                    return Long.parseLong(contentRange.substring(idx + 1).trim());
+                } catch (NumberFormatException ignored) {
+                }
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Returns the length of the given remote resource, as reported by a HEAD request, or -1 if it cannot be found out.
+     *
+     * @param url           The url
+     * @param authToken     The value of the Authorization header, if any
+     */
+    public static long getContentLength(String url, String authToken) {
         try {
-            CloseableHttpClient httpClient;
-            URI uri = new URI(url);
-            CredentialsProvider credentialsProvider = null;
-            if (credentials != null) {
-                credentialsProvider = proxyCredentials != null ? proxyCredentials : new BasicCredentialsProvider();
-                credentialsProvider.setCredentials(new AuthScope(uri.getHost(), uri.getPort()), credentials);
-            }
-            if (credentialsProvider != null) {
-                httpClient = HttpClients.custom()
-                                        .setDefaultCredentialsProvider(credentialsProvider)
-                                        .build();
-            } else {
-                httpClient = HttpClients.custom().build();
+            HttpHead head = new HttpHead(new URI(url));
+            if (authToken != null) {
+                head.setHeader("Authorization", authToken);
             }
-            HttpGet get = new HttpGet(uri);
-            if (apacheHttpProxy != null) {
-                RequestConfig config = RequestConfig.custom().setProxy(apacheHttpProxy).build();
-                get.setConfig(config);
+            HttpClientContext context = HttpClientContext.create();
+            if (proxyUserCredentials != null) {
+                CredentialsProvider credentialsProvider = new BasicCredentialsProvider();
+                credentialsProvider.setCredentials(proxyAuthScope, proxyUserCredentials);
+                context.setCredentialsProvider(credentialsProvider);
             }
-            //Logger.getRootLogger().debug("HTTP GET %s", url);
-            RequestConfig config = get.getConfig();
-            if (config != null) {
-                Logger.getRootLogger().debug("Details: %s", config.toString());
+            try (CloseableHttpResponse response = execute(head, context, RetryPolicy.Operation.METADATA)) {
+                int statusCode = response.getStatusLine().getStatusCode();
+                Logger.getRootLogger().debug("HTTP HEAD %s returned %s", url, statusCode);
+                String length = getHeader(response, "Content-Length");
+                return statusCode == HttpStatus.SC_OK && length != null ? Long.parseLong(length.trim()) : -1;
             }
-            response = httpClient.execute(get);
-            Logger.getRootLogger().debug("HTTP GET %s returned %s", url, response.getStatusLine().getStatusCode());
-        } catch (URISyntaxException | IOException e) {
-            Logger.getRootLogger().debug("Could not create connection to %s : %s", url, e.getMessage());
+        } catch (IOException | URISyntaxException | NumberFormatException e) {
+            Logger.getRootLogger().debug("Cannot get the length of %s [%s]", url, e.getMessage());
+            return -1;
         }
-        return response;
     }
 
     public static String getResponseAsString(String url) throws IOException {
         String result = null;
-        try (CloseableHttpResponse yearResponse = NetUtils.openConnection(url, (Credentials) null)) {
+        try (CloseableHttpResponse yearResponse = NetUtils.openConnection(url, null, RetryPolicy.Operation.LISTING)) {
+            if (yearResponse == null) {
+                Logger.getRootLogger().warn("%s is not available", url);
+                return null;
+            }
             switch (yearResponse.getStatusLine().getStatusCode()) {
                 case 200:
                     result = EntityUtils.toString(yearResponse.getEntity());
@@ -195,4 +404,165 @@ public class NetUtils {
         }
         return result;
     }
+
+    private static CloseableHttpResponse execute(HttpRequestBase request, HttpClientContext context,
+                                                 RetryPolicy.Operation operation) throws IOException {
+        CloseableHttpClient client = getHttpClient();
+        String url = request.getURI().toString();
+        String routedUrl = EndpointHealth.route(url);
+        if (!routedUrl.equals(url)) {
+            Logger.getRootLogger().debug("Request for %s redirected to %s", url, routedUrl);
+            request.setURI(URI.create(routedUrl));
+            url = routedUrl;
+        }
+        AdaptiveTimeout adaptiveTimeout = timeouts.get(operation);
+        int socketTimeout = adaptiveTimeout.getTimeout(timeout);
+        if (socketTimeout != timeout) {
+            request.setConfig(RequestConfig.copy(requestConfig).setSocketTimeout(socketTimeout).build());
+        }
+        String host = request.getURI().getHost();
+        Bulkhead bulkhead = Bulkhead.forHost(host);
+        if (bulkhead != null) {
+            bulkhead.admit();
+        }
+        ConcurrencyLimiter limiter = initialConcurrency > 0 ?
+                ConcurrencyLimiter.forHost(host, initialConcurrency, maxConnectionsPerRoute) : null;
+        final AtomicInteger permits;
+        try {
+            permits = limiter != null ? limiter.acquire() : null;
+        } catch (IOException e) {
+            if (bulkhead != null) {
+                bulkhead.release();
+            }
+            throw e;
+        }
+        Runnable release = () -> {
+            if (limiter != null) {
+                limiter.release(permits);
+            }
+            if (bulkhead != null) {
+                bulkhead.release();
+            }
+        };
+        long start = System.nanoTime();
+        CloseableHttpResponse response;
+        try {
+            response = client.execute(request, context);
+        } catch (IOException | RuntimeException e) {
+            EndpointHealth.record(url, false);
+            if (limiter != null) {
+                limiter.update(-1, System.nanoTime() - start);
+            }
+            release.run();
+            throw e;
+        }
+        long latency = System.nanoTime() - start;
+        int statusCode = response.getStatusLine().getStatusCode();
+        if (statusCode < 500) {
+            adaptiveTimeout.record(TimeUnit.NANOSECONDS.toMillis(latency));
+        }
+        EndpointHealth.record(url, statusCode < 500);
+        if (limiter != null) {
+            limiter.update(statusCode, latency);
+        }
+        return limiter != null || bulkhead != null ? releaseOnClose(response, release) : response;
+    }
+
+    /**
+     * Checks if the given url answers, with any status other than a server error.
+     * The request bypasses the routing and the health records of the endpoints.
+     */
+    static boolean probe(String url) {
+        HttpClientContext context = HttpClientContext.create();
+        if (proxyUserCredentials != null) {
+            CredentialsProvider credentialsProvider = new BasicCredentialsProvider();
+            credentialsProvider.setCredentials(proxyAuthScope, proxyUserCredentials);
+            context.setCredentialsProvider(credentialsProvider);
+        }
+        try (CloseableHttpResponse response = getHttpClient().execute(new HttpGet(url), context)) {
+            EntityUtils.consumeQuietly(response.getEntity());
+            Logger.getRootLogger().debug("Probe of %s returned %s", url, response.getStatusLine().getStatusCode());
+            return response.getStatusLine().getStatusCode() < 500;
+        } catch (IOException | RuntimeException e) {
+            Logger.getRootLogger().debug("Probe of %s failed: %s", url, e.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * Wraps the response such that closing it also gives back the permits taken for the request.
+     */
+    private static CloseableHttpResponse releaseOnClose(CloseableHttpResponse response, Runnable release) {
+        final AtomicBoolean released = new AtomicBoolean();
+        return (CloseableHttpResponse) java.lang.reflect.Proxy.newProxyInstance(NetUtils.class.getClassLoader(),
+                new Class<?>[] { CloseableHttpResponse.class },
+                (proxy, method, args) -> {
+                    try {
+                        return method.invoke(response, args);
+                    } catch (InvocationTargetException e) {
+                        throw e.getCause();
+                    } finally {
+                        if ("close".equals(method.getName()) && released.compareAndSet(false, true)) {
+                            release.run();
+                        }
+                    }
+                });
+    }
+
+    private static synchronized CloseableHttpClient getHttpClient() {
+        if (httpClient == null) {
+            PoolingHttpClientConnectionManager connectionManager;
+            if (socksProxy != null) {
+                // HttpClient only knows HTTP proxies, SOCKS connections have to be created by the socket factories
+                Registry<ConnectionSocketFactory> registry = RegistryBuilder.<ConnectionSocketFactory>create()
+                        .register("http", new PlainConnectionSocketFactory() {
+                            @Override
+                            public Socket createSocket(HttpContext context) throws IOException {
+                                return new Socket(socksProxy);
+                            }
+                        })
+                        .register("https", new SSLConnectionSocketFactory(SSLContexts.createDefault()) {
+                            @Override
+                            public Socket createSocket(HttpContext context) throws IOException {
+                                return new Socket(socksProxy);
+                            }
+                        })
+                        .build();
+                connectionManager = new PoolingHttpClientConnectionManager(registry);
+            } else {
+                connectionManager = new PoolingHttpClientConnectionManager();
+            }
+            connectionManager.setMaxTotal(maxConnections);
+            connectionManager.setDefaultMaxPerRoute(maxConnectionsPerRoute);
+            connectionManager.setValidateAfterInactivity(2000);
+            RequestConfig.Builder configBuilder = RequestConfig.custom()
+                                                               .setConnectTimeout(timeout)
+                                                               .setSocketTimeout(timeout)
+                                                               .setConnectionRequestTimeout((int) Bulkhead.getAdmissionTimeout());
+            if (apacheHttpProxy != null) {
+                configBuilder.setProxy(apacheHttpProxy);
+            }
+            requestConfig = configBuilder.build();
+            HttpClientBuilder clientBuilder = HttpClients.custom()
+                                                         .setConnectionManager(connectionManager)
+                                                         .setDefaultRequestConfig(requestConfig)
+                                                         .evictExpiredConnections()
+                                                         .evictIdleConnections((long) idleConnectionTimeout, TimeUnit.SECONDS);
+            httpClient = clientBuilder.build();
+            Logger.getRootLogger().debug("HTTP connection pool created [max: %s, max per host: %s]",
+                                         maxConnections, maxConnectionsPerRoute);
+        }
+        return httpClient;
+    }
+
+    private static synchronized void resetHttpClient() {
+        if (httpClient != null) {
+            try {
+                httpClient.close();
+            } catch (IOException e) {
+                Logger.getRootLogger().debug("Could not close the HTTP client: %s", e.getMessage());
+            }
+            httpClient = null;
+        }
+    }
 }
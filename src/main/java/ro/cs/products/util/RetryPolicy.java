@@ -0,0 +1,172 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package ro.cs.products.util;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.SocketTimeoutException;
+import java.time.Duration;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Describes how the failed requests of a kind of operation are retried.
+ * The delay between attempts grows exponentially with the attempt number, with a random jitter
+ * (so that the parallel workers don't retry in lockstep), unless the server asks for a longer delay
+ * through the <code>Retry-After</code> header.
+ *
+ * @author Cosmin Cara
+ */
+public class RetryPolicy {
+    private static final long MAX_RETRY_AFTER = TimeUnit.MINUTES.toMillis(10);
+    private static final Map<Operation, RetryPolicy> policies = new EnumMap<>(Operation.class);
+
+    /**
+     * The kinds of requests that have distinct retry policies and timeouts.
+     */
+    public enum Operation {
+        /** Small product files (metadata, masks, descriptors) */
+        METADATA,
+        /** Band rasters and product archives */
+        RASTER,
+        /** Listings of remote folders */
+        LISTING,
+        /** Pages of search results */
+        SEARCH
+    }
+
+    static {
+        policies.put(Operation.METADATA, new RetryPolicy(5, 500, 30000));
+        policies.put(Operation.RASTER, new RetryPolicy(4, 2000, 60000));
+        policies.put(Operation.LISTING, new RetryPolicy(5, 500, 30000));
+        policies.put(Operation.SEARCH, new RetryPolicy(4, 1000, 60000));
+    }
+
+    private final int maxAttempts;
+    private final long baseDelay;
+    private final long maxDelay;
+
+    /**
+     * @param maxAttempts   The maximum number of attempts (1 means no retry)
+     * @param baseDelay     The delay before the first retry, in milliseconds
+     * @param maxDelay      The maximum delay between two attempts, in milliseconds
+     */
+    public RetryPolicy(int maxAttempts, long baseDelay, long maxDelay) {
+        this.maxAttempts = Math.max(1, maxAttempts);
+        this.baseDelay = Math.max(0, baseDelay);
+        this.maxDelay = Math.max(this.baseDelay, maxDelay);
+    }
+
+    public static synchronized RetryPolicy get(Operation operation) {
+        return policies.get(operation);
+    }
+
+    public static synchronized void set(Operation operation, RetryPolicy policy) {
+        policies.put(operation, policy);
+    }
+
+    /**
+     * Returns the operation to which the download of the given file belongs.
+     */
+    public static Operation forFile(String fileName) {
+        String name = fileName.toLowerCase();
+        return name.endsWith(".jp2") || name.endsWith(".tif") || name.endsWith(".zip") || name.endsWith(".tar.gz") ?
+                Operation.RASTER : Operation.METADATA;
+    }
+
+    public int getMaxAttempts() {
+        return maxAttempts;
+    }
+
+    /**
+     * Checks if a response with the given status code is worth retrying.
+     */
+    public boolean isRetryable(int statusCode) {
+        return statusCode == 408 || statusCode == 429 || (statusCode >= 500 && statusCode != 501 && statusCode != 505);
+    }
+
+    /**
+     * Checks if the failure is transient. Missing resources, client errors and interruptions of the
+     * calling thread are not.
+     */
+    public boolean isRetryable(IOException exception) {
+        if (exception instanceof FileNotFoundException || Thread.currentThread().isInterrupted()) {
+            return false;
+        }
+        if (exception instanceof HttpStatusException) {
+            return isRetryable(((HttpStatusException) exception).getStatusCode());
+        }
+        return !(exception instanceof InterruptedIOException) || exception instanceof SocketTimeoutException;
+    }
+
+    /**
+     * Returns the delay, in milliseconds, before the given (1-based) retry.
+     *
+     * @param retryAfter    The value of the <code>Retry-After</code> header of the failed response, if any
+     */
+    public long getDelay(int retry, String retryAfter) {
+        long backoff = this.baseDelay << Math.min(Math.max(0, retry - 1), 20);
+        backoff = Math.min(this.maxDelay, backoff);
+        long delay = backoff / 2 + (long) (ThreadLocalRandom.current().nextDouble() * (backoff / 2 + 1));
+        return Math.max(delay, Math.min(MAX_RETRY_AFTER, parseRetryAfter(retryAfter)));
+    }
+
+    public long getDelay(int retry, IOException exception) {
+        return getDelay(retry, exception instanceof HttpStatusException ?
+                ((HttpStatusException) exception).getRetryAfter() : null);
+    }
+
+    /**
+     * Waits before the given retry.
+     */
+    public void sleep(long delay) throws InterruptedIOException {
+        try {
+            Thread.sleep(delay);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting to retry");
+        }
+    }
+
+    /**
+     * Parses a <code>Retry-After</code> value, given either in seconds or as a HTTP date.
+     */
+    static long parseRetryAfter(String value) {
+        if (value == null || value.trim().isEmpty()) {
+            return 0;
+        }
+        value = value.trim();
+        try {
+            return TimeUnit.SECONDS.toMillis(Math.max(0, Long.parseLong(value)));
+        } catch (NumberFormatException ignored) {
+        }
+        try {
+            ZonedDateTime date = ZonedDateTime.parse(value, DateTimeFormatter.RFC_1123_DATE_TIME);
+            return Math.max(0, Duration.between(ZonedDateTime.now(date.getZone()), date).toMillis());
+        } catch (DateTimeParseException e) {
+            return 0;
+        }
+    }
+}
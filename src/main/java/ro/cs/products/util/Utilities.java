@@ -35,7 +35,10 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.stream.Collectors;
 
 /**
@@ -112,6 +115,25 @@ public class Utilities {
                 TimeUnit.MILLISECONDS.toSeconds(millis) % TimeUnit.MINUTES.toSeconds(1));
     }
 
+    /**
+     * Parses a size given in human readable form (for example, <code>805.4 MB</code>) into bytes.
+     * Returns -1 if the value cannot be parsed.
+     */
+    public static long parseSize(String value) {
+        if (value == null) {
+            return -1;
+        }
+        String[] tokens = value.trim().toUpperCase().split("\\s+");
+        try {
+            double number = Double.parseDouble(tokens[0]);
+            String unit = tokens.length > 1 ? tokens[1] : "B";
+            int exponent = "KMGT".indexOf(unit.charAt(0)) + 1;
+            return (long) (number * Math.pow(1024, exponent));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
     public static String getAttributeValue(String xmlLine, String name) {
         String value = null;
         int idx = xmlLine.indexOf(name);
@@ -172,6 +194,20 @@ public class Utilities {
                 null;
     }
 
+    /**
+     * Creates a fixed-size pool of daemon threads, named after the given prefix.
+     * @param name      The prefix of the thread names
+     * @param threads   The number of threads in the pool
+     */
+    public static ExecutorService newFixedThreadPool(String name, int threads) {
+        final AtomicInteger counter = new AtomicInteger(1);
+        return Executors.newFixedThreadPool(threads, runnable -> {
+            Thread thread = new Thread(runnable, name + "-" + counter.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
     private static boolean isPosixFileSystem() {
         if (supportsPosix == null) {
             supportsPosix = Boolean.FALSE;
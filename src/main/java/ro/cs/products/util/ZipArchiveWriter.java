@@ -0,0 +1,715 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package ro.cs.products.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.DateTimeException;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * Writer of zip archives whose entries can be filled concurrently, while their content is being downloaded.
+ * An entry of known length is reserved as a region of the archive, into which the content is written at will
+ * (and possibly rewritten, if its transfer is retried); the entry becomes part of the archive once committed.
+ * Other entries are appended from local files: stored as they are if their type is already compressed (such as
+ * the rasters), deflated otherwise. The central directory is written when the archive is closed.
+ * The archive uses the Zip64 extensions whenever the sizes or the offsets require them.
+ *
+ * @author Cosmin Cara
+ */
+public class ZipArchiveWriter implements AutoCloseable {
+    private static final int LOCAL_HEADER_SIGNATURE = 0x04034b50;
+    private static final int CENTRAL_HEADER_SIGNATURE = 0x02014b50;
+    private static final int END_SIGNATURE = 0x06054b50;
+    private static final int ZIP64_END_SIGNATURE = 0x06064b50;
+    private static final int ZIP64_LOCATOR_SIGNATURE = 0x07064b50;
+    private static final int LOCAL_HEADER_SIZE = 30;
+    private static final int ZIP64_LOCAL_EXTRA_SIZE = 20;
+    private static final int UTF8_FLAG = 0x0800;
+    private static final int STORED = 0;
+    private static final int DEFLATED = 8;
+    private static final long ZIP64_LIMIT = 0xFFFFFFFFL;
+    private static final int ZIP64_ENTRY_LIMIT = 0xFFFF;
+    private static final int COPY_BUFFER_SIZE = 64 * 1024;
+    private static final long DOS_TIME_RESOLUTION = 2000;
+    private static final long MAX_IN_MEMORY_SIZE = 4 * 1024 * 1024;
+    private static final int MAX_PENDING_ENTRIES = 2 * Math.max(1, ForkJoinPool.getCommonPoolParallelism());
+    private static final String[] COMPRESSED_EXTENSIONS = { ".jp2", ".tif", ".tiff", ".png", ".jpg", ".zip", ".gz" };
+    private static final String BACKUP_SUFFIX = ".directory";
+    private static final int BACKUP_HEADER_SIZE = 20;
+
+    private final Path file;
+    private final FileChannel channel;
+    private final Map<String, Entry> entries;
+    private final Map<String, Entry> reserved;
+    private long end;
+    private boolean closed;
+    private byte[] originalDirectory;
+    private long originalDirectoryOffset;
+
+    /**
+     * Creates a new archive, replacing any existing file.
+     */
+    public ZipArchiveWriter(Path file) throws IOException {
+        this.file = file;
+        this.channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                                        StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        this.entries = new LinkedHashMap<>();
+        this.reserved = new HashMap<>();
+    }
+
+    private ZipArchiveWriter(Path file, FileChannel channel) {
+        this.file = file;
+        this.channel = channel;
+        this.entries = new LinkedHashMap<>();
+        this.reserved = new HashMap<>();
+    }
+
+    /**
+     * Opens an existing archive to be updated. The new entries, as well as those that replace outdated ones,
+     * are written over the central directory, which is written again when the archive is closed. The entries
+     * of the archive are not rewritten; the content of a replaced entry remains as unreferenced bytes.
+     * Before the archive is modified, its central directory is saved (and synced) to a backup file next to it,
+     * which is deleted once the update is complete. If the update is aborted, the archive is restored as it was;
+     * if the update was interrupted by a crash, the archive is restored from the backup when opened again.
+     */
+    public static ZipArchiveWriter open(Path file) throws IOException {
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            restoreDirectory(file, channel);
+            ZipDirectory directory = ZipDirectory.read((offset, length) -> readFully(channel, offset, length), channel.size());
+            ZipArchiveWriter writer = new ZipArchiveWriter(file, channel);
+            for (ZipDirectory.Record record : directory.getRecords()) {
+                Entry entry = writer.new Entry(record.getName(), record.getMethod(), record.getTime(), false);
+                entry.offset = record.getLocalHeaderOffset();
+                entry.size = record.getSize();
+                entry.compressedSize = record.getCompressedSize();
+                entry.crc = record.getCrc();
+                entry.loaded = true;
+                writer.entries.put(entry.name, entry);
+            }
+            writer.end = directory.getOffset();
+            writer.originalDirectory = readFully(channel, writer.end, (int) (channel.size() - writer.end));
+            writer.originalDirectoryOffset = writer.end;
+            saveDirectory(file, writer.originalDirectory, writer.originalDirectoryOffset);
+            return writer;
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    public Path getFile() {
+        return this.file;
+    }
+
+    /**
+     * Checks if the archive already holds an entry with the given name.
+     */
+    public synchronized boolean contains(String name) {
+        return this.entries.containsKey(name);
+    }
+
+    /**
+     * Reserves an uncompressed entry of the given length. Reserving again an entry that was not yet committed
+     * returns the same region if the length didn't change, so that a retried transfer overwrites its previous attempt.
+     *
+     * @param name      The name of the entry, relative to the root of the archive
+     * @param length    The exact length of the content
+     */
+    public synchronized Entry reserve(String name, long length) throws IOException {
+        checkOpen();
+        Entry entry = this.reserved.get(name);
+        if (entry != null && entry.size == length) {
+            return entry;
+        }
+        if (entry != null) {
+            discard(entry);
+        }
+        entry = new Entry(name, STORED, dosTime(System.currentTimeMillis()), length >= ZIP64_LIMIT);
+        entry.offset = this.end;
+        entry.size = length;
+        entry.compressedSize = length;
+        this.end = entry.dataOffset() + length;
+        this.reserved.put(name, entry);
+        return entry;
+    }
+
+    /**
+     * Appends a local file, unless the archive already holds it. The rasters and other files
+     * that are already compressed are stored as they are, the others are deflated.
+     */
+    public synchronized void add(String name, Path source) throws IOException {
+        checkOpen();
+        long length = Files.size(source);
+        long time = Files.getLastModifiedTime(source).toMillis();
+        if (isUpToDate(name, length, time)) {
+            return;
+        }
+        if (isCompressed(name)) {
+            addStored(name, source, length, time);
+        } else {
+            addDeflated(name, source, length, time);
+        }
+    }
+
+    /**
+     * Appends the files of a local folder, named relative to that folder. The files that the archive already holds
+     * are skipped, hence updating an archive costs only the files that were added or changed.
+     * The small files to be deflated are compressed in parallel, ahead of their turn, on the common fork-join pool;
+     * the entries are written in the order of the folder walk.
+     */
+    public void addTree(Path folder) throws IOException {
+        List<Path> paths;
+        try (Stream<Path> files = Files.walk(folder)) {
+            paths = files.filter(path -> !path.equals(folder)).collect(Collectors.toList());
+        }
+        Deque<CompletableFuture<Content>> pending = new ArrayDeque<>();
+        int prepared = 0;
+        try {
+            for (Path path : paths) {
+                while (prepared < paths.size() && pending.size() < MAX_PENDING_ENTRIES) {
+                    pending.add(prepare(folder, paths.get(prepared++)));
+                }
+                Content content = join(pending.poll());
+                String name = nameOf(folder, path);
+                if (Files.isDirectory(path)) {
+                    addDirectory(name + "/");
+                } else if (content != null) {
+                    add(name, content);
+                } else {
+                    add(name, path);
+                }
+            }
+        } finally {
+            pending.forEach(content -> content.cancel(false));
+        }
+    }
+
+    /**
+     * Writes the central directory and closes the archive. The entries still reserved are left out.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (this.closed) {
+            return;
+        }
+        this.closed = true;
+        try {
+            for (Entry entry : new ArrayList<>(this.reserved.values())) {
+                discard(entry);
+            }
+            ByteArrayOutputStream directory = new ByteArrayOutputStream();
+            for (Entry entry : this.entries.values()) {
+                directory.write(entry.centralHeader());
+            }
+            long directoryOffset = this.end;
+            long directorySize = directory.size();
+            boolean zip64 = this.entries.size() >= ZIP64_ENTRY_LIMIT || directoryOffset >= ZIP64_LIMIT ||
+                    directorySize >= ZIP64_LIMIT;
+            if (zip64) {
+                long zip64EndOffset = directoryOffset + directorySize;
+                ByteBuffer buffer = newBuffer(56 + 20);
+                buffer.putInt(ZIP64_END_SIGNATURE).putLong(44).putShort((short) 45).putShort((short) 45)
+                        .putInt(0).putInt(0).putLong(this.entries.size()).putLong(this.entries.size())
+                        .putLong(directorySize).putLong(directoryOffset);
+                buffer.putInt(ZIP64_LOCATOR_SIGNATURE).putInt(0).putLong(zip64EndOffset).putInt(1);
+                directory.write(buffer.array());
+            }
+            ByteBuffer buffer = newBuffer(22);
+            buffer.putInt(END_SIGNATURE).putShort((short) 0).putShort((short) 0)
+                    .putShort((short) Math.min(this.entries.size(), ZIP64_ENTRY_LIMIT))
+                    .putShort((short) Math.min(this.entries.size(), ZIP64_ENTRY_LIMIT))
+                    .putInt((int) Math.min(directorySize, ZIP64_LIMIT)).putInt((int) Math.min(directoryOffset, ZIP64_LIMIT))
+                    .putShort((short) 0);
+            directory.write(buffer.array());
+            byte[] bytes = directory.toByteArray();
+            writeFully(bytes, directoryOffset);
+            this.channel.truncate(directoryOffset + bytes.length);
+            this.channel.force(false);
+        } finally {
+            this.channel.close();
+        }
+        if (this.originalDirectory != null) {
+            Files.deleteIfExists(backupOf(this.file));
+        }
+    }
+
+    /**
+     * Closes the archive without completing it. A new archive is deleted, an updated one is restored.
+     */
+    public synchronized void abort() throws IOException {
+        this.closed = true;
+        if (this.originalDirectory == null) {
+            try {
+                this.channel.close();
+            } finally {
+                Files.deleteIfExists(this.file);
+            }
+            return;
+        }
+        try {
+            writeFully(this.originalDirectory, this.originalDirectoryOffset);
+            this.channel.truncate(this.originalDirectoryOffset + this.originalDirectory.length);
+            this.channel.force(false);
+        } finally {
+            this.channel.close();
+        }
+        Files.deleteIfExists(backupOf(this.file));
+    }
+
+    private static Path backupOf(Path file) {
+        return file.resolveSibling(file.getFileName() + BACKUP_SUFFIX);
+    }
+
+    /**
+     * Saves the central directory (and the end records) of an archive about to be updated, along with its offset
+     * and checksum, and syncs the backup to disk.
+     */
+    private static void saveDirectory(Path file, byte[] directory, long offset) throws IOException {
+        CRC32 crc = new CRC32();
+        crc.update(directory, 0, directory.length);
+        ByteBuffer header = newBuffer(BACKUP_HEADER_SIZE);
+        header.putLong(offset).putInt(directory.length).putLong(crc.getValue());
+        header.flip();
+        try (FileChannel backup = FileChannel.open(backupOf(file), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                                                   StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer content = ByteBuffer.wrap(directory);
+            while (header.hasRemaining() || content.hasRemaining()) {
+                backup.write(new ByteBuffer[] { header, content });
+            }
+            backup.force(true);
+        }
+    }
+
+    /**
+     * Restores the central directory of an archive whose update was interrupted, if a backup of it exists.
+     * A backup that is incomplete was interrupted while being saved, before the archive was modified,
+     * hence it is only deleted.
+     */
+    private static void restoreDirectory(Path file, FileChannel channel) throws IOException {
+        Path backupFile = backupOf(file);
+        if (!Files.exists(backupFile)) {
+            return;
+        }
+        byte[] backup = Files.readAllBytes(backupFile);
+        if (backup.length >= BACKUP_HEADER_SIZE) {
+            ByteBuffer header = ByteBuffer.wrap(backup, 0, BACKUP_HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            long offset = header.getLong();
+            int length = header.getInt();
+            long expectedCrc = header.getLong();
+            CRC32 crc = new CRC32();
+            crc.update(backup, BACKUP_HEADER_SIZE, backup.length - BACKUP_HEADER_SIZE);
+            if (length == backup.length - BACKUP_HEADER_SIZE && crc.getValue() == expectedCrc) {
+                Logger.getRootLogger().warn("Restoring archive %s, whose previous update was interrupted", file.getFileName());
+                ByteBuffer buffer = ByteBuffer.wrap(backup, BACKUP_HEADER_SIZE, length);
+                long position = offset;
+                while (buffer.hasRemaining()) {
+                    position += channel.write(buffer, position);
+                }
+                channel.truncate(offset + length);
+                channel.force(false);
+            }
+        }
+        Files.delete(backupFile);
+    }
+
+    private synchronized void commit(Entry entry, long crc) throws IOException {
+        checkOpen();
+        if (this.reserved.remove(entry.name) != entry) {
+            throw new IllegalStateException(String.format("Entry %s is not reserved", entry.name));
+        }
+        entry.crc = crc;
+        writeFully(entry.localHeader(), entry.offset);
+        this.entries.put(entry.name, entry);
+    }
+
+    private synchronized void discard(Entry entry) {
+        if (this.reserved.remove(entry.name, entry) && entry.dataOffset() + entry.size == this.end) {
+            this.end = entry.offset;
+        }
+    }
+
+    private void addStored(String name, Path source, long length, long time) throws IOException {
+        Entry entry = new Entry(name, STORED, dosTime(time), length >= ZIP64_LIMIT);
+        entry.offset = this.end;
+        long position = entry.dataOffset();
+        CRC32 crc = new CRC32();
+        ByteBuffer buffer = ByteBuffer.allocate(COPY_BUFFER_SIZE);
+        try (FileChannel sourceChannel = FileChannel.open(source, StandardOpenOption.READ)) {
+            while (sourceChannel.read(buffer) > 0 || buffer.position() > 0) {
+                buffer.flip();
+                crc.update(buffer.array(), 0, buffer.limit());
+                entry.size += buffer.limit();
+                while (buffer.hasRemaining()) {
+                    position += this.channel.write(buffer, position);
+                }
+                buffer.clear();
+            }
+        }
+        if (entry.size != length) {
+            throw new IOException(String.format("%s changed while being archived", source.getFileName()));
+        }
+        entry.crc = crc.getValue();
+        entry.compressedSize = entry.size;
+        writeFully(entry.localHeader(), entry.offset);
+        this.end = position;
+        this.entries.put(name, entry);
+    }
+
+    private void addDeflated(String name, Path source, long length, long time) throws IOException {
+        Entry entry = new Entry(name, DEFLATED, dosTime(time), length >= ZIP64_LIMIT - (length >> 8) - COPY_BUFFER_SIZE);
+        entry.offset = this.end;
+        long position = entry.dataOffset();
+        CRC32 crc = new CRC32();
+        Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        byte[] input = new byte[COPY_BUFFER_SIZE];
+        byte[] output = new byte[COPY_BUFFER_SIZE];
+        try (InputStream inputStream = Files.newInputStream(source)) {
+            int read;
+            while ((read = inputStream.read(input)) > 0) {
+                crc.update(input, 0, read);
+                entry.size += read;
+                deflater.setInput(input, 0, read);
+                while (!deflater.needsInput()) {
+                    position = writeFully(output, deflater.deflate(output), position);
+                }
+            }
+            deflater.finish();
+            while (!deflater.finished()) {
+                position = writeFully(output, deflater.deflate(output), position);
+            }
+        } finally {
+            deflater.end();
+        }
+        entry.crc = crc.getValue();
+        entry.compressedSize = position - entry.dataOffset();
+        writeFully(entry.localHeader(), entry.offset);
+        this.end = position;
+        this.entries.put(name, entry);
+    }
+
+    private synchronized void add(String name, Content content) throws IOException {
+        checkOpen();
+        if (isUpToDate(name, content.size, content.time)) {
+            return;
+        }
+        Entry entry = new Entry(name, DEFLATED, dosTime(content.time), false);
+        entry.offset = this.end;
+        entry.size = content.size;
+        entry.compressedSize = content.data.size();
+        entry.crc = content.crc;
+        writeFully(entry.localHeader(), entry.offset);
+        this.end = writeFully(content.data.toByteArray(), content.data.size(), entry.dataOffset());
+        this.entries.put(name, entry);
+    }
+
+    /**
+     * Starts deflating in memory a small file that has to be compressed. The other paths are left to be added in turn,
+     * hence their content is <code>null</code>.
+     */
+    private CompletableFuture<Content> prepare(Path folder, Path path) {
+        try {
+            if (Files.isDirectory(path) || isCompressed(path.getFileName().toString()) || Files.size(path) > MAX_IN_MEMORY_SIZE ||
+                    isUpToDate(nameOf(folder, path), Files.size(path), Files.getLastModifiedTime(path).toMillis())) {
+                return CompletableFuture.completedFuture(null);
+            }
+        } catch (IOException e) {
+            return CompletableFuture.completedFuture(null);
+        }
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                return Content.deflate(path);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }, ForkJoinPool.commonPool());
+    }
+
+    private static Content join(CompletableFuture<Content> content) throws IOException {
+        try {
+            return content.join();
+        } catch (CompletionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof UncheckedIOException) {
+                throw ((UncheckedIOException) cause).getCause();
+            }
+            throw new IOException(cause);
+        }
+    }
+
+    /**
+     * Checks if the archive holds an entry with the given name that doesn't have to be replaced: either an entry
+     * added since the archive was opened, or an entry of the updated archive with the size and the modification
+     * time of the file.
+     */
+    private synchronized boolean isUpToDate(String name, long size, long time) {
+        Entry entry = this.entries.get(name);
+        return entry != null &&
+                (!entry.loaded || (entry.size == size && Math.abs(javaTime(entry.time) - time) <= DOS_TIME_RESOLUTION));
+    }
+
+    /**
+     * Checks if a file is already compressed (by its type), such that deflating it would not be worth the time.
+     */
+    private static boolean isCompressed(String name) {
+        String lowerCaseName = name.toLowerCase();
+        for (String extension : COMPRESSED_EXTENSIONS) {
+            if (lowerCaseName.endsWith(extension)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private synchronized void addDirectory(String name) throws IOException {
+        checkOpen();
+        if (this.entries.containsKey(name)) {
+            return;
+        }
+        Entry entry = new Entry(name, STORED, dosTime(System.currentTimeMillis()), false);
+        entry.offset = this.end;
+        writeFully(entry.localHeader(), entry.offset);
+        this.end = entry.dataOffset();
+        this.entries.put(name, entry);
+    }
+
+    private void checkOpen() throws IOException {
+        if (this.closed) {
+            throw new IOException(String.format("Archive %s is closed", this.file.getFileName()));
+        }
+    }
+
+    private long writeFully(byte[] bytes, int length, long position) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(bytes, 0, length);
+        while (buffer.hasRemaining()) {
+            position += this.channel.write(buffer, position);
+        }
+        return position;
+    }
+
+    private void writeFully(byte[] bytes, long position) throws IOException {
+        writeFully(bytes, bytes.length, position);
+    }
+
+    private static String nameOf(Path folder, Path path) {
+        return folder.relativize(path).toString().replace('\\', '/');
+    }
+
+    private static byte[] readFully(FileChannel channel, long offset, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, offset + buffer.position()) < 0) {
+                throw new EOFException("Unexpected end of archive");
+            }
+        }
+        return buffer.array();
+    }
+
+    private static ByteBuffer newBuffer(int size) {
+        return ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    /**
+     * An entry of the archive. The content of an uncompressed entry starts at {@link #getDataOffset()}
+     * in the channel of the archive.
+     */
+    public class Entry {
+        private final String name;
+        private final byte[] nameBytes;
+        private final int method;
+        private final long time;
+        private final boolean zip64Header;
+        private boolean loaded;
+        private long offset;
+        private long size;
+        private long compressedSize;
+        private long crc;
+
+        private Entry(String name, int method, long time, boolean zip64Header) {
+            this.name = name;
+            this.nameBytes = name.getBytes(StandardCharsets.UTF_8);
+            this.method = method;
+            this.time = time;
+            this.zip64Header = zip64Header;
+        }
+
+        public String getName() {
+            return this.name;
+        }
+
+        public long getLength() {
+            return this.size;
+        }
+
+        public long getDataOffset() {
+            return dataOffset();
+        }
+
+        /**
+         * The channel of the archive, to which the content of the entry is written.
+         */
+        public FileChannel getChannel() {
+            return channel;
+        }
+
+        /**
+         * Adds the entry, whose content was fully written, to the archive.
+         *
+         * @param crc   The CRC-32 of the content
+         */
+        public void commit(long crc) throws IOException {
+            ZipArchiveWriter.this.commit(this, crc);
+        }
+
+        /**
+         * Gives up the entry. Its region is reclaimed if it is at the end of the archive, otherwise it
+         * remains as unreferenced bytes.
+         */
+        public void discard() {
+            ZipArchiveWriter.this.discard(this);
+        }
+
+        private long dataOffset() {
+            return this.offset + LOCAL_HEADER_SIZE + this.nameBytes.length + (this.zip64Header ? ZIP64_LOCAL_EXTRA_SIZE : 0);
+        }
+
+        private byte[] localHeader() {
+            ByteBuffer buffer = newBuffer((int) (dataOffset() - this.offset));
+            buffer.putInt(LOCAL_HEADER_SIGNATURE).putShort((short) (this.zip64Header ? 45 : 20))
+                    .putShort((short) UTF8_FLAG).putShort((short) this.method).putInt((int) this.time)
+                    .putInt((int) this.crc)
+                    .putInt(this.zip64Header ? (int) ZIP64_LIMIT : (int) this.compressedSize)
+                    .putInt(this.zip64Header ? (int) ZIP64_LIMIT : (int) this.size)
+                    .putShort((short) this.nameBytes.length).putShort((short) (this.zip64Header ? ZIP64_LOCAL_EXTRA_SIZE : 0))
+                    .put(this.nameBytes);
+            if (this.zip64Header) {
+                buffer.putShort((short) 1).putShort((short) 16).putLong(this.size).putLong(this.compressedSize);
+            }
+            return buffer.array();
+        }
+
+        private byte[] centralHeader() {
+            List<Long> extra = new ArrayList<>();
+            if (this.size >= ZIP64_LIMIT) {
+                extra.add(this.size);
+            }
+            if (this.compressedSize >= ZIP64_LIMIT) {
+                extra.add(this.compressedSize);
+            }
+            if (this.offset >= ZIP64_LIMIT) {
+                extra.add(this.offset);
+            }
+            int extraSize = extra.isEmpty() ? 0 : 4 + 8 * extra.size();
+            ByteBuffer buffer = newBuffer(46 + this.nameBytes.length + extraSize);
+            short version = (short) (extra.isEmpty() ? 20 : 45);
+            buffer.putInt(CENTRAL_HEADER_SIGNATURE).putShort(version).putShort(version)
+                    .putShort((short) UTF8_FLAG).putShort((short) this.method).putInt((int) this.time)
+                    .putInt((int) this.crc)
+                    .putInt((int) Math.min(this.compressedSize, ZIP64_LIMIT))
+                    .putInt((int) Math.min(this.size, ZIP64_LIMIT))
+                    .putShort((short) this.nameBytes.length).putShort((short) extraSize).putShort((short) 0)
+                    .putShort((short) 0).putShort((short) 0).putInt(this.name.endsWith("/") ? 0x10 : 0)
+                    .putInt((int) Math.min(this.offset, ZIP64_LIMIT))
+                    .put(this.nameBytes);
+            if (!extra.isEmpty()) {
+                buffer.putShort((short) 1).putShort((short) (8 * extra.size()));
+                extra.forEach(buffer::putLong);
+            }
+            return buffer.array();
+        }
+    }
+
+    /**
+     * The deflated content of a file, prepared in memory ahead of being written to the archive.
+     */
+    private static class Content {
+        private final ByteArrayOutputStream data;
+        private final long size;
+        private final long crc;
+        private final long time;
+
+        private Content(ByteArrayOutputStream data, long size, long crc, long time) {
+            this.data = data;
+            this.size = size;
+            this.crc = crc;
+            this.time = time;
+        }
+
+        static Content deflate(Path source) throws IOException {
+            CRC32 crc = new CRC32();
+            byte[] input = Files.readAllBytes(source);
+            crc.update(input, 0, input.length);
+            ByteArrayOutputStream data = new ByteArrayOutputStream(Math.max(64, input.length / 4));
+            Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+            try (DeflaterOutputStream outputStream = new DeflaterOutputStream(data, deflater, COPY_BUFFER_SIZE)) {
+                outputStream.write(input);
+            } finally {
+                deflater.end();
+            }
+            return new Content(data, input.length, crc.getValue(), Files.getLastModifiedTime(source).toMillis());
+        }
+    }
+
+    private static long dosTime(long millis) {
+        LocalDateTime time = LocalDateTime.ofInstant(Instant.ofEpochMilli(millis), ZoneId.systemDefault());
+        if (time.getYear() < 1980) {
+            return (1 << 21) | (1 << 16);
+        }
+        return (time.getYear() - 1980) << 25 | time.getMonthValue() << 21 | time.getDayOfMonth() << 16 |
+                time.getHour() << 11 | time.getMinute() << 5 | time.getSecond() >> 1;
+    }
+
+    private static long javaTime(long dosTime) {
+        try {
+            return LocalDateTime.of((int) (dosTime >> 25 & 0x7F) + 1980, (int) (dosTime >> 21 & 0x0F), (int) (dosTime >> 16 & 0x1F),
+                                    (int) (dosTime >> 11 & 0x1F), (int) (dosTime >> 5 & 0x3F), (int) (dosTime << 1 & 0x3E))
+                    .atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+        } catch (DateTimeException e) {
+            return -1;
+        }
+    }
+}
@@ -0,0 +1,231 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package ro.cs.products.util;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The central directory of a zip archive, which lists its entries. The directory is read from the end of
+ * the archive, through a function that returns the bytes of a given range, so that the archive may as well be
+ * a local file or a remote one. The Zip64 extensions are supported.
+ *
+ * @author Cosmin Cara
+ */
+public class ZipDirectory {
+    private static final int END_SIGNATURE = 0x06054b50;
+    private static final int ZIP64_END_SIGNATURE = 0x06064b50;
+    private static final int ZIP64_LOCATOR_SIGNATURE = 0x07064b50;
+    private static final int CENTRAL_HEADER_SIGNATURE = 0x02014b50;
+    private static final int END_SIZE = 22;
+    private static final int ZIP64_LOCATOR_SIZE = 20;
+    private static final int ZIP64_END_SIZE = 56;
+    private static final int MAX_COMMENT_SIZE = 0xFFFF;
+    private static final long ZIP64_MARKER = 0xFFFFFFFFL;
+
+    private final long offset;
+    private final long size;
+    private final List<Record> records;
+
+    /**
+     * Source of the bytes of an archive
+     */
+    public interface ByteRangeReader {
+        /**
+         * Returns the bytes of the archive in the range [offset, offset + length)
+         */
+        byte[] read(long offset, int length) throws IOException;
+    }
+
+    /**
+     * Reads the central directory of an archive.
+     *
+     * @param reader    The source of the bytes of the archive
+     * @param length    The length of the archive
+     */
+    public static ZipDirectory read(ByteRangeReader reader, long length) throws IOException {
+        int tailLength = (int) Math.min(length, END_SIZE + MAX_COMMENT_SIZE);
+        long tailOffset = length - tailLength;
+        ByteBuffer tail = order(reader.read(tailOffset, tailLength));
+        int end = -1;
+        for (int position = tailLength - END_SIZE; position >= 0; position--) {
+            if (tail.getInt(position) == END_SIGNATURE &&
+                    position + END_SIZE + (tail.getShort(position + 20) & 0xFFFF) == tailLength) {
+                end = position;
+                break;
+            }
+        }
+        if (end < 0) {
+            throw new IOException("Not a zip archive (end of central directory not found)");
+        }
+        long count = tail.getShort(end + 10) & 0xFFFF;
+        long size = tail.getInt(end + 12) & 0xFFFFFFFFL;
+        long offset = tail.getInt(end + 16) & 0xFFFFFFFFL;
+        long endOffset = tailOffset + end;
+        if (count == 0xFFFF || size == ZIP64_MARKER || offset == ZIP64_MARKER) {
+            if (endOffset < ZIP64_LOCATOR_SIZE) {
+                throw new IOException("Zip64 end of central directory locator not found");
+            }
+            ByteBuffer locator = order(reader.read(endOffset - ZIP64_LOCATOR_SIZE, ZIP64_LOCATOR_SIZE));
+            if (locator.getInt(0) != ZIP64_LOCATOR_SIGNATURE) {
+                throw new IOException("Zip64 end of central directory locator not found");
+            }
+            ByteBuffer zip64End = order(reader.read(locator.getLong(8), ZIP64_END_SIZE));
+            if (zip64End.getInt(0) != ZIP64_END_SIGNATURE) {
+                throw new IOException("Zip64 end of central directory not found");
+            }
+            count = zip64End.getLong(32);
+            size = zip64End.getLong(40);
+            offset = zip64End.getLong(48);
+        }
+        if (offset + size > length || size > Integer.MAX_VALUE) {
+            throw new IOException("Invalid central directory");
+        }
+        return new ZipDirectory(offset, size, parse(order(reader.read(offset, (int) size)), count));
+    }
+
+    private ZipDirectory(long offset, long size, List<Record> records) {
+        this.offset = offset;
+        this.size = size;
+        this.records = Collections.unmodifiableList(records);
+    }
+
+    /**
+     * The offset of the central directory, that is, the end of the entries
+     */
+    public long getOffset() {
+        return this.offset;
+    }
+
+    public long getSize() {
+        return this.size;
+    }
+
+    public List<Record> getRecords() {
+        return this.records;
+    }
+
+    private static List<Record> parse(ByteBuffer buffer, long count) throws IOException {
+        List<Record> records = new ArrayList<>();
+        int position = 0;
+        for (long i = 0; i < count; i++) {
+            if (position + 46 > buffer.limit() || buffer.getInt(position) != CENTRAL_HEADER_SIGNATURE) {
+                throw new IOException("Invalid central directory header");
+            }
+            Record record = new Record();
+            record.method = buffer.getShort(position + 10) & 0xFFFF;
+            record.time = buffer.getInt(position + 12) & 0xFFFFFFFFL;
+            record.crc = buffer.getInt(position + 16) & 0xFFFFFFFFL;
+            record.compressedSize = buffer.getInt(position + 20) & 0xFFFFFFFFL;
+            record.size = buffer.getInt(position + 24) & 0xFFFFFFFFL;
+            int nameLength = buffer.getShort(position + 28) & 0xFFFF;
+            int extraLength = buffer.getShort(position + 30) & 0xFFFF;
+            int commentLength = buffer.getShort(position + 32) & 0xFFFF;
+            record.localHeaderOffset = buffer.getInt(position + 42) & 0xFFFFFFFFL;
+            byte[] name = new byte[nameLength];
+            buffer.position(position + 46);
+            buffer.get(name);
+            record.name = new String(name, StandardCharsets.UTF_8);
+            int extra = position + 46 + nameLength;
+            int extraEnd = extra + extraLength;
+            while (extra + 4 <= extraEnd) {
+                int id = buffer.getShort(extra) & 0xFFFF;
+                int length = buffer.getShort(extra + 2) & 0xFFFF;
+                if (id == 1) {
+                    int field = extra + 4;
+                    if (record.size == ZIP64_MARKER) {
+                        record.size = buffer.getLong(field);
+                        field += 8;
+                    }
+                    if (record.compressedSize == ZIP64_MARKER) {
+                        record.compressedSize = buffer.getLong(field);
+                        field += 8;
+                    }
+                    if (record.localHeaderOffset == ZIP64_MARKER) {
+                        record.localHeaderOffset = buffer.getLong(field);
+                    }
+                }
+                extra += 4 + length;
+            }
+            records.add(record);
+            position = extraEnd + commentLength;
+        }
+        return records;
+    }
+
+    private static ByteBuffer order(byte[] bytes) {
+        return ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    /**
+     * An entry listed by the central directory
+     */
+    public static class Record {
+        private String name;
+        private int method;
+        private long time;
+        private long crc;
+        private long compressedSize;
+        private long size;
+        private long localHeaderOffset;
+
+        public String getName() {
+            return this.name;
+        }
+
+        /**
+         * The compression method (0 for stored, 8 for deflated)
+         */
+        public int getMethod() {
+            return this.method;
+        }
+
+        /**
+         * The modification time, in MS-DOS format
+         */
+        public long getTime() {
+            return this.time;
+        }
+
+        public long getCrc() {
+            return this.crc;
+        }
+
+        public long getCompressedSize() {
+            return this.compressedSize;
+        }
+
+        public long getSize() {
+            return this.size;
+        }
+
+        public long getLocalHeaderOffset() {
+            return this.localHeaderOffset;
+        }
+
+        public boolean isDirectory() {
+            return this.name.endsWith("/");
+        }
+    }
+}
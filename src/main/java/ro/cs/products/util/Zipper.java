@@ -24,10 +24,6 @@ import java.nio.file.FileVisitor;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.attribute.BasicFileAttributes;
-import java.util.Iterator;
-import java.util.stream.Stream;
-import java.util.zip.ZipEntry;
-import java.util.zip.ZipOutputStream;
 
 /**
  * Simple utility class for zipping downloaded products
@@ -36,35 +32,47 @@ import java.util.zip.ZipOutputStream;
  */
 public class Zipper {
 
+    /**
+     * Compresses a folder into an archive created next to it, replacing any existing one.
+     * The entries are named relative to the folder. The folder is deleted only if all its files were archived.
+     */
     public static void compress(Path sourceFolder, String archiveName, boolean deleteFolder) throws IOException {
+        compress(sourceFolder, archiveName, deleteFolder, false);
+    }
+
+    /**
+     * Compresses a folder into an archive created next to it. If so requested and the archive already exists,
+     * it is only updated with the files that were added or changed since.
+     */
+    public static void compress(Path sourceFolder, String archiveName, boolean deleteFolder, boolean update) throws IOException {
         Path zipFile = sourceFolder.getParent().resolve(archiveName + ".zip");
-        Files.deleteIfExists(zipFile);
-        zipFile = Files.createFile(zipFile);
-        try (ZipOutputStream outputStream = new ZipOutputStream(Files.newOutputStream(zipFile))) {
-            try (Stream<Path> files = Files.walk(sourceFolder)) {
-                Iterator<Path> pathIterator = files.iterator();
-                while (pathIterator.hasNext()) {
-                    Path path = pathIterator.next();
-                    String sp = sourceFolder.relativize(path).toString();
-                    try {
-                        ZipEntry entry = new ZipEntry(sp);
-                        outputStream.putNextEntry(entry);
-                        if (!Files.isDirectory(path)) {
-                            outputStream.write(Files.readAllBytes(path));
-                        }
-                        outputStream.closeEntry();
-                    } catch (Exception e) {
-                        System.out.println(e.getMessage());
-                    }
-                }
+        ZipArchiveWriter writer = null;
+        if (update && Files.exists(zipFile)) {
+            try {
+                writer = ZipArchiveWriter.open(zipFile);
+            } catch (IOException e) {
+                Logger.getRootLogger().warn("Cannot update %s, it will be created again [%s]", zipFile.getFileName(), e.getMessage());
             }
         }
+        if (writer == null) {
+            writer = new ZipArchiveWriter(zipFile);
+        }
+        try {
+            writer.addTree(sourceFolder);
+            writer.close();
+        } catch (IOException | RuntimeException e) {
+            writer.abort();
+            throw e;
+        }
         if (deleteFolder) {
             delete(sourceFolder);
         }
     }
 
-    private static boolean delete(Path path) {
+    /**
+     * Deletes a file or a folder, with all its content.
+     */
+    public static boolean delete(Path path) {
         if (!Files.exists(path)) {
             return false;
         }
@@ -0,0 +1,79 @@
+package ro.cs.products;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+import ro.cs.products.sentinel2.ProductStore;
+
+import java.io.InterruptedIOException;
+
+/**
+ * Checks the rates enforced by the token buckets of {@link BandwidthLimiter}: the global one, the ones of the stores
+ * and the one set by a schedule, and the burst allowed after an idle period.
+ *
+ * @author Cosmin Cara
+ */
+public class BandwidthLimiterTest {
+    private static final int RATE = 1024 * 1024;
+    private static final int CHUNK = 64 * 1024;
+
+    @After
+    public void tearDown() {
+        BandwidthLimiter.setLimit(0);
+        BandwidthLimiter.setSchedule(null);
+        for (ProductStore store : ProductStore.values()) {
+            BandwidthLimiter.setLimit(store, 0);
+        }
+    }
+
+    @Test
+    public void unlimitedTransfersDoNotWait() throws InterruptedIOException {
+        Assert.assertFalse(BandwidthLimiter.isLimited(ProductStore.AWS));
+        Assert.assertTrue(transfer(ProductStore.AWS, 64 * RATE) < 500);
+    }
+
+    @Test
+    public void globalLimitIsEnforced() throws InterruptedIOException {
+        BandwidthLimiter.setLimit(RATE);
+        Assert.assertTrue(BandwidthLimiter.isLimited(null));
+        assertRate(transfer(ProductStore.AWS, RATE), 1000);
+    }
+
+    @Test
+    public void storeLimitAppliesToItsTransfersOnly() throws InterruptedIOException {
+        BandwidthLimiter.setLimit(ProductStore.SCIHUB, RATE);
+        Assert.assertTrue(BandwidthLimiter.isLimited(ProductStore.SCIHUB));
+        Assert.assertFalse(BandwidthLimiter.isLimited(ProductStore.AWS));
+        assertRate(transfer(ProductStore.SCIHUB, RATE), 1000);
+        Assert.assertTrue(transfer(ProductStore.AWS, 64 * RATE) < 500);
+    }
+
+    @Test
+    public void scheduledWindowOverridesGlobalLimit() throws InterruptedIOException {
+        // a window that starts and ends at the same time covers the whole day
+        BandwidthLimiter.setSchedule("00:00-00:00=" + (RATE / 1024));
+        Assert.assertTrue(BandwidthLimiter.isLimited(ProductStore.AWS));
+        assertRate(transfer(ProductStore.AWS, RATE), 1000);
+    }
+
+    @Test
+    public void idleBucketAllowsTenthOfSecondBurst() throws InterruptedException, InterruptedIOException {
+        BandwidthLimiter.setLimit(RATE);
+        Thread.sleep(500);
+        // half a second of idling saves only a tenth of a second worth of transfer
+        assertRate(transfer(ProductStore.AWS, RATE / 2), 400);
+    }
+
+    private static long transfer(ProductStore store, int bytes) throws InterruptedIOException {
+        long start = System.nanoTime();
+        for (int sent = 0; sent < bytes; sent += CHUNK) {
+            BandwidthLimiter.acquire(store, Math.min(CHUNK, bytes - sent));
+        }
+        return (System.nanoTime() - start) / 1000000;
+    }
+
+    private static void assertRate(long elapsed, long expected) {
+        Assert.assertTrue(String.format("Transfer took %sms instead of %sms", elapsed, expected),
+                          elapsed >= expected - 50 && elapsed < expected + 1000);
+    }
+}
@@ -0,0 +1,82 @@
+package ro.cs.products;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Checks that the {@link BufferPool} keeps within its budget, making callers wait for the buffers in use.
+ *
+ * @author Cosmin Cara
+ */
+public class BufferPoolTest {
+    private long budget;
+
+    @Before
+    public void setUp() {
+        this.budget = BufferPool.getBudget();
+        Assert.assertEquals(0, BufferPool.getUsedBytes());
+        BufferPool.setBudget(2 * BufferPool.BUFFER_SIZE);
+    }
+
+    @After
+    public void tearDown() {
+        BufferPool.setBudget(this.budget);
+    }
+
+    @Test
+    public void callersWaitForReleasedBuffers() throws Exception {
+        ByteBuffer first = BufferPool.acquire();
+        ByteBuffer second = BufferPool.tryAcquire();
+        Assert.assertNotNull(second);
+        Assert.assertNull(BufferPool.tryAcquire());
+        Assert.assertEquals(1.0, BufferPool.getOccupancy(), 0.0);
+
+        AtomicReference<Thread> waiting = new AtomicReference<>();
+        ExecutorService workers = Executors.newSingleThreadExecutor();
+        try {
+            Future<ByteBuffer> third = workers.submit(() -> {
+                waiting.set(Thread.currentThread());
+                return BufferPool.acquire();
+            });
+            FileTransferTest.waitUntilBlocked(waiting);
+            Assert.assertFalse(third.isDone());
+            first.put((byte) 1);
+            BufferPool.release(first);
+            // the released buffer is reused, cleared
+            ByteBuffer reused = third.get(10, TimeUnit.SECONDS);
+            Assert.assertSame(first, reused);
+            Assert.assertEquals(0, reused.position());
+            BufferPool.release(reused);
+        } finally {
+            workers.shutdownNow();
+        }
+        BufferPool.release(second);
+        Assert.assertEquals(0, BufferPool.getUsedBytes());
+        Assert.assertTrue(BufferPool.getPeakUsedBytes() >= 2 * BufferPool.BUFFER_SIZE);
+    }
+
+    @Test
+    public void lowerBudgetFreesBuffers() throws Exception {
+        ByteBuffer first = BufferPool.acquire();
+        ByteBuffer second = BufferPool.tryAcquire();
+        BufferPool.setBudget(BufferPool.BUFFER_SIZE);
+        // the buffers in use are freed once released
+        BufferPool.release(first);
+        Assert.assertEquals(BufferPool.BUFFER_SIZE, BufferPool.getAllocatedBytes());
+        Assert.assertNull(BufferPool.tryAcquire());
+        BufferPool.release(second);
+        ByteBuffer third = BufferPool.tryAcquire();
+        Assert.assertSame(second, third);
+        BufferPool.release(third);
+        Assert.assertEquals(BufferPool.BUFFER_SIZE, BufferPool.getAllocatedBytes());
+    }
+}
@@ -0,0 +1,143 @@
+package ro.cs.products;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+
+/**
+ * Checks the replay and the compaction of the {@link DownloadJournal}.
+ *
+ * @author Cosmin Cara
+ */
+public class DownloadJournalTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+    private Path root;
+
+    @Before
+    public void setUp() {
+        this.root = this.folder.getRoot().toPath();
+    }
+
+    @Test
+    public void replaysLastRecordOfEachItem() throws IOException {
+        Path file = this.root.resolve("S2A_PRODUCT.SAFE/GRANULE/B01.jp2");
+        try (DownloadJournal journal = DownloadJournal.open(this.root, true, true)) {
+            String key = journal.keyOf(file);
+            Assert.assertEquals("S2A_PRODUCT.SAFE/GRANULE/B01.jp2", key.replace('\\', '/'));
+            journal.recordFile(key, DownloadJournal.State.PARTIAL, 0, 1000, null, null);
+            journal.recordFile(key, DownloadJournal.State.PARTIAL, 400, 1000, "\"etag\"", "Mon, 01 Jan 2018 00:00:00 GMT");
+            journal.beginProduct("S2A_PRODUCT");
+            journal.markTileDownloaded("S2A_PRODUCT", "T35TLK");
+        }
+        try (DownloadJournal journal = DownloadJournal.open(this.root, true, true)) {
+            DownloadJournal.Entry entry = journal.getFile(journal.keyOf(file));
+            Assert.assertEquals(DownloadJournal.State.PARTIAL, entry.state);
+            Assert.assertEquals(400, entry.bytes);
+            Assert.assertEquals(1000, entry.length);
+            Assert.assertEquals("\"etag\"", entry.getValidator());
+            Assert.assertEquals("Mon, 01 Jan 2018 00:00:00 GMT", entry.lastModified);
+            Assert.assertTrue(journal.isTileDownloaded("S2A_PRODUCT", "T35TLK"));
+            Assert.assertFalse(journal.isTileDownloaded("S2A_PRODUCT", "T35TLL"));
+            Assert.assertFalse(journal.isProductDownloaded("S2A_PRODUCT"));
+        }
+    }
+
+    @Test
+    public void compactsRecordsWhenOpened() throws IOException {
+        try (DownloadJournal journal = DownloadJournal.open(this.root, true, true)) {
+            for (int bytes = 0; bytes <= 1000; bytes += 100) {
+                journal.recordFile("file.jp2", DownloadJournal.State.PARTIAL, bytes, 1000, "\"etag\"", null);
+            }
+            journal.recordFile("file.jp2", DownloadJournal.State.COMPLETE, 1000, 1000, "\"etag\"", null);
+            journal.recordFile("other.xml", DownloadJournal.State.COMPLETE, 10, 10, null, null);
+        }
+        Assert.assertEquals(13, journalLines().size());
+        DownloadJournal.open(this.root, true, true).close();
+        List<String> lines = journalLines();
+        Assert.assertEquals(2, lines.size());
+        Assert.assertTrue(lines.get(0).startsWith("FILE\tfile.jp2\tCOMPLETE\t1000\t1000\t\"etag\"\t-\t-"));
+    }
+
+    @Test
+    public void ignoresTruncatedLastLine() throws IOException {
+        try (DownloadJournal journal = DownloadJournal.open(this.root, true, true)) {
+            journal.recordFile("file.jp2", DownloadJournal.State.PARTIAL, 300, 1000, "\"etag\"", null);
+        }
+        // a run killed while appending a record
+        Files.write(this.root.resolve(DownloadJournal.FILE_NAME), "FILE\tfile.jp2\tCOMPLETE\t10".getBytes(StandardCharsets.UTF_8),
+                    StandardOpenOption.APPEND);
+        try (DownloadJournal journal = DownloadJournal.open(this.root, true, true)) {
+            DownloadJournal.Entry entry = journal.getFile("file.jp2");
+            Assert.assertEquals(DownloadJournal.State.PARTIAL, entry.state);
+            Assert.assertEquals(300, entry.bytes);
+        }
+        Assert.assertEquals(1, journalLines().size());
+    }
+
+    @Test
+    public void reportsCompletedProductsOnlyWhenResuming() throws IOException {
+        Path product = Files.createDirectories(this.root.resolve("S2A_PRODUCT.SAFE"));
+        try (DownloadJournal journal = DownloadJournal.open(this.root, true, true)) {
+            journal.beginProduct("S2A_PRODUCT");
+            Assert.assertFalse(journal.isProductDownloaded("S2A_PRODUCT"));
+            journal.completeProduct("S2A_PRODUCT", product);
+            Assert.assertTrue(journal.isProductDownloaded("S2A_PRODUCT"));
+        }
+        try (DownloadJournal journal = DownloadJournal.open(this.root, false, true)) {
+            Assert.assertFalse(journal.isProductDownloaded("S2A_PRODUCT"));
+            Assert.assertFalse(journal.isTileDownloaded("S2A_PRODUCT", "T35TLK"));
+        }
+        Files.delete(product);
+        try (DownloadJournal journal = DownloadJournal.open(this.root, true, true)) {
+            // the product was removed from the output folder since
+            Assert.assertFalse(journal.isProductDownloaded("S2A_PRODUCT"));
+        }
+    }
+
+    @Test
+    public void skipsTilesOnlyIfRequested() throws IOException {
+        try (DownloadJournal journal = DownloadJournal.open(this.root, true, false)) {
+            journal.markTileDownloaded("S2A_PRODUCT", "T35TLK");
+            Assert.assertFalse(journal.isTileDownloaded("S2A_PRODUCT", "T35TLK"));
+        }
+        try (DownloadJournal journal = DownloadJournal.open(this.root, true, true)) {
+            Assert.assertTrue(journal.isTileDownloaded("S2A_PRODUCT", "T35TLK"));
+        }
+    }
+
+    @Test
+    public void resumesPartialFilesWithValidatorOnly() {
+        Assert.assertTrue(new DownloadJournal.Entry(DownloadJournal.State.PARTIAL, 100, 1000, "\"etag\"", null, null).canResume(100));
+        Assert.assertTrue(new DownloadJournal.Entry(DownloadJournal.State.PARTIAL, 100, 1000, null, "date", null).canResume(500));
+        Assert.assertFalse(new DownloadJournal.Entry(DownloadJournal.State.PARTIAL, 100, 1000, null, null, null).canResume(100));
+        Assert.assertFalse(new DownloadJournal.Entry(DownloadJournal.State.PARTIAL, 100, 1000, "\"etag\"", null, null).canResume(99));
+        Assert.assertFalse(new DownloadJournal.Entry(DownloadJournal.State.PARTIAL, 0, 1000, "\"etag\"", null, null).canResume(0));
+        Assert.assertFalse(new DownloadJournal.Entry(DownloadJournal.State.COMPLETE, 1000, 1000, "\"etag\"", null, null).canResume(1000));
+    }
+
+    @Test
+    public void disabledJournalRecordsNothing() {
+        DownloadJournal journal = DownloadJournal.disabled();
+        Assert.assertFalse(journal.isEnabled());
+        journal.recordFile("file.jp2", DownloadJournal.State.COMPLETE, 10, 10, null, null);
+        journal.markTileDownloaded("S2A_PRODUCT", "T35TLK");
+        Assert.assertNull(journal.getFile("file.jp2"));
+        Assert.assertFalse(journal.isTileDownloaded("S2A_PRODUCT", "T35TLK"));
+        Assert.assertFalse(Files.exists(this.root.resolve(DownloadJournal.FILE_NAME)));
+        journal.close();
+    }
+
+    private List<String> journalLines() throws IOException {
+        return Files.readAllLines(this.root.resolve(DownloadJournal.FILE_NAME), StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,112 @@
+package ro.cs.products;
+
+import org.junit.Assume;
+import org.junit.Test;
+import ro.cs.products.sentinel2.ProductStore;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Measures the throughput of the copy of a download into a local file, served from a local HTTP server:
+ * the former copy loop (a heap buffer per file, wrapped for every write), and {@link FileTransfer} with and without
+ * a digest being computed. The measure is skipped unless the <code>benchmark</code> system property is set:
+ * <pre>mvn test -Dtest=FileTransferBenchmark -Dbenchmark=true [-Dbenchmark.size=256] [-Dbenchmark.runs=5]</pre>
+ * The throughput is bounded by the local server, hence the figures are to be compared with each other only.
+ * The allocation is the one of the thread that reads the response.
+ *
+ * @author Cosmin Cara
+ */
+public class FileTransferBenchmark {
+    private static final int BUFFER_SIZE = 1024 * 1024;
+    private static final int WARMUP_RUNS = 2;
+
+    private interface CopyPath {
+        long copy(InputStream inputStream, FileChannel channel, long length) throws Exception;
+    }
+
+    @Test
+    public void compareCopyPaths() throws Exception {
+        Assume.assumeTrue(Boolean.getBoolean("benchmark"));
+        int sizeMB = Integer.getInteger("benchmark.size", 256);
+        int runs = Integer.getInteger("benchmark.runs", 5);
+        byte[] content = new byte[sizeMB * 1024 * 1024];
+        new Random(42).nextBytes(content);
+        Path target = Files.createTempFile("transfer-benchmark", ".bin");
+        try (LocalHttpServer server = new LocalHttpServer(content)) {
+            String url = server.getUrl("file.bin");
+            measure("stream copy (before)", url, target, runs, (inputStream, channel, length) -> {
+                byte[] buffer = new byte[BUFFER_SIZE];
+                long total = 0;
+                int read;
+                while ((read = inputStream.read(buffer)) != -1) {
+                    channel.write(ByteBuffer.wrap(buffer, 0, read));
+                    total += read;
+                }
+                return total;
+            });
+            measure("FileTransfer", url, target, runs, (inputStream, channel, length) -> {
+                try (FileTransfer transfer = new FileTransfer(length, 0, null, ProductStore.LOCAL)) {
+                    return transfer.copy(inputStream, channel, 0);
+                }
+            });
+            measure("FileTransfer with MD5", url, target, runs, (inputStream, channel, length) -> {
+                try (FileTransfer transfer = new FileTransfer(length, 0, null, ProductStore.LOCAL)) {
+                    transfer.setDigest(MessageDigest.getInstance("MD5"));
+                    return transfer.copy(inputStream, channel, 0);
+                }
+            });
+        } finally {
+            Files.deleteIfExists(target);
+        }
+    }
+
+    private static void measure(String name, String url, Path target, int runs, CopyPath path) throws Exception {
+        double[] throughputs = new double[runs];
+        long[] allocations = new long[runs];
+        for (int run = -WARMUP_RUNS; run < runs; run++) {
+            HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+            long length = connection.getContentLengthLong();
+            long allocated = allocatedBytes();
+            long start = System.nanoTime();
+            long copied;
+            try (InputStream inputStream = connection.getInputStream();
+                 FileChannel channel = FileChannel.open(target, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                copied = path.copy(inputStream, channel, length);
+            } finally {
+                connection.disconnect();
+            }
+            long nanos = System.nanoTime() - start;
+            if (copied != length) {
+                throw new IOException(String.format("%s copied %s bytes out of %s", name, copied, length));
+            }
+            if (run >= 0) {
+                throughputs[run] = length / 1024.0 / 1024.0 / (nanos / 1e9);
+                allocations[run] = allocatedBytes() - allocated;
+            }
+        }
+        Arrays.sort(throughputs);
+        Arrays.sort(allocations);
+        System.out.println(String.format("%-24s median %7.1f MB/s (min %7.1f, max %7.1f), reader allocated %s KB",
+                                         name, throughputs[runs / 2], throughputs[0], throughputs[runs - 1],
+                                         allocations[runs / 2] / 1024));
+    }
+
+    private static long allocatedBytes() {
+        ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        return bean instanceof com.sun.management.ThreadMXBean ?
+                ((com.sun.management.ThreadMXBean) bean).getThreadAllocatedBytes(Thread.currentThread().getId()) : 0;
+    }
+}
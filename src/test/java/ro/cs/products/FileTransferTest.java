@@ -0,0 +1,290 @@
+package ro.cs.products;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import ro.cs.products.sentinel2.ProductStore;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Checks the copies of {@link FileTransfer}, alone and shared by several threads, the back-pressure of its disk ring
+ * and the return of its blocks to the {@link BufferPool} when the source or the disk fails.
+ *
+ * @author Cosmin Cara
+ */
+public class FileTransferTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void concurrentCopiesKeepTheirOwnSource() throws Exception {
+        int threads = 8;
+        int part = 4 * 1024 * 1024;
+        byte[] content = randomBytes(threads * part);
+        Path file = this.folder.getRoot().toPath().resolve("shared.bin");
+        ExecutorService workers = Executors.newFixedThreadPool(threads);
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+             FileTransfer transfer = new FileTransfer(content.length, 0, null, ProductStore.LOCAL)) {
+            List<Future<Void>> results = new ArrayList<>();
+            for (int i = 0; i < threads; i++) {
+                final int start = i * part;
+                results.add(workers.submit(() -> {
+                    // small copies, so that the threads keep switching sources on the shared transfer
+                    InputStream source = new ByteArrayInputStream(content, start, part);
+                    long position = start;
+                    long read;
+                    while ((read = transfer.copy(source, channel, position, 4096)) > 0) {
+                        position += read;
+                    }
+                    return null;
+                }));
+            }
+            for (Future<Void> result : results) {
+                result.get();
+            }
+            transfer.flush();
+            Assert.assertEquals(content.length, transfer.getTransferredBytes());
+        } finally {
+            workers.shutdownNow();
+        }
+        Assert.assertArrayEquals(content, Files.readAllBytes(file));
+    }
+
+    @Test
+    public void ringHoldsBackReaderAndKeepsOrder() throws Exception {
+        int blockSize = BufferPool.BUFFER_SIZE;
+        byte[] content = randomBytes(3 * FileTransfer.RING_SIZE * blockSize);
+        Path file = this.folder.getRoot().toPath().resolve("ring.bin");
+        CountDownLatch disk = new CountDownLatch(1);
+        AtomicReference<Thread> reader = new AtomicReference<>();
+        ExecutorService workers = Executors.newSingleThreadExecutor();
+        try (GatedChannel channel = new GatedChannel(file, disk);
+             FileTransfer transfer = new FileTransfer(content.length, 0, null, ProductStore.LOCAL)) {
+            Future<Long> copied = workers.submit(() -> {
+                reader.set(Thread.currentThread());
+                return transfer.copy(new ByteArrayInputStream(content), channel, 0);
+            });
+            // the disk doesn't write: the reader fills the blocks of the ring, then waits for one to be written
+            waitUntilBlocked(reader);
+            Assert.assertEquals(FileTransfer.RING_SIZE * (long) blockSize, transfer.getTransferredBytes());
+            Assert.assertTrue(channel.positions.size() <= 1);
+
+            disk.countDown();
+            Assert.assertEquals(content.length, (long) copied.get());
+            transfer.flush();
+            for (int i = 0; i < channel.positions.size(); i++) {
+                Assert.assertEquals(i * (long) blockSize, (long) channel.positions.get(i));
+            }
+        } finally {
+            workers.shutdownNow();
+        }
+        Assert.assertArrayEquals(content, Files.readAllBytes(file));
+    }
+
+    @Test
+    public void blocksAreReturnedWhenTheSourceFails() throws Exception {
+        long used = BufferPool.getUsedBytes();
+        Path file = this.folder.getRoot().toPath().resolve("source.bin");
+        InputStream source = new FailingInputStream(randomBytes(3 * BufferPool.BUFFER_SIZE + 100));
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+             FileTransfer transfer = new FileTransfer(-1, 0, null, ProductStore.LOCAL)) {
+            transfer.copy(source, channel, 0);
+            Assert.fail("The failure of the source was not reported");
+        } catch (IOException e) {
+            Assert.assertEquals("Connection reset", e.getMessage());
+        }
+        Assert.assertEquals(used, BufferPool.getUsedBytes());
+    }
+
+    @Test
+    public void blocksAreReturnedWhenTheDiskFails() throws Exception {
+        long used = BufferPool.getUsedBytes();
+        byte[] content = randomBytes(3 * FileTransfer.RING_SIZE * BufferPool.BUFFER_SIZE);
+        Path file = this.folder.getRoot().toPath().resolve("disk.bin");
+        IOException failure = null;
+        try (GatedChannel channel = new GatedChannel(file, new CountDownLatch(0))) {
+            channel.failure = new IOException("No space left on device");
+            try (FileTransfer transfer = new FileTransfer(content.length, 0, null, ProductStore.LOCAL)) {
+                transfer.copy(new ByteArrayInputStream(content), channel, 0);
+            } catch (IOException e) {
+                failure = e;
+            }
+        }
+        Assert.assertNotNull(failure);
+        Assert.assertEquals("No space left on device", failure.getMessage());
+        Assert.assertEquals(used, BufferPool.getUsedBytes());
+    }
+
+    static void waitUntilBlocked(AtomicReference<Thread> thread) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10000;
+        while (thread.get() == null || thread.get().getState() != Thread.State.WAITING) {
+            Assert.assertTrue("The thread was not blocked", System.currentTimeMillis() < deadline);
+            Thread.sleep(10);
+        }
+    }
+
+    static byte[] randomBytes(int length) {
+        byte[] bytes = new byte[length];
+        new Random(length).nextBytes(bytes);
+        return bytes;
+    }
+
+    /**
+     * A stream that fails after delivering its content, as a connection that was reset.
+     */
+    private static class FailingInputStream extends InputStream {
+        private final InputStream content;
+
+        FailingInputStream(byte[] content) {
+            this.content = new ByteArrayInputStream(content);
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) < 0 ? -1 : b[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (this.content.available() == 0) {
+                throw new IOException("Connection reset");
+            }
+            return this.content.read(b, off, len);
+        }
+    }
+
+    /**
+     * A file channel whose positional writes wait for a gate to open and are recorded, or fail.
+     */
+    private static class GatedChannel extends FileChannel {
+        private final FileChannel channel;
+        private final CountDownLatch gate;
+        private final List<Long> positions = Collections.synchronizedList(new ArrayList<>());
+        private volatile IOException failure;
+
+        GatedChannel(Path file, CountDownLatch gate) throws IOException {
+            this.channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            this.gate = gate;
+        }
+
+        @Override
+        public int write(ByteBuffer src, long position) throws IOException {
+            try {
+                this.gate.await();
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException();
+            }
+            if (this.failure != null) {
+                throw this.failure;
+            }
+            this.positions.add(position);
+            return this.channel.write(src, position);
+        }
+
+        @Override
+        public int read(ByteBuffer dst) throws IOException {
+            return this.channel.read(dst);
+        }
+
+        @Override
+        public long read(ByteBuffer[] dsts, int offset, int length) throws IOException {
+            return this.channel.read(dsts, offset, length);
+        }
+
+        @Override
+        public int write(ByteBuffer src) throws IOException {
+            return this.channel.write(src);
+        }
+
+        @Override
+        public long write(ByteBuffer[] srcs, int offset, int length) throws IOException {
+            return this.channel.write(srcs, offset, length);
+        }
+
+        @Override
+        public long position() throws IOException {
+            return this.channel.position();
+        }
+
+        @Override
+        public FileChannel position(long newPosition) throws IOException {
+            this.channel.position(newPosition);
+            return this;
+        }
+
+        @Override
+        public long size() throws IOException {
+            return this.channel.size();
+        }
+
+        @Override
+        public FileChannel truncate(long size) throws IOException {
+            this.channel.truncate(size);
+            return this;
+        }
+
+        @Override
+        public void force(boolean metaData) throws IOException {
+            this.channel.force(metaData);
+        }
+
+        @Override
+        public long transferTo(long position, long count, WritableByteChannel target) throws IOException {
+            return this.channel.transferTo(position, count, target);
+        }
+
+        @Override
+        public long transferFrom(ReadableByteChannel src, long position, long count) throws IOException {
+            return this.channel.transferFrom(src, position, count);
+        }
+
+        @Override
+        public int read(ByteBuffer dst, long position) throws IOException {
+            return this.channel.read(dst, position);
+        }
+
+        @Override
+        public MappedByteBuffer map(MapMode mode, long position, long size) throws IOException {
+            return this.channel.map(mode, position, size);
+        }
+
+        @Override
+        public FileLock lock(long position, long size, boolean shared) throws IOException {
+            return this.channel.lock(position, size, shared);
+        }
+
+        @Override
+        public FileLock tryLock(long position, long size, boolean shared) throws IOException {
+            return this.channel.tryLock(position, size, shared);
+        }
+
+        @Override
+        protected void implCloseChannel() throws IOException {
+            this.channel.close();
+        }
+    }
+}
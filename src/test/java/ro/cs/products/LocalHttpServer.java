@@ -0,0 +1,116 @@
+package ro.cs.products;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+
+/**
+ * Serves a byte array over HTTP on the loopback interface, honouring single byte ranges
+ * (including suffix ranges), so that the transfers can be exercised without any remote service.
+ * The paths and the ranges that were requested are recorded. Some paths can be made to fail.
+ *
+ * @author Cosmin Cara
+ */
+class LocalHttpServer implements AutoCloseable {
+    private static final int CHUNK_SIZE = 64 * 1024;
+    private final HttpServer server;
+    private final byte[] content;
+    private final List<String> ranges = Collections.synchronizedList(new ArrayList<>());
+    private final List<String> paths = Collections.synchronizedList(new ArrayList<>());
+    private final Set<String> failing = ConcurrentHashMap.newKeySet();
+    private volatile boolean chunked;
+
+    LocalHttpServer(byte[] content) throws IOException {
+        this.content = content;
+        this.server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        this.server.createContext("/", this::handle);
+        this.server.setExecutor(Executors.newCachedThreadPool());
+        this.server.start();
+    }
+
+    String getUrl(String name) {
+        return "http://" + InetAddress.getLoopbackAddress().getHostAddress() + ":" +
+                this.server.getAddress().getPort() + "/" + name;
+    }
+
+    List<String> getRanges() {
+        return this.ranges;
+    }
+
+    List<String> getPaths() {
+        return this.paths;
+    }
+
+    /**
+     * Sends the content without its length (with chunked transfer encoding).
+     */
+    void setChunked(boolean chunked) {
+        this.chunked = chunked;
+    }
+
+    /**
+     * Makes the requests for the given name fail (with a non-retryable status) or succeed again.
+     */
+    void setFailing(String name, boolean fail) {
+        if (fail) {
+            this.failing.add("/" + name);
+        } else {
+            this.failing.remove("/" + name);
+        }
+    }
+
+    @Override
+    public void close() {
+        this.server.stop(0);
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        String path = exchange.getRequestURI().getPath();
+        this.paths.add(path);
+        if (this.failing.contains(path)) {
+            exchange.sendResponseHeaders(403, -1);
+            exchange.close();
+            return;
+        }
+        long start = 0;
+        long end = this.content.length - 1;
+        String range = exchange.getRequestHeaders().getFirst("Range");
+        if (range != null) {
+            this.ranges.add(range);
+            String[] bounds = range.substring(range.indexOf('=') + 1).split("-", -1);
+            if (bounds[0].isEmpty()) {
+                start = Math.max(0, this.content.length - Long.parseLong(bounds[1]));
+            } else {
+                start = Long.parseLong(bounds[0]);
+                if (!bounds[1].isEmpty()) {
+                    end = Math.min(end, Long.parseLong(bounds[1]));
+                }
+            }
+            exchange.getResponseHeaders().add("Content-Range", "bytes " + start + "-" + end + "/" + this.content.length);
+        }
+        exchange.getResponseHeaders().add("Accept-Ranges", "bytes");
+        long length = end - start + 1;
+        if ("HEAD".equals(exchange.getRequestMethod())) {
+            exchange.getResponseHeaders().add("Content-Length", String.valueOf(length));
+            exchange.sendResponseHeaders(range != null ? 206 : 200, -1);
+            exchange.close();
+            return;
+        }
+        exchange.sendResponseHeaders(range != null ? 206 : 200, this.chunked ? 0 : length);
+        try (OutputStream outputStream = exchange.getResponseBody()) {
+            for (long position = start; position <= end; position += CHUNK_SIZE) {
+                outputStream.write(this.content, (int) position, (int) Math.min(CHUNK_SIZE, end - position + 1));
+            }
+        }
+    }
+}
@@ -0,0 +1,41 @@
+package ro.cs.products;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Checks that the {@link MetadataPrefetcher} keeps within its limits the documents whose length is not known.
+ *
+ * @author Cosmin Cara
+ */
+public class MetadataPrefetcherTest {
+
+    @Test
+    public void dropsLargeDocumentOfUnknownLength() throws Exception {
+        MetadataPrefetcher prefetcher = new MetadataPrefetcher(1, 64 * 1024 * 1024);
+        try (LocalHttpServer server = new LocalHttpServer(FileTransferTest.randomBytes(5 * 1024 * 1024))) {
+            server.setChunked(true);
+            Assert.assertNull(prefetcher.prefetch("S2A_PRODUCT", server.getUrl("MTD_MSIL1C.xml"), null).get());
+        } finally {
+            prefetcher.close();
+        }
+    }
+
+    @Test
+    public void releasesCapacityOfDroppedDocument() throws Exception {
+        byte[] small = FileTransferTest.randomBytes(100 * 1024);
+        MetadataPrefetcher prefetcher = new MetadataPrefetcher(1, 150 * 1024);
+        try (LocalHttpServer large = new LocalHttpServer(FileTransferTest.randomBytes(1024 * 1024));
+             LocalHttpServer server = new LocalHttpServer(small)) {
+            large.setChunked(true);
+            server.setChunked(true);
+            // the first document exceeds the capacity while being read, its bytes are given back
+            Assert.assertNull(prefetcher.prefetch("S2A_PRODUCT", large.getUrl("MTD_MSIL1C.xml"), null).get());
+            String url = server.getUrl("MTD_TL.xml");
+            Assert.assertNotNull(prefetcher.prefetch("S2A_PRODUCT", url, null).get());
+            Assert.assertArrayEquals(small, prefetcher.take(url));
+        } finally {
+            prefetcher.close();
+        }
+    }
+}
@@ -0,0 +1,127 @@
+package ro.cs.products;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import ro.cs.products.base.DownloadMode;
+import ro.cs.products.base.ProductDescriptor;
+import ro.cs.products.sentinel2.ProductStore;
+import ro.cs.products.util.Utilities;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.Future;
+
+/**
+ * Checks that a product interrupted by a failed file is resumed from the tiles that were not completely downloaded.
+ *
+ * @author Cosmin Cara
+ */
+public class ProductDownloaderTest {
+    private static final String PRODUCT = "S2A_PRODUCT";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void tileWithFailedFileIsDownloadedAgainOnResume() throws IOException {
+        byte[] content = FileTransferTest.randomBytes(100000);
+        Path root = this.folder.getRoot().toPath();
+        try (LocalHttpServer server = new LocalHttpServer(content)) {
+            server.setFailing("T2/B02.jp2", true);
+            new TileDownloader(root, server).downloadProducts(Collections.singletonList(product()));
+            Assert.assertEquals(4, server.getPaths().size());
+            try (DownloadJournal journal = DownloadJournal.open(root, true, true)) {
+                Assert.assertTrue(journal.isTileDownloaded(PRODUCT, "T1"));
+                Assert.assertFalse(journal.isTileDownloaded(PRODUCT, "T2"));
+                Assert.assertFalse(journal.isProductDownloaded(PRODUCT));
+            }
+
+            server.getPaths().clear();
+            server.setFailing("T2/B02.jp2", false);
+            new TileDownloader(root, server).downloadProducts(Collections.singletonList(product()));
+            // the completed tile is skipped, and so is the file of the second tile which was already downloaded
+            Assert.assertEquals(Arrays.asList("/T2/B02.jp2"), server.getPaths());
+            Assert.assertArrayEquals(content, Files.readAllBytes(root.resolve(PRODUCT).resolve("T2").resolve("B02.jp2")));
+            try (DownloadJournal journal = DownloadJournal.open(root, true, true)) {
+                Assert.assertTrue(journal.isTileDownloaded(PRODUCT, "T2"));
+                Assert.assertTrue(journal.isProductDownloaded(PRODUCT));
+            }
+        }
+    }
+
+    private static ProductDescriptor product() {
+        return new ProductDescriptor(PRODUCT) {
+            @Override
+            public String getProductRelativePath() {
+                return this.name;
+            }
+
+            @Override
+            protected boolean verifyProductName(String name) {
+                return true;
+            }
+        };
+    }
+
+    /**
+     * Downloads two bands for each of two tiles, the way the Sentinel-2 downloader does.
+     */
+    private static class TileDownloader extends ProductDownloader<ProductDescriptor> {
+        private final LocalHttpServer server;
+
+        TileDownloader(Path targetFolder, LocalHttpServer server) {
+            super(targetFolder.toString(), new Properties(), null);
+            this.server = server;
+            setDownloadStore(ProductStore.SCIHUB);
+            setDownloadMode(DownloadMode.RESUME);
+        }
+
+        @Override
+        protected String getProductUrl(ProductDescriptor descriptor) {
+            return null;
+        }
+
+        @Override
+        protected String getMetadataUrl(ProductDescriptor descriptor) {
+            return null;
+        }
+
+        @Override
+        protected Path download(ProductDescriptor product) throws IOException {
+            Path productFolder = Utilities.ensureExists(Paths.get(this.destination, product.getName()));
+            Map<String, List<Future<Path>>> tileDownloads = new LinkedHashMap<>();
+            List<Future<Path>> downloads = new ArrayList<>();
+            for (String tile : new String[] { "T1", "T2" }) {
+                if (getJournal().isTileDownloaded(product.getName(), tile)) {
+                    continue;
+                }
+                Path tileFolder = Utilities.ensureExists(productFolder.resolve(tile));
+                List<Future<Path>> files = new ArrayList<>();
+                for (String band : new String[] { "B01.jp2", "B02.jp2" }) {
+                    files.add(downloadFileAsync(this.server.getUrl(tile + URL_SEPARATOR + band), tileFolder.resolve(band)));
+                }
+                tileDownloads.put(tile, files);
+                downloads.addAll(files);
+            }
+            waitFor(downloads);
+            markTilesDownloaded(product.getName(), tileDownloads);
+            return productFolder;
+        }
+
+        @Override
+        protected boolean isIntendedFor(ProductDescriptor product) {
+            return true;
+        }
+    }
+}
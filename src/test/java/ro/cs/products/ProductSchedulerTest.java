@@ -0,0 +1,117 @@
+package ro.cs.products;
+
+import org.junit.Assert;
+import org.junit.Test;
+import ro.cs.products.base.ProductDescriptor;
+import ro.cs.products.base.SchedulingPolicy;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Collectors;
+
+/**
+ * Checks the order in which {@link ProductScheduler} hands the products of a batch, for each {@link SchedulingPolicy}.
+ *
+ * @author Cosmin Cara
+ */
+public class ProductSchedulerTest {
+
+    @Test
+    public void fifoKeepsOrder() {
+        List<ProductDescriptor> products = Arrays.asList(product("a", 300), product("b", 100), product("c", 200));
+        Assert.assertSame(products, ProductScheduler.schedule(products, SchedulingPolicy.FIFO, ProductDescriptor::getApproximateSize));
+    }
+
+    @Test
+    public void sizeOrdersSmallestFirst() {
+        // the product of unknown size is assumed to have the average size (200)
+        List<ProductDescriptor> products = Arrays.asList(product("a", 300), product("b", 100), product("c", -1),
+                                                         product("d", 250));
+        Assert.assertEquals(Arrays.asList("b", "c", "d", "a"), schedule(products, SchedulingPolicy.SIZE));
+    }
+
+    @Test
+    public void deadlineOrdersEarliestFirst() {
+        List<ProductDescriptor> products = Arrays.asList(product("none", 100, 0, 0),
+                                                         product("late", 100, 0, 2000),
+                                                         product("early-small", 100, 0, 1000),
+                                                         product("early-large", 500, 0, 1000),
+                                                         product("early-urgent", 900, 5, 1000));
+        Assert.assertEquals(Arrays.asList("early-urgent", "early-small", "early-large", "late", "none"),
+                            schedule(products, SchedulingPolicy.DEADLINE));
+    }
+
+    @Test
+    public void priorityOrdersHighestFirst() {
+        List<ProductDescriptor> products = Arrays.asList(product("low", 100, 1, 0),
+                                                         product("high-no-deadline", 100, 9, 0),
+                                                         product("high-deadline", 900, 9, 1000),
+                                                         product("medium-large", 500, 5, 0),
+                                                         product("medium-small", 200, 5, 0));
+        Assert.assertEquals(Arrays.asList("high-deadline", "high-no-deadline", "medium-small", "medium-large", "low"),
+                            schedule(products, SchedulingPolicy.PRIORITY));
+    }
+
+    @Test
+    public void fairSharesBytesBetweenGroups() {
+        List<ProductDescriptor> products = Arrays.asList(grouped("b1", 300, "B"), grouped("b2", 300, "B"),
+                                                         grouped("a1", 100, "A"), grouped("a2", 100, "A"),
+                                                         grouped("a3", 100, "A"), grouped("a4", 100, "A"));
+        // B is first found, hence wins the ties
+        Assert.assertEquals(Arrays.asList("b1", "a1", "a2", "a3", "b2", "a4"), schedule(products, SchedulingPolicy.FAIR));
+    }
+
+    @Test
+    public void fairTakesTurnsForUnknownSizes() {
+        List<ProductDescriptor> products = Arrays.asList(grouped("a1", -1, "A"), grouped("a2", -1, "A"),
+                                                         grouped("b1", -1, "B"), grouped("b2", -1, null));
+        Assert.assertEquals(Arrays.asList("a1", "b1", "b2", "a2"), schedule(products, SchedulingPolicy.FAIR));
+    }
+
+    @Test
+    public void sizesAreNeededOnlyToBreakTies() {
+        List<ProductDescriptor> products = Arrays.asList(product("known", 100, 5, 0), product("tied", -1, 5, 0),
+                                                         product("alone", -1, 9, 0), product("late", -1, 5, 1000));
+        Assert.assertTrue(ProductScheduler.needingSize(products, SchedulingPolicy.FIFO).isEmpty());
+        Assert.assertEquals(Arrays.asList("tied", "alone", "late"), names(ProductScheduler.needingSize(products, SchedulingPolicy.SIZE)));
+        Assert.assertEquals(Arrays.asList("tied", "alone", "late"), names(ProductScheduler.needingSize(products, SchedulingPolicy.FAIR)));
+        Assert.assertEquals(Arrays.asList("tied"), names(ProductScheduler.needingSize(products, SchedulingPolicy.PRIORITY)));
+        Assert.assertEquals(Arrays.asList("tied"), names(ProductScheduler.needingSize(products, SchedulingPolicy.DEADLINE)));
+    }
+
+    private static List<String> schedule(List<ProductDescriptor> products, SchedulingPolicy policy) {
+        return names(ProductScheduler.schedule(products, policy, ProductDescriptor::getApproximateSize));
+    }
+
+    private static List<String> names(List<ProductDescriptor> products) {
+        return products.stream().map(ProductDescriptor::getName).collect(Collectors.toList());
+    }
+
+    private static ProductDescriptor product(String name, long size) {
+        return product(name, size, 0, 0);
+    }
+
+    private static ProductDescriptor product(String name, long size, int priority, long deadline) {
+        ProductDescriptor product = new ProductDescriptor(name) {
+            @Override
+            public String getProductRelativePath() {
+                return this.name;
+            }
+
+            @Override
+            protected boolean verifyProductName(String name) {
+                return true;
+            }
+        };
+        product.setApproximateSize(size);
+        product.setPriority(priority);
+        product.setDeadline(deadline);
+        return product;
+    }
+
+    private static ProductDescriptor grouped(String name, long size, String group) {
+        ProductDescriptor product = product(name, size);
+        product.setGroup(group);
+        return product;
+    }
+}
@@ -0,0 +1,129 @@
+package ro.cs.products;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import ro.cs.products.sentinel2.ProductStore;
+import ro.cs.products.util.ZipDirectory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Checks the extraction of the entries of an archive served by byte ranges from memory.
+ *
+ * @author Cosmin Cara
+ */
+public class RemoteZipTest {
+    private static final byte[] METADATA = String.join("", Collections.nCopies(500, "<tile>T35TLK</tile>\n"))
+            .getBytes(StandardCharsets.UTF_8);
+    private static final byte[] LARGE_RASTER = randomBytes(2 * 1024 * 1024);
+    private static final byte[] RASTER = randomBytes(100 * 1024);
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+    private Path root;
+
+    @Before
+    public void setUp() {
+        this.root = this.folder.getRoot().toPath();
+    }
+
+    @Test
+    public void extractsSelectedEntriesWithFewRanges() throws IOException {
+        try (LocalHttpServer server = new LocalHttpServer(productArchive("product"))) {
+            RemoteZip archive = RemoteZip.open(server.getUrl("product.zip"), null, ProductStore.SCIHUB);
+            Assert.assertEquals(5, archive.getRecords().size());
+            List<ZipDirectory.Record> selected = archive.getRecords().stream()
+                    .filter(record -> !record.isDirectory() && !record.getName().endsWith("B01.jp2"))
+                    .collect(Collectors.toList());
+            archive.extract(selected, this.root, null);
+
+            Assert.assertArrayEquals(METADATA, Files.readAllBytes(this.root.resolve("product/MTD.xml")));
+            Assert.assertArrayEquals(RASTER, Files.readAllBytes(this.root.resolve("product/GRANULE/B02.jp2")));
+            Assert.assertArrayEquals(RASTER, Files.readAllBytes(this.root.resolve("product/GRANULE/B03.jp2")));
+            Assert.assertFalse(Files.exists(this.root.resolve("product/GRANULE/B01.jp2")));
+            // the tail, then the metadata alone, then both rasters at once, past the skipped large one
+            Assert.assertEquals(3, server.getRanges().size());
+            Assert.assertTrue(server.getRanges().get(0).startsWith("bytes=-"));
+        }
+    }
+
+    @Test
+    public void extractsProductFolder() throws IOException {
+        try (LocalHttpServer server = new LocalHttpServer(productArchive("S2A_PRODUCT.SAFE"))) {
+            AtomicInteger failures = new AtomicInteger();
+            Path productFolder = RemoteZip.extractProduct(server.getUrl("product.zip"), null, ProductStore.SCIHUB, this.root,
+                                                          record -> record.getName().endsWith(".xml"), null, failures);
+
+            Assert.assertEquals(this.root.resolve("S2A_PRODUCT.SAFE"), productFolder);
+            Assert.assertArrayEquals(METADATA, Files.readAllBytes(productFolder.resolve("MTD.xml")));
+            Assert.assertFalse(Files.exists(productFolder.resolve("GRANULE/B02.jp2")));
+            Assert.assertEquals(0, failures.get());
+        }
+    }
+
+    @Test
+    public void rejectsArchiveWithoutProductFolder() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ZipOutputStream zipStream = new ZipOutputStream(bytes)) {
+            zipStream.putNextEntry(new ZipEntry("first/MTD.xml"));
+            zipStream.write(METADATA);
+            zipStream.putNextEntry(new ZipEntry("second/MTD.xml"));
+            zipStream.write(METADATA);
+        }
+        try (LocalHttpServer server = new LocalHttpServer(bytes.toByteArray())) {
+            Assert.assertNull(RemoteZip.extractProduct(server.getUrl("product.zip"), null, ProductStore.SCIHUB, this.root,
+                                                       record -> true, null, new AtomicInteger()));
+            Assert.assertFalse(Files.exists(this.root.resolve("first")));
+        }
+    }
+
+    /**
+     * Builds an archive with a deflated metadata file (followed by a data descriptor) and stored rasters,
+     * a large one between the metadata and the others.
+     */
+    private static byte[] productArchive(String productFolder) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ZipOutputStream zipStream = new ZipOutputStream(bytes)) {
+            zipStream.putNextEntry(new ZipEntry(productFolder + "/"));
+            zipStream.putNextEntry(new ZipEntry(productFolder + "/MTD.xml"));
+            zipStream.write(METADATA);
+            putStored(zipStream, productFolder + "/GRANULE/B01.jp2", LARGE_RASTER);
+            putStored(zipStream, productFolder + "/GRANULE/B02.jp2", RASTER);
+            putStored(zipStream, productFolder + "/GRANULE/B03.jp2", RASTER);
+        }
+        return bytes.toByteArray();
+    }
+
+    private static void putStored(ZipOutputStream zipStream, String name, byte[] content) throws IOException {
+        ZipEntry entry = new ZipEntry(name);
+        CRC32 crc = new CRC32();
+        crc.update(content, 0, content.length);
+        entry.setMethod(ZipEntry.STORED);
+        entry.setSize(content.length);
+        entry.setCrc(crc.getValue());
+        zipStream.putNextEntry(entry);
+        zipStream.write(content);
+        zipStream.closeEntry();
+    }
+
+    private static byte[] randomBytes(int length) {
+        byte[] bytes = new byte[length];
+        new Random(length).nextBytes(bytes);
+        return bytes;
+    }
+}
@@ -0,0 +1,81 @@
+package ro.cs.products;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import ro.cs.products.sentinel2.ProductStore;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Checks that the segments of a download, fetched concurrently through a shared {@link FileTransfer},
+ * each land at their own offset.
+ *
+ * @author Cosmin Cara
+ */
+public class SegmentedDownloadTest {
+    private static final int LENGTH = 24 * 1024 * 1024 + 12345;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+    private byte[] content;
+    private Path file;
+
+    @Before
+    public void setUp() {
+        this.content = new byte[LENGTH];
+        new Random(42).nextBytes(this.content);
+        this.file = this.folder.getRoot().toPath().resolve("B01.jp2");
+    }
+
+    @Test
+    public void segmentsAreWrittenAtTheirOffsets() throws IOException {
+        try (LocalHttpServer server = new LocalHttpServer(this.content)) {
+            for (int run = 0; run < 3; run++) {
+                Files.deleteIfExists(this.file);
+                new SegmentedDownload(server.getUrl("B01.jp2"), null, this.file, LENGTH, ProductStore.SCIHUB).execute(6, null);
+
+                assertContent();
+                Assert.assertFalse(SegmentedDownload.isPending(this.file));
+            }
+            Assert.assertEquals(3 * 6, server.getRanges().size());
+        }
+    }
+
+    @Test
+    public void interruptedDownloadResumesFromSavedState() throws IOException {
+        int half = LENGTH / 2;
+        // the first segment was completed, the second one was cut after 1000 bytes
+        byte[] partial = new byte[LENGTH];
+        System.arraycopy(this.content, 0, partial, 0, half + 1000);
+        Files.write(this.file, partial);
+        Files.write(this.file.resolveSibling("B01.jp2.segments"),
+                    Arrays.asList(String.valueOf(LENGTH), "0 " + (half - 1) + " " + half, half + " " + (LENGTH - 1) + " 1000"),
+                    StandardCharsets.UTF_8);
+        Assert.assertTrue(SegmentedDownload.isPending(this.file));
+        try (LocalHttpServer server = new LocalHttpServer(this.content)) {
+            new SegmentedDownload(server.getUrl("B01.jp2"), null, this.file, LENGTH, ProductStore.SCIHUB).execute(6, null);
+
+            Assert.assertEquals(Arrays.asList("bytes=" + (half + 1000) + "-" + (LENGTH - 1)), server.getRanges());
+        }
+        assertContent();
+        Assert.assertFalse(SegmentedDownload.isPending(this.file));
+    }
+
+    private void assertContent() throws IOException {
+        byte[] downloaded = Files.readAllBytes(this.file);
+        Assert.assertEquals(LENGTH, downloaded.length);
+        for (int i = 0; i < LENGTH; i++) {
+            if (downloaded[i] != this.content[i]) {
+                Assert.fail(String.format("The downloaded file differs at byte %s", i));
+            }
+        }
+    }
+}
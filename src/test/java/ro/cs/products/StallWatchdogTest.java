@@ -0,0 +1,56 @@
+package ro.cs.products;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+import ro.cs.products.sentinel2.ProductStore;
+
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Checks that the {@link StallWatchdog} cuts a stream that doesn't deliver, unless its reader waits for the disk.
+ *
+ * @author Cosmin Cara
+ */
+public class StallWatchdogTest {
+
+    @After
+    public void tearDown() {
+        StallWatchdog.configure(0, 30);
+    }
+
+    @Test
+    public void pausedReaderIsNotStalled() throws Exception {
+        StallWatchdog.configure(1024, 1);
+        AtomicBoolean closed = new AtomicBoolean();
+        Closeable connection = () -> closed.set(true);
+        try (InputStream inputStream = StallWatchdog.watch(new ByteArrayInputStream(new byte[4096]), connection, ProductStore.SCIHUB)) {
+            // more than a window worth of bytes is read before pausing
+            Assert.assertEquals(2048, inputStream.read(new byte[2048]));
+            // the reader waits for a block of the disk ring for longer than the window
+            StallWatchdog.pause();
+            try {
+                Thread.sleep(3000);
+            } finally {
+                StallWatchdog.resume();
+            }
+            Assert.assertFalse(StallWatchdog.isStalled(inputStream));
+            Assert.assertFalse(closed.get());
+            // the reader goes back to the network, which doesn't deliver
+            Thread.sleep(3000);
+            Assert.assertTrue(StallWatchdog.isStalled(inputStream));
+            Assert.assertTrue(closed.get());
+        }
+    }
+
+    @Test
+    public void pauseWithoutWatchedStreamIsIgnored() throws IOException {
+        StallWatchdog.pause();
+        StallWatchdog.resume();
+        Assert.assertFalse(StallWatchdog.isStalled(new ByteArrayInputStream(new byte[0])));
+    }
+}
@@ -0,0 +1,93 @@
+package ro.cs.products.util;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Checks the selection of the {@link Bulkhead} of a host, the rejection of the requests not admitted within
+ * the admission timeout, and the admission of a waiting request once a slot is freed.
+ *
+ * @author Cosmin Cara
+ */
+public class BulkheadTest {
+    private static final String DOMAIN = "scihub.test";
+    private static final String HOST = "apihub." + DOMAIN;
+
+    @After
+    public void tearDown() {
+        Bulkhead.setLimit(DOMAIN, 0);
+        Bulkhead.setLimit(HOST, 0);
+        Bulkhead.setAdmissionTimeout(TimeUnit.MINUTES.toMillis(15));
+    }
+
+    @Test
+    public void mostSpecificDomainIsUsed() {
+        Assert.assertNull(Bulkhead.forHost(HOST));
+        Bulkhead.setLimit(" SciHub.Test ", 2);
+        Assert.assertEquals(2, Bulkhead.forHost(HOST).getLimit());
+        Assert.assertEquals(2, Bulkhead.forHost(DOMAIN).getLimit());
+        Assert.assertNull(Bulkhead.forHost("scihub.test.org"));
+        Assert.assertNull(Bulkhead.forHost("otherscihub.test"));
+        Bulkhead.setLimit(HOST, 1);
+        Assert.assertEquals(1, Bulkhead.forHost(HOST.toUpperCase()).getLimit());
+        Assert.assertEquals(2, Bulkhead.forHost("dhus." + DOMAIN).getLimit());
+        Bulkhead.setLimit(DOMAIN, 0);
+        Assert.assertNull(Bulkhead.forHost("dhus." + DOMAIN));
+    }
+
+    @Test
+    public void requestNotAdmittedWithinTimeoutIsRejected() throws IOException {
+        Bulkhead.setLimit(DOMAIN, 1);
+        Bulkhead.setAdmissionTimeout(300);
+        Bulkhead bulkhead = Bulkhead.forHost(HOST);
+        bulkhead.admit();
+        long start = System.nanoTime();
+        try {
+            bulkhead.admit();
+            Assert.fail("The request was admitted over the limit");
+        } catch (IOException e) {
+            Assert.assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) >= 290);
+            Assert.assertTrue(e.getMessage().startsWith("Request to scihub.test not admitted"));
+        }
+        bulkhead.release();
+        bulkhead.admit();
+        bulkhead.release();
+    }
+
+    @Test
+    public void waitingRequestIsAdmittedOnRelease() throws Exception {
+        Bulkhead.setLimit(DOMAIN, 1);
+        Bulkhead.setAdmissionTimeout(0);
+        Bulkhead bulkhead = Bulkhead.forHost(HOST);
+        AtomicReference<Thread> other = new AtomicReference<>();
+        ExecutorService workers = Executors.newSingleThreadExecutor();
+        try {
+            bulkhead.admit();
+            Future<Void> result = workers.submit(() -> {
+                other.set(Thread.currentThread());
+                bulkhead.admit();
+                return null;
+            });
+            // without a timeout, the request waits for as long as the slot is taken
+            long deadline = System.currentTimeMillis() + 10000;
+            while (other.get() == null || other.get().getState() != Thread.State.WAITING) {
+                Assert.assertTrue("The other thread was not blocked", System.currentTimeMillis() < deadline);
+                Thread.sleep(10);
+            }
+            Assert.assertFalse(result.isDone());
+            bulkhead.release();
+            result.get(10, TimeUnit.SECONDS);
+            bulkhead.release();
+        } finally {
+            workers.shutdownNow();
+        }
+    }
+}
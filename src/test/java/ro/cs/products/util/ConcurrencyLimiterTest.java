@@ -0,0 +1,115 @@
+package ro.cs.products.util;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Checks the additive increase and the multiplicative decrease of the limit of {@link ConcurrencyLimiter},
+ * and that a thread holding a permit is not blocked by the limit.
+ *
+ * @author Cosmin Cara
+ */
+public class ConcurrencyLimiterTest {
+    private static final long LATENCY = TimeUnit.MILLISECONDS.toNanos(1);
+
+    @After
+    public void tearDown() {
+        ConcurrencyLimiter.reset();
+    }
+
+    @Test
+    public void limitGrowsOnlyWhenReached() throws Exception {
+        ConcurrencyLimiter limiter = ConcurrencyLimiter.forHost("increase", 2, 4);
+        AtomicInteger held = limiter.acquire();
+        for (int i = 0; i < 10; i++) {
+            limiter.update(200, LATENCY);
+        }
+        Assert.assertEquals(2, limiter.getLimit());
+
+        limiter.acquire();
+        // about one more request per round trip: 2 + 1/2 + 1/2.5 + 1/2.9
+        limiter.update(200, LATENCY);
+        limiter.update(200, LATENCY);
+        Assert.assertEquals(2, limiter.getLimit());
+        limiter.update(200, LATENCY);
+        Assert.assertEquals(3, limiter.getLimit());
+        limiter.acquire();
+        for (int i = 0; i < 20; i++) {
+            limiter.update(200, LATENCY);
+        }
+        Assert.assertEquals(4, limiter.getLimit());
+        for (int i = 0; i < 3; i++) {
+            limiter.release(held);
+        }
+        Assert.assertEquals(0, held.get());
+    }
+
+    @Test
+    public void overloadHalvesLimitOncePerRoundTrip() throws Exception {
+        ConcurrencyLimiter limiter = ConcurrencyLimiter.forHost("decrease", 8, 8);
+        limiter.update(503, LATENCY);
+        Assert.assertEquals(4, limiter.getLimit());
+        // the responses of the requests sent under the previous limit don't lower it again
+        limiter.update(429, LATENCY);
+        limiter.update(-1, LATENCY);
+        Assert.assertEquals(4, limiter.getLimit());
+
+        Thread.sleep(150);
+        limiter.update(-1, LATENCY);
+        Assert.assertEquals(2, limiter.getLimit());
+        Thread.sleep(150);
+        limiter.update(500, LATENCY);
+        Thread.sleep(150);
+        limiter.update(500, LATENCY);
+        Assert.assertEquals(1, limiter.getLimit());
+    }
+
+    @Test
+    public void risingLatencyLowersLimitGently() {
+        ConcurrencyLimiter limiter = ConcurrencyLimiter.forHost("latency", 10, 10);
+        limiter.update(200, LATENCY);
+        Assert.assertEquals(10, limiter.getLimit());
+        limiter.update(200, 20 * LATENCY);
+        Assert.assertEquals(9, limiter.getLimit());
+    }
+
+    @Test
+    public void heldPermitBypassesLimit() throws Exception {
+        ConcurrencyLimiter limiter = ConcurrencyLimiter.forHost("nested", 1, 1);
+        AtomicReference<Thread> other = new AtomicReference<>();
+        ExecutorService workers = Executors.newSingleThreadExecutor();
+        try {
+            AtomicInteger held = limiter.acquire();
+            // a nested request of the same thread is let through, although the limit is reached
+            Assert.assertSame(held, limiter.acquire());
+            Assert.assertEquals(2, held.get());
+
+            Future<Integer> result = workers.submit(() -> {
+                other.set(Thread.currentThread());
+                AtomicInteger permits = limiter.acquire();
+                int count = permits.get();
+                limiter.release(permits);
+                return count;
+            });
+            long deadline = System.currentTimeMillis() + 10000;
+            while (other.get() == null || other.get().getState() != Thread.State.WAITING) {
+                Assert.assertTrue("The other thread was not blocked", System.currentTimeMillis() < deadline);
+                Thread.sleep(10);
+            }
+            limiter.release(held);
+            Assert.assertFalse(result.isDone());
+            limiter.release(held);
+            Assert.assertEquals(1, (int) result.get(10, TimeUnit.SECONDS));
+        } finally {
+            workers.shutdownNow();
+        }
+    }
+}
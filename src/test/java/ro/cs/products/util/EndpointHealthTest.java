@@ -0,0 +1,116 @@
+package ro.cs.products.util;
+
+import com.sun.net.httpserver.HttpServer;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Checks the transitions of the circuit breakers of {@link EndpointHealth}: opening after consecutive failures,
+ * failing over to the backup while open, and probing the endpoint once open long enough (half-open)
+ * to close again or to stay open for longer.
+ *
+ * @author Cosmin Cara
+ */
+public class EndpointHealthTest {
+    private static final String PRIMARY = "http://primary.test/api";
+    private static final String BACKUP = "http://backup.test/api/";
+
+    @After
+    public void tearDown() {
+        EndpointHealth.reset();
+        EndpointHealth.setMinOpenTime(TimeUnit.SECONDS.toMillis(30));
+    }
+
+    @Test
+    public void breakerOpensAfterConsecutiveFailures() throws IOException {
+        EndpointHealth.register(PRIMARY, BACKUP);
+        String url = PRIMARY + "/search?q=S2A";
+        EndpointHealth.record(url, false);
+        EndpointHealth.record(url, false);
+        EndpointHealth.record(url, true);
+        EndpointHealth.record(url, false);
+        EndpointHealth.record(url, false);
+        Assert.assertEquals(url, EndpointHealth.route(url));
+
+        EndpointHealth.record(url, false);
+        Assert.assertEquals("http://backup.test/api/search?q=S2A", EndpointHealth.route(url));
+        // urls that only share a prefix with the endpoint are not affected
+        Assert.assertEquals("http://primary.test/api2/search", EndpointHealth.route("http://primary.test/api2/search"));
+        // a request that went through anyway closes the breaker
+        EndpointHealth.record(url, true);
+        Assert.assertEquals(url, EndpointHealth.route(url));
+    }
+
+    @Test
+    public void openBreakerWithoutBackupFailsFast() {
+        EndpointHealth.register(PRIMARY);
+        for (int i = 0; i < 3; i++) {
+            EndpointHealth.record(PRIMARY + "/odata", false);
+        }
+        try {
+            EndpointHealth.route(PRIMARY + "/odata");
+            Assert.fail("The request was routed to an unavailable endpoint");
+        } catch (IOException e) {
+            Assert.assertEquals(PRIMARY + " is not available", e.getMessage());
+        }
+    }
+
+    @Test
+    public void probesCloseBreakerOnceEndpointAnswers() throws Exception {
+        AtomicInteger status = new AtomicInteger(503);
+        AtomicInteger probes = new AtomicInteger();
+        HttpServer server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        server.createContext("/", exchange -> {
+            probes.incrementAndGet();
+            exchange.getResponseHeaders().set("Connection", "close");
+            exchange.sendResponseHeaders(status.get(), -1);
+            exchange.close();
+        });
+        server.start();
+        try {
+            String baseUrl = "http://" + InetAddress.getLoopbackAddress().getHostAddress() + ":" +
+                    server.getAddress().getPort() + "/dhus";
+            EndpointHealth.setMinOpenTime(200);
+            EndpointHealth.register(baseUrl);
+            for (int i = 0; i < 3; i++) {
+                EndpointHealth.record(baseUrl + "/search", false);
+            }
+            // not probed before the open time elapses
+            EndpointHealth.probe();
+            Assert.assertEquals(0, probes.get());
+            assertOpen(baseUrl);
+
+            Thread.sleep(250);
+            EndpointHealth.probe();
+            Assert.assertEquals(1, probes.get());
+            assertOpen(baseUrl);
+            // the failed probe doubled the open time
+            Thread.sleep(250);
+            EndpointHealth.probe();
+            Assert.assertEquals(1, probes.get());
+
+            status.set(200);
+            Thread.sleep(200);
+            EndpointHealth.probe();
+            Assert.assertEquals(2, probes.get());
+            Assert.assertEquals(baseUrl + "/search", EndpointHealth.route(baseUrl + "/search"));
+        } finally {
+            server.stop(0);
+        }
+    }
+
+    private static void assertOpen(String baseUrl) {
+        try {
+            EndpointHealth.route(baseUrl + "/search");
+            Assert.fail("The breaker of " + baseUrl + " is closed");
+        } catch (IOException ignored) {
+        }
+    }
+}
@@ -0,0 +1,89 @@
+package ro.cs.products.util;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.SocketTimeoutException;
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Checks the delays and the retry decisions of {@link RetryPolicy}.
+ *
+ * @author Cosmin Cara
+ */
+public class RetryPolicyTest {
+
+    @Test
+    public void parsesRetryAfterInSeconds() {
+        Assert.assertEquals(120000, RetryPolicy.parseRetryAfter("120"));
+        Assert.assertEquals(5000, RetryPolicy.parseRetryAfter(" 5 "));
+        Assert.assertEquals(0, RetryPolicy.parseRetryAfter("-5"));
+    }
+
+    @Test
+    public void parsesRetryAfterAsHttpDate() {
+        ZonedDateTime date = ZonedDateTime.now(ZoneId.of("GMT")).plusSeconds(60);
+        long delay = RetryPolicy.parseRetryAfter(DateTimeFormatter.RFC_1123_DATE_TIME.format(date));
+        Assert.assertTrue(delay > 55000 && delay <= 60000);
+        ZonedDateTime past = ZonedDateTime.now(ZoneId.of("GMT")).minusHours(1);
+        Assert.assertEquals(0, RetryPolicy.parseRetryAfter(DateTimeFormatter.RFC_1123_DATE_TIME.format(past)));
+    }
+
+    @Test
+    public void ignoresInvalidRetryAfter() {
+        Assert.assertEquals(0, RetryPolicy.parseRetryAfter(null));
+        Assert.assertEquals(0, RetryPolicy.parseRetryAfter(""));
+        Assert.assertEquals(0, RetryPolicy.parseRetryAfter("tomorrow"));
+    }
+
+    @Test
+    public void backoffStaysWithinBounds() {
+        RetryPolicy policy = new RetryPolicy(10, 1000, 8000);
+        for (int retry = 1; retry <= 10; retry++) {
+            long backoff = Math.min(8000, 1000L << (retry - 1));
+            for (int i = 0; i < 100; i++) {
+                long delay = policy.getDelay(retry, (String) null);
+                Assert.assertTrue(String.format("Delay %s for retry %s", delay, retry),
+                                  delay >= backoff / 2 && delay <= backoff + 1);
+            }
+        }
+        // a large retry number doesn't overflow the backoff
+        long delay = policy.getDelay(Integer.MAX_VALUE, (String) null);
+        Assert.assertTrue(delay >= 4000 && delay <= 8001);
+    }
+
+    @Test
+    public void retryAfterOverridesShorterBackoff() {
+        RetryPolicy policy = new RetryPolicy(4, 100, 1000);
+        Assert.assertEquals(30000, policy.getDelay(1, "30"));
+        Assert.assertEquals(30000, policy.getDelay(1, new HttpStatusException("Too many requests", 429, "30")));
+        // the server cannot hold a download back indefinitely
+        Assert.assertEquals(TimeUnit.MINUTES.toMillis(10), policy.getDelay(1, "86400"));
+    }
+
+    @Test
+    public void boundsArguments() {
+        RetryPolicy policy = new RetryPolicy(0, -1, -1);
+        Assert.assertEquals(1, policy.getMaxAttempts());
+        Assert.assertTrue(policy.getDelay(3, (String) null) <= 1);
+    }
+
+    @Test
+    public void retriesTransientFailuresOnly() {
+        RetryPolicy policy = new RetryPolicy(4, 100, 1000);
+        Assert.assertTrue(policy.isRetryable(new IOException("Connection reset")));
+        Assert.assertTrue(policy.isRetryable(new SocketTimeoutException("Read timed out")));
+        Assert.assertTrue(policy.isRetryable(new HttpStatusException("Unavailable", 503, null)));
+        Assert.assertTrue(policy.isRetryable(new HttpStatusException("Too many requests", 429, null)));
+        Assert.assertFalse(policy.isRetryable(new HttpStatusException("Forbidden", 403, null)));
+        Assert.assertFalse(policy.isRetryable(new HttpStatusException("Not implemented", 501, null)));
+        Assert.assertFalse(policy.isRetryable(new FileNotFoundException("Missing")));
+        Assert.assertFalse(policy.isRetryable(new InterruptedIOException("Interrupted")));
+    }
+}
@@ -0,0 +1,27 @@
+package ro.cs.products.util;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * @author Cosmin Cara
+ */
+public class UtilitiesTest {
+
+    @Test
+    public void parsesSizesWithUnits() {
+        Assert.assertEquals(100, Utilities.parseSize("100"));
+        Assert.assertEquals(12 * 1024, Utilities.parseSize("12 KB"));
+        Assert.assertEquals(800L * 1024 * 1024, Utilities.parseSize("800 MB"));
+        Assert.assertEquals(1536L * 1024 * 1024, Utilities.parseSize("1.5 GB"));
+        Assert.assertEquals(2L * 1024 * 1024 * 1024 * 1024, Utilities.parseSize("2 TB"));
+        Assert.assertEquals(512L * 1024 * 1024, Utilities.parseSize(" 512   mb "));
+    }
+
+    @Test
+    public void rejectsInvalidSizes() {
+        Assert.assertEquals(-1, Utilities.parseSize(null));
+        Assert.assertEquals(-1, Utilities.parseSize(""));
+        Assert.assertEquals(-1, Utilities.parseSize("unknown"));
+    }
+}
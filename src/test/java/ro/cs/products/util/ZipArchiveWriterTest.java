@@ -0,0 +1,170 @@
+package ro.cs.products.util;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * Checks that the archives written by {@link ZipArchiveWriter} are read back by {@link ZipFile}.
+ *
+ * @author Cosmin Cara
+ */
+public class ZipArchiveWriterTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void storesRastersAndDeflatesOtherFiles() throws IOException {
+        byte[] raster = randomBytes(300 * 1024);
+        byte[] metadata = String.join("", Collections.nCopies(2000, "<band>B01</band>\n")).getBytes(StandardCharsets.UTF_8);
+        Path source = this.folder.newFolder("product").toPath();
+        Files.write(source.resolve("B01.jp2"), raster);
+        Files.write(source.resolve("MTD.xml"), metadata);
+        Path archiveFile = this.folder.getRoot().toPath().resolve("product.zip");
+        try (ZipArchiveWriter writer = new ZipArchiveWriter(archiveFile)) {
+            writer.add("product/B01.jp2", source.resolve("B01.jp2"));
+            writer.add("product/MTD.xml", source.resolve("MTD.xml"));
+        }
+        try (ZipFile zipFile = new ZipFile(archiveFile.toFile())) {
+            Assert.assertEquals(2, zipFile.size());
+            assertEntry(zipFile, "product/B01.jp2", ZipEntry.STORED, raster);
+            assertEntry(zipFile, "product/MTD.xml", ZipEntry.DEFLATED, metadata);
+            Assert.assertTrue(zipFile.getEntry("product/MTD.xml").getCompressedSize() < metadata.length);
+        }
+    }
+
+    @Test
+    public void writesReservedEntriesThroughTheChannel() throws IOException {
+        byte[] first = randomBytes(100 * 1024);
+        byte[] second = randomBytes(10 * 1024);
+        Path archiveFile = this.folder.getRoot().toPath().resolve("reserved.zip");
+        try (ZipArchiveWriter writer = new ZipArchiveWriter(archiveFile)) {
+            ZipArchiveWriter.Entry firstEntry = writer.reserve("product/B02.jp2", first.length);
+            ZipArchiveWriter.Entry secondEntry = writer.reserve("product/B03.jp2", second.length);
+            // the entries are written in any order, and committed once complete
+            write(secondEntry, second);
+            write(firstEntry, first);
+            firstEntry.commit(crcOf(first));
+            secondEntry.commit(crcOf(second));
+            ZipArchiveWriter.Entry discarded = writer.reserve("product/B04.jp2", 1024);
+            discarded.discard();
+            Assert.assertTrue(writer.contains("product/B02.jp2"));
+            Assert.assertFalse(writer.contains("product/B04.jp2"));
+        }
+        try (ZipFile zipFile = new ZipFile(archiveFile.toFile())) {
+            Assert.assertEquals(2, zipFile.size());
+            assertEntry(zipFile, "product/B02.jp2", ZipEntry.STORED, first);
+            assertEntry(zipFile, "product/B03.jp2", ZipEntry.STORED, second);
+        }
+    }
+
+    @Test
+    public void writesZip64DirectoryForManyEntries() throws IOException {
+        int count = 0xFFFF + 10;
+        Path archiveFile = this.folder.getRoot().toPath().resolve("many.zip");
+        try (ZipArchiveWriter writer = new ZipArchiveWriter(archiveFile)) {
+            for (int i = 0; i < count; i++) {
+                byte[] content = String.valueOf(i).getBytes(StandardCharsets.UTF_8);
+                ZipArchiveWriter.Entry entry = writer.reserve("files/" + i, content.length);
+                write(entry, content);
+                entry.commit(crcOf(content));
+            }
+        }
+        try (ZipFile zipFile = new ZipFile(archiveFile.toFile())) {
+            Assert.assertEquals(count, zipFile.size());
+            assertEntry(zipFile, "files/" + (count - 1), ZipEntry.STORED,
+                        String.valueOf(count - 1).getBytes(StandardCharsets.UTF_8));
+        }
+        // the archive can be updated again
+        Path extra = this.folder.newFile("extra.txt").toPath();
+        Files.write(extra, "extra".getBytes(StandardCharsets.UTF_8));
+        try (ZipArchiveWriter writer = ZipArchiveWriter.open(archiveFile)) {
+            Assert.assertTrue(writer.contains("files/0"));
+            writer.add("extra.txt", extra);
+        }
+        try (ZipFile zipFile = new ZipFile(archiveFile.toFile())) {
+            Assert.assertEquals(count + 1, zipFile.size());
+            assertEntry(zipFile, "extra.txt", ZipEntry.DEFLATED, "extra".getBytes(StandardCharsets.UTF_8));
+        }
+    }
+
+    @Test
+    public void addsFolderTreeWithDirectoryEntries() throws IOException {
+        Path source = this.folder.newFolder("tree").toPath();
+        Files.createDirectories(source.resolve("GRANULE/T35TLK/IMG_DATA"));
+        List<byte[]> contents = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            byte[] content = ("file " + i).getBytes(StandardCharsets.UTF_8);
+            contents.add(content);
+            Files.write(source.resolve("GRANULE/T35TLK/IMG_DATA/file" + i + ".txt"), content);
+        }
+        Path archiveFile = this.folder.getRoot().toPath().resolve("tree.zip");
+        try (ZipArchiveWriter writer = new ZipArchiveWriter(archiveFile)) {
+            writer.addTree(source);
+        }
+        try (ZipFile zipFile = new ZipFile(archiveFile.toFile())) {
+            Assert.assertTrue(zipFile.getEntry("GRANULE/").isDirectory());
+            Assert.assertTrue(zipFile.getEntry("GRANULE/T35TLK/IMG_DATA/").isDirectory());
+            for (int i = 0; i < contents.size(); i++) {
+                assertEntry(zipFile, "GRANULE/T35TLK/IMG_DATA/file" + i + ".txt", ZipEntry.DEFLATED, contents.get(i));
+            }
+        }
+    }
+
+    static void assertEntry(ZipFile zipFile, String name, int method, byte[] expected) throws IOException {
+        ZipEntry entry = zipFile.getEntry(name);
+        Assert.assertNotNull("Missing entry " + name, entry);
+        Assert.assertEquals(method, entry.getMethod());
+        Assert.assertEquals(expected.length, entry.getSize());
+        Assert.assertEquals(crcOf(expected), entry.getCrc());
+        try (InputStream inputStream = zipFile.getInputStream(entry)) {
+            Assert.assertArrayEquals(expected, readAll(inputStream));
+        }
+    }
+
+    static byte[] randomBytes(int length) {
+        byte[] bytes = new byte[length];
+        new Random(length).nextBytes(bytes);
+        return bytes;
+    }
+
+    static long crcOf(byte[] bytes) {
+        CRC32 crc = new CRC32();
+        crc.update(bytes, 0, bytes.length);
+        return crc.getValue();
+    }
+
+    private static void write(ZipArchiveWriter.Entry entry, byte[] content) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(content);
+        long position = entry.getDataOffset();
+        while (buffer.hasRemaining()) {
+            position += entry.getChannel().write(buffer, position);
+        }
+    }
+
+    private static byte[] readAll(InputStream inputStream) throws IOException {
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int read;
+        while ((read = inputStream.read(buffer)) != -1) {
+            outputStream.write(buffer, 0, read);
+        }
+        return outputStream.toByteArray();
+    }
+}
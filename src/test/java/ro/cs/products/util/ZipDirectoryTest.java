@@ -0,0 +1,95 @@
+package ro.cs.products.util;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Checks that {@link ZipDirectory} reads the central directory of archives written by java.util.zip,
+ * given only access by byte ranges.
+ *
+ * @author Cosmin Cara
+ */
+public class ZipDirectoryTest {
+
+    @Test
+    public void readsStoredAndDeflatedEntries() throws IOException {
+        byte[] raster = ZipArchiveWriterTest.randomBytes(50 * 1024);
+        byte[] metadata = "<metadata><band>B01</band><band>B01</band></metadata>".getBytes(StandardCharsets.UTF_8);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ZipOutputStream zipStream = new ZipOutputStream(bytes)) {
+            zipStream.putNextEntry(new ZipEntry("product/"));
+            zipStream.closeEntry();
+            ZipEntry stored = new ZipEntry("product/B01.jp2");
+            stored.setMethod(ZipEntry.STORED);
+            stored.setSize(raster.length);
+            stored.setCrc(ZipArchiveWriterTest.crcOf(raster));
+            zipStream.putNextEntry(stored);
+            zipStream.write(raster);
+            zipStream.closeEntry();
+            zipStream.putNextEntry(new ZipEntry("product/MTD.xml"));
+            zipStream.write(metadata);
+            zipStream.closeEntry();
+            zipStream.setComment("a comment that follows the end record");
+        }
+        byte[] archive = bytes.toByteArray();
+        ZipDirectory directory = ZipDirectory.read((offset, length) ->
+                Arrays.copyOfRange(archive, (int) offset, (int) offset + length), archive.length);
+
+        List<ZipDirectory.Record> records = directory.getRecords();
+        Assert.assertEquals(3, records.size());
+        Assert.assertTrue(records.get(0).isDirectory());
+        ZipDirectory.Record rasterRecord = records.get(1);
+        Assert.assertEquals("product/B01.jp2", rasterRecord.getName());
+        Assert.assertEquals(ZipEntry.STORED, rasterRecord.getMethod());
+        Assert.assertEquals(raster.length, rasterRecord.getSize());
+        Assert.assertEquals(raster.length, rasterRecord.getCompressedSize());
+        Assert.assertEquals(ZipArchiveWriterTest.crcOf(raster), rasterRecord.getCrc());
+        ZipDirectory.Record metadataRecord = records.get(2);
+        Assert.assertEquals("product/MTD.xml", metadataRecord.getName());
+        Assert.assertEquals(ZipEntry.DEFLATED, metadataRecord.getMethod());
+        Assert.assertEquals(metadata.length, metadataRecord.getSize());
+        Assert.assertEquals(ZipArchiveWriterTest.crcOf(metadata), metadataRecord.getCrc());
+        Assert.assertTrue(rasterRecord.getLocalHeaderOffset() < metadataRecord.getLocalHeaderOffset());
+        Assert.assertTrue(metadataRecord.getLocalHeaderOffset() + metadataRecord.getCompressedSize() <= directory.getOffset());
+        // the local header of an entry is where the directory says it is
+        Assert.assertEquals(0x50, archive[(int) rasterRecord.getLocalHeaderOffset()]);
+        Assert.assertEquals(0x4b, archive[(int) rasterRecord.getLocalHeaderOffset() + 1]);
+    }
+
+    @Test
+    public void readsZip64Directory() throws IOException {
+        int count = 0xFFFF + 100;
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ZipOutputStream zipStream = new ZipOutputStream(bytes)) {
+            for (int i = 0; i < count; i++) {
+                zipStream.putNextEntry(new ZipEntry("files/" + i));
+                zipStream.write(String.valueOf(i).getBytes(StandardCharsets.UTF_8));
+                zipStream.closeEntry();
+            }
+        }
+        byte[] archive = bytes.toByteArray();
+        ZipDirectory directory = ZipDirectory.read((offset, length) ->
+                Arrays.copyOfRange(archive, (int) offset, (int) offset + length), archive.length);
+
+        Assert.assertEquals(count, directory.getRecords().size());
+        ZipDirectory.Record last = directory.getRecords().get(count - 1);
+        Assert.assertEquals("files/" + (count - 1), last.getName());
+        Assert.assertEquals(String.valueOf(count - 1).length(), last.getSize());
+        Assert.assertEquals(ZipArchiveWriterTest.crcOf(String.valueOf(count - 1).getBytes(StandardCharsets.UTF_8)), last.getCrc());
+        Assert.assertEquals(56 + 20 + 22, archive.length - directory.getOffset() - directory.getSize());
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsNonArchive() throws IOException {
+        byte[] content = "not a zip archive".getBytes(StandardCharsets.UTF_8);
+        ZipDirectory.read((offset, length) -> Arrays.copyOfRange(content, (int) offset, (int) offset + length), content.length);
+    }
+}
@@ -0,0 +1,138 @@
+package ro.cs.products.util;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * Checks the update of an existing archive by {@link Zipper} and {@link ZipArchiveWriter}, including
+ * its restoration when the update is aborted or was interrupted.
+ *
+ * @author Cosmin Cara
+ */
+public class ZipperTest {
+    private static final byte[] METADATA = "<metadata>first</metadata>".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] RASTER = ZipArchiveWriterTest.randomBytes(64 * 1024);
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+    private Path product;
+    private Path archiveFile;
+
+    @Before
+    public void setUp() throws IOException {
+        this.product = this.folder.newFolder("S2A_PRODUCT.SAFE").toPath();
+        Files.createDirectories(this.product.resolve("GRANULE"));
+        Files.write(this.product.resolve("MTD.xml"), METADATA);
+        Files.write(this.product.resolve("GRANULE/B01.jp2"), RASTER);
+        this.archiveFile = this.folder.getRoot().toPath().resolve("S2A_PRODUCT.zip");
+        Zipper.compress(this.product, "S2A_PRODUCT", false);
+    }
+
+    @Test
+    public void updateReplacesChangedAndAddsNewEntries() throws IOException {
+        byte[] metadata = "<metadata>second, longer</metadata>".getBytes(StandardCharsets.UTF_8);
+        byte[] raster = ZipArchiveWriterTest.randomBytes(32 * 1024);
+        Path metadataFile = this.product.resolve("MTD.xml");
+        Files.write(metadataFile, metadata);
+        Files.setLastModifiedTime(metadataFile, FileTime.fromMillis(System.currentTimeMillis() + 10000));
+        Files.write(this.product.resolve("GRANULE/B02.jp2"), raster);
+
+        Zipper.compress(this.product, "S2A_PRODUCT", true, true);
+
+        Assert.assertFalse(Files.exists(this.product));
+        Assert.assertFalse(Files.exists(backupOf(this.archiveFile)));
+        try (ZipFile zipFile = new ZipFile(this.archiveFile.toFile())) {
+            Assert.assertEquals(4, zipFile.size());
+            ZipArchiveWriterTest.assertEntry(zipFile, "MTD.xml", ZipEntry.DEFLATED, metadata);
+            ZipArchiveWriterTest.assertEntry(zipFile, "GRANULE/B01.jp2", ZipEntry.STORED, RASTER);
+            ZipArchiveWriterTest.assertEntry(zipFile, "GRANULE/B02.jp2", ZipEntry.STORED, raster);
+        }
+    }
+
+    @Test
+    public void updateSkipsUnchangedFiles() throws IOException {
+        long length = Files.size(this.archiveFile);
+        Zipper.compress(this.product, "S2A_PRODUCT", false, true);
+        Assert.assertEquals(length, Files.size(this.archiveFile));
+        try (ZipFile zipFile = new ZipFile(this.archiveFile.toFile())) {
+            Assert.assertEquals(3, zipFile.size());
+        }
+    }
+
+    @Test
+    public void abortRestoresOriginalArchive() throws IOException {
+        byte[] original = Files.readAllBytes(this.archiveFile);
+        Path extra = this.folder.newFile("extra.xml").toPath();
+        Files.write(extra, METADATA);
+        ZipArchiveWriter writer = ZipArchiveWriter.open(this.archiveFile);
+        writer.add("extra.xml", extra);
+        writer.abort();
+
+        Assert.assertArrayEquals(original, Files.readAllBytes(this.archiveFile));
+        Assert.assertFalse(Files.exists(backupOf(this.archiveFile)));
+        try (ZipFile zipFile = new ZipFile(this.archiveFile.toFile())) {
+            Assert.assertEquals(3, zipFile.size());
+            Assert.assertNull(zipFile.getEntry("extra.xml"));
+        }
+    }
+
+    @Test
+    public void interruptedUpdateIsRestoredWhenReopened() throws IOException {
+        byte[] original = Files.readAllBytes(this.archiveFile);
+        Path extra = this.folder.newFile("extra.jp2").toPath();
+        Files.write(extra, RASTER);
+        Path crashed = this.folder.getRoot().toPath().resolve("crashed.zip");
+        ZipArchiveWriter writer = ZipArchiveWriter.open(this.archiveFile);
+        try {
+            // the new entry overwrote the central directory: this is the state left by a crash
+            writer.add("extra.jp2", extra);
+            Files.copy(this.archiveFile, crashed);
+            Files.copy(backupOf(this.archiveFile), backupOf(crashed));
+        } finally {
+            writer.abort();
+        }
+        try (ZipArchiveWriter reopened = ZipArchiveWriter.open(crashed)) {
+            Assert.assertFalse(reopened.contains("extra.jp2"));
+            Assert.assertTrue(reopened.contains("GRANULE/B01.jp2"));
+        }
+        Assert.assertArrayEquals(original, Files.readAllBytes(crashed));
+        Assert.assertFalse(Files.exists(backupOf(crashed)));
+    }
+
+    @Test
+    public void incompleteBackupIsIgnored() throws IOException {
+        byte[] original = Files.readAllBytes(this.archiveFile);
+        // a backup interrupted while being saved, before the archive was modified
+        Files.write(backupOf(this.archiveFile), new byte[] { 1, 2, 3 });
+        try (ZipArchiveWriter writer = ZipArchiveWriter.open(this.archiveFile)) {
+            Assert.assertTrue(writer.contains("MTD.xml"));
+        }
+        Assert.assertArrayEquals(original, Files.readAllBytes(this.archiveFile));
+        Assert.assertFalse(Files.exists(backupOf(this.archiveFile)));
+    }
+
+    @Test
+    public void unreadableArchiveIsCreatedAgain() throws IOException {
+        Files.write(this.archiveFile, new byte[] { 'n', 'o', 't', ' ', 'a', ' ', 'z', 'i', 'p' });
+        Zipper.compress(this.product, "S2A_PRODUCT", false, true);
+        try (ZipFile zipFile = new ZipFile(this.archiveFile.toFile())) {
+            Assert.assertEquals(3, zipFile.size());
+            ZipArchiveWriterTest.assertEntry(zipFile, "MTD.xml", ZipEntry.DEFLATED, METADATA);
+        }
+    }
+
+    private static Path backupOf(Path archiveFile) {
+        return archiveFile.resolveSibling(archiveFile.getFileName() + ".directory");
+    }
+}